@@ -184,5 +184,12 @@ public class PluginHelper implements ServiceConnection {
 
     public void applicationAttachBaseContext(Context baseContext) {
         MyCrashHandler.getInstance().register(baseContext);
+        //尽早开始绑定插件管理服务，插件进程处理第一个LAUNCH_ACTIVITY时通常已经连接上，不用再等待
+        try {
+            PluginManager.getInstance().addServiceConnection(PluginHelper.this);
+            PluginManager.getInstance().init(baseContext);
+        } catch (Throwable e) {
+            Log.e(TAG, "connectToService has error", e);
+        }
     }
 }
@@ -22,18 +22,34 @@
 
 package com.morgoo.droidplugin.am;
 
+import android.annotation.TargetApi;
 import android.app.ActivityManager;
 import android.app.ActivityManager.RunningAppProcessInfo;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
+import android.content.pm.ComponentInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
+import android.content.res.Configuration;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Parcelable;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
+import android.util.SparseBooleanArray;
 
+import com.morgoo.droidplugin.core.Env;
 import com.morgoo.droidplugin.pm.IApplicationCallback;
 import com.morgoo.droidplugin.pm.IPluginManagerImpl;
+import com.morgoo.droidplugin.pm.parser.PluginPackageParser;
 import com.morgoo.droidplugin.reflect.FieldUtils;
 import com.morgoo.droidplugin.stub.AbstractServiceStub;
 import com.morgoo.helper.AttributeCache;
@@ -44,6 +60,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 这是一个比较复杂的进程管理服务。
@@ -53,6 +71,9 @@ import java.util.List;
  * 3、插件系统最多可以同时运行N个进程，M个插件(M <= N or M >= N)。
  * 4、多个插件运行在同一个进程中，如果他们的签名相同。（我们可以通过一个开关来决定。）
  * 5、在运行第M+1个插件时，如果预定义的N个进程被占满，最低优先级的进程会被kill掉。腾出预定义的进程用来运行此个插件。
+ * <p/>
+ * 回收进程（runProcessGC）要跨进程查询所有运行中的进程，不在选择Stub的时候同步做，
+ * 而是在进程死亡、组件销毁、内存不足时合并成一次，放到后台线程里执行。
  * Created by Andy Zhang(zhangyong232@gmail.com) on 2015/3/10.
  */
 public class MyActivityManagerService extends BaseActivityManagerService {
@@ -60,6 +81,107 @@ public class MyActivityManagerService extends BaseActivityManagerService {
     private static final String TAG = MyActivityManagerService.class.getSimpleName();
     private StaticProcessList mStaticProcessList = new StaticProcessList();
     private RunningProcesList mRunningProcessList = new RunningProcesList();
+    private StubActivitySlots mStubActivitySlots = new StubActivitySlots();
+
+    //组件销毁、进程死亡后等一会再回收，把连续的多个事件合并成一次
+    private static final long PROCESS_GC_DELAY = 1000;
+
+    private HandlerThread mProcessGCThread;
+    private Handler mProcessGCHandler;
+    //已经安排好的下次回收时间（uptimeMillis），0表示没有安排
+    private long mNextProcessGCTime = 0;
+    private int mProcessGCCount = 0;
+    private long mProcessGCTotalTime = 0;
+
+    private final Runnable mProcessGCRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mProcessGCRunnable) {
+                mNextProcessGCTime = 0;
+            }
+            long b = SystemClock.elapsedRealtime();
+            try {
+                runProcessGC();
+            } catch (Throwable e) {
+                Log.e(TAG, "runProcessGC fail", e);
+            } finally {
+                //以前每次选择Stub都要同步做一次，这部分时间现在不再计入启动耗时
+                long cost = SystemClock.elapsedRealtime() - b;
+                mProcessGCCount++;
+                mProcessGCTotalTime += cost;
+                Log.i(TAG, "runProcessGC cost %s ms in background (total %s times, %s ms)", cost, mProcessGCCount, mProcessGCTotalTime);
+                if (Log.isDebug()) {
+                    Log.i(TAG, "%s", AttributeCache.instance().dump());
+                }
+            }
+        }
+    };
+
+    private static class PendingWarmUp {
+        final ComponentInfo targetInfo;
+        final long time;
+
+        PendingWarmUp(ComponentInfo targetInfo) {
+            this.targetInfo = targetInfo;
+            this.time = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static class ApplicationCallback {
+        final int pid;
+        final IApplicationCallback callback;
+
+        ApplicationCallback(int pid, IApplicationCallback callback) {
+            this.pid = pid;
+            this.callback = callback;
+        }
+    }
+
+    //分配了插件但进程还没启动时，进程多久内注册回调才通知它预热
+    private static final long PENDING_WARM_UP_TIMEOUT = 10 * 1000;
+
+    //key=预定义进程名
+    private final ConcurrentHashMap<String, ApplicationCallback> mApplicationCallbacks = new ConcurrentHashMap<String, ApplicationCallback>();
+    //key=预定义进程名
+    private final Map<String, PendingWarmUp> mPendingWarmUps = new ConcurrentHashMap<String, PendingWarmUp>();
+
+    //ComponentCallbacks2是API 14才有的，低版本上不创建
+    private ComponentCallbacks mComponentCallbacks;
+
+    @TargetApi(VERSION_CODES.ICE_CREAM_SANDWICH)
+    private class ProcessGCComponentCallbacks implements ComponentCallbacks2 {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= TRIM_MEMORY_RUNNING_LOW) {
+                scheduleProcessGC(0);
+            }
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+            //配置变化后样式属性可能不同，让AttributeCache按需清空
+            AttributeCache.instance().updateConfiguration(newConfig);
+        }
+
+        @Override
+        public void onLowMemory() {
+            scheduleProcessGC(0);
+        }
+    }
+
+    @TargetApi(VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerComponentCallbacks() {
+        mComponentCallbacks = new ProcessGCComponentCallbacks();
+        mHostContext.registerComponentCallbacks(mComponentCallbacks);
+    }
+
+    @TargetApi(VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void unregisterComponentCallbacks() {
+        if (mComponentCallbacks != null) {
+            mHostContext.unregisterComponentCallbacks(mComponentCallbacks);
+            mComponentCallbacks = null;
+        }
+    }
 
     public MyActivityManagerService(Context hostContext) {
         super(hostContext);
@@ -71,12 +193,31 @@ public class MyActivityManagerService extends BaseActivityManagerService {
         super.onCreate(pluginManagerImpl);
         AttributeCache.init(mHostContext);
         mStaticProcessList.onCreate(mHostContext);
+        mStubActivitySlots.init(mStaticProcessList);
         mRunningProcessList.setContext(mHostContext);
+        mProcessGCThread = new HandlerThread("DroidPlugin@ProcessGCThread", Process.THREAD_PRIORITY_BACKGROUND);
+        mProcessGCThread.start();
+        mProcessGCHandler = new Handler(mProcessGCThread.getLooper());
+        if (VERSION.SDK_INT >= VERSION_CODES.ICE_CREAM_SANDWICH) {
+            registerComponentCallbacks();
+        }
     }
 
     @Override
     public void onDestory() {
+        if (VERSION.SDK_INT >= VERSION_CODES.ICE_CREAM_SANDWICH) {
+            unregisterComponentCallbacks();
+        }
+        if (mProcessGCThread != null) {
+            mProcessGCHandler.removeCallbacks(mProcessGCRunnable);
+            mProcessGCThread.quit();
+            mProcessGCThread = null;
+            mProcessGCHandler = null;
+        }
+        mApplicationCallbacks.clear();
+        mPendingWarmUps.clear();
         mRunningProcessList.clear();
+        mStubActivitySlots.clear();
         mStaticProcessList.clear();
         runProcessGC();
         super.onDestory();
@@ -84,11 +225,36 @@ public class MyActivityManagerService extends BaseActivityManagerService {
 
     @Override
     protected void onProcessDied(int pid, int uid) {
+        for (Map.Entry<String, ApplicationCallback> entry : mApplicationCallbacks.entrySet()) {
+            if (entry.getValue().pid == pid) {
+                mApplicationCallbacks.remove(entry.getKey(), entry.getValue());
+            }
+        }
         mRunningProcessList.onProcessDied(pid, uid);
-        runProcessGC();
+        mStubActivitySlots.onProcessDied(pid);
+        scheduleProcessGC(PROCESS_GC_DELAY);
         super.onProcessDied(pid, uid);
     }
 
+    /**
+     * 在后台线程里回收进程。已经安排了更早的回收时直接返回，否则改到更早的时间。
+     */
+    private void scheduleProcessGC(long delay) {
+        synchronized (mProcessGCRunnable) {
+            Handler handler = mProcessGCHandler;
+            if (handler == null) {
+                return;
+            }
+            long when = SystemClock.uptimeMillis() + delay;
+            if (mNextProcessGCTime != 0 && mNextProcessGCTime <= when) {
+                return;
+            }
+            mNextProcessGCTime = when;
+            handler.removeCallbacks(mProcessGCRunnable);
+            handler.postAtTime(mProcessGCRunnable, when);
+        }
+    }
+
     @Override
     public boolean registerApplicationCallback(int callingPid, int callingUid, IApplicationCallback callback) {
         boolean b = super.registerApplicationCallback(callingPid, callingUid, callback);
@@ -105,20 +271,66 @@ public class MyActivityManagerService extends BaseActivityManagerService {
             String targetPkg = mHostContext.getPackageName();
             mRunningProcessList.setProcessName(callingPid, stubProcessName, targetProcessName, targetPkg);
         }
+        String processName = Utils.getProcessName(mHostContext, callingPid);
+        if (b && processName != null && callback != null) {
+            mApplicationCallbacks.put(processName, new ApplicationCallback(callingPid, callback));
+            PendingWarmUp pending = mPendingWarmUps.remove(processName);
+            if (pending != null && SystemClock.elapsedRealtime() - pending.time < PENDING_WARM_UP_TIMEOUT) {
+                sendWarmUp(processName, pending.targetInfo);
+            }
+        }
         return b;
     }
 
+    /**
+     * 记录预定义进程要运行的插件，并通知这个进程在后台预热（创建ClassLoader、加载类），不用等到LAUNCH_ACTIVITY。
+     * 进程还没启动时先记下来，等它注册回调时再通知。
+     */
+    private void setTargetProcessName(ComponentInfo stubInfo, ComponentInfo targetInfo) {
+        mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+        if (stubInfo.processName == null || targetInfo == null) {
+            return;
+        }
+        if (mApplicationCallbacks.containsKey(stubInfo.processName)) {
+            sendWarmUp(stubInfo.processName, targetInfo);
+        } else {
+            mPendingWarmUps.put(stubInfo.processName, new PendingWarmUp(targetInfo));
+        }
+    }
+
+    private void sendWarmUp(final String processName, final ComponentInfo targetInfo) {
+        Handler handler = mProcessGCHandler;
+        if (handler == null) {
+            return;
+        }
+        //选择Stub是在调用方的binder线程里做的，跨进程通知放到后台线程，不增加启动耗时
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                ApplicationCallback callback = mApplicationCallbacks.get(processName);
+                if (callback == null) {
+                    return;
+                }
+                try {
+                    Bundle extra = new Bundle();
+                    extra.putParcelable(Env.EXTRA_WARM_UP_INFO, (Parcelable) targetInfo);
+                    callback.callback.onCallback(extra);
+                } catch (Exception e) {
+                    Log.w(TAG, "send warm up %s to %s fail", e, targetInfo.packageName, processName);
+                }
+            }
+        });
+    }
+
     @Override
     public ProviderInfo selectStubProviderInfo(int callingPid, int callingUid, ProviderInfo targetInfo) throws RemoteException {
-        runProcessGC();
-
         //先从正在运行的进程中查找看是否有符合条件的进程，如果有则直接使用之
         String stubProcessName1 = mRunningProcessList.getStubProcessByTarget(targetInfo);
         if (stubProcessName1 != null) {
             List<ProviderInfo> stubInfos = mStaticProcessList.getProviderInfoForProcessName(stubProcessName1);
             for (ProviderInfo stubInfo : stubInfos) {
                 if (!mRunningProcessList.isStubInfoUsed(stubInfo)) {
-                    mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+                    setTargetProcessName(stubInfo, targetInfo);
                     return stubInfo;
                 }
             }
@@ -131,7 +343,7 @@ public class MyActivityManagerService extends BaseActivityManagerService {
                 if (mRunningProcessList.isPkgEmpty(stubProcessName)) {//空进程，没有运行任何插件包。
                     for (ProviderInfo stubInfo : stubInfos) {
                         if (!mRunningProcessList.isStubInfoUsed(stubInfo)) {
-                            mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+                            setTargetProcessName(stubInfo, targetInfo);
                             return stubInfo;
                         }
                     }
@@ -139,7 +351,7 @@ public class MyActivityManagerService extends BaseActivityManagerService {
                 } else if (mRunningProcessList.isPkgCanRunInProcess(targetInfo.packageName, stubProcessName, targetInfo.processName)) {
                     for (ProviderInfo stubInfo : stubInfos) {
                         if (!mRunningProcessList.isStubInfoUsed(stubInfo)) {
-                            mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+                            setTargetProcessName(stubInfo, targetInfo);
                             return stubInfo;
                         }
                     }
@@ -150,14 +362,14 @@ public class MyActivityManagerService extends BaseActivityManagerService {
             } else {
                 for (ProviderInfo stubInfo : stubInfos) {
                     if (!mRunningProcessList.isStubInfoUsed(stubInfo)) {
-                        mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+                        setTargetProcessName(stubInfo, targetInfo);
                         return stubInfo;
                     }
                 }
                 throw throwException("没有找到合适的StubInfo");
             }
         }
-        throw throwException("没有可用的进程了");
+        throw throwNoProcessException();
     }
 
 
@@ -174,15 +386,13 @@ public class MyActivityManagerService extends BaseActivityManagerService {
 
     @Override
     public ServiceInfo selectStubServiceInfo(int callingPid, int callingUid, ServiceInfo targetInfo) throws RemoteException {
-        runProcessGC();
-
         //先从正在运行的进程中查找看是否有符合条件的进程，如果有则直接使用之
         String stubProcessName1 = mRunningProcessList.getStubProcessByTarget(targetInfo);
         if (stubProcessName1 != null) {
             List<ServiceInfo> stubInfos = mStaticProcessList.getServiceInfoForProcessName(stubProcessName1);
             for (ServiceInfo stubInfo : stubInfos) {
                 if (!mRunningProcessList.isStubInfoUsed(stubInfo)) {
-                    mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+                    setTargetProcessName(stubInfo, targetInfo);
                     return stubInfo;
                 }
             }
@@ -195,7 +405,7 @@ public class MyActivityManagerService extends BaseActivityManagerService {
                 if (mRunningProcessList.isPkgEmpty(stubProcessName)) {//空进程，没有运行任何插件包。
                     for (ServiceInfo stubInfo : stubInfos) {
                         if (!mRunningProcessList.isStubInfoUsed(stubInfo)) {
-                            mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+                            setTargetProcessName(stubInfo, targetInfo);
                             return stubInfo;
                         }
                     }
@@ -203,7 +413,7 @@ public class MyActivityManagerService extends BaseActivityManagerService {
                 } else if (mRunningProcessList.isPkgCanRunInProcess(targetInfo.packageName, stubProcessName, targetInfo.processName)) {
                     for (ServiceInfo stubInfo : stubInfos) {
                         if (!mRunningProcessList.isStubInfoUsed(stubInfo)) {
-                            mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+                            setTargetProcessName(stubInfo, targetInfo);
                             return stubInfo;
                         }
                     }
@@ -214,14 +424,20 @@ public class MyActivityManagerService extends BaseActivityManagerService {
             } else { //该预定义的进程没有。
                 for (ServiceInfo stubInfo : stubInfos) {
                     if (!mRunningProcessList.isStubInfoUsed(stubInfo)) {
-                        mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
+                        setTargetProcessName(stubInfo, targetInfo);
                         return stubInfo;
                     }
                 }
                 throw throwException("没有找到合适的StubInfo");
             }
         }
-        throw throwException("没有可用的进程了");
+        throw throwNoProcessException();
+    }
+
+    private RemoteException throwNoProcessException() {
+        //预定义的进程都被占满了，尽快回收，下次启动时就有空闲进程了
+        scheduleProcessGC(0);
+        return throwException("没有可用的进程了");
     }
 
     private RemoteException throwException(String msg) {
@@ -234,17 +450,20 @@ public class MyActivityManagerService extends BaseActivityManagerService {
     @Override
     public void onActivityCreated(int callingPid, int callingUid, ActivityInfo stubInfo, ActivityInfo targetInfo) {
         mRunningProcessList.addActivityInfo(callingPid, callingUid, stubInfo, targetInfo);
+        mStubActivitySlots.onActivityCreated(callingPid, stubInfo, targetInfo);
     }
 
     @Override
     public void onActivityDestory(int callingPid, int callingUid, ActivityInfo stubInfo, ActivityInfo targetInfo) {
         mRunningProcessList.removeActivityInfo(callingPid, callingUid, stubInfo, targetInfo);
-        runProcessGC();
+        mStubActivitySlots.onActivityDestory(callingPid, stubInfo, targetInfo);
+        scheduleProcessGC(PROCESS_GC_DELAY);
     }
 
     @Override
     public void onActivtyOnNewIntent(int callingPid, int callingUid, ActivityInfo stubInfo, ActivityInfo targetInfo, Intent intent) {
         mRunningProcessList.addActivityInfo(callingPid, callingUid, stubInfo, targetInfo);
+        mStubActivitySlots.onActivityCreated(callingPid, stubInfo, targetInfo);
     }
 
     @Override
@@ -255,7 +474,7 @@ public class MyActivityManagerService extends BaseActivityManagerService {
     @Override
     public void onServiceDestory(int callingPid, int callingUid, ServiceInfo stubInfo, ServiceInfo targetInfo) {
         mRunningProcessList.removeServiceInfo(callingPid, callingUid, stubInfo, targetInfo);
-        runProcessGC();
+        scheduleProcessGC(PROCESS_GC_DELAY);
     }
 
     @Override
@@ -275,7 +494,6 @@ public class MyActivityManagerService extends BaseActivityManagerService {
 
     @Override
     public ActivityInfo selectStubActivityInfo(int callingPid, int callingUid, ActivityInfo targetInfo) throws RemoteException {
-        runProcessGC();
 //        if (targetInfo.launchMode == ActivityInfo.LAUNCH_SINGLE_TASK) {
 //            targetInfo.launchMode = ActivityInfo.LAUNCH_MULTIPLE;
 //        }
@@ -288,95 +506,167 @@ public class MyActivityManagerService extends BaseActivityManagerService {
 //            targetInfo.launchMode = ActivityInfo.LAUNCH_MULTIPLE;
 //        }
 
-        boolean Window_windowIsTranslucent = false;
-        boolean Window_windowIsFloating = false;
-        boolean Window_windowShowWallpaper = false;
-        try {
-            Class<?> R_Styleable_Class = Class.forName("com.android.internal.R$styleable");
-            int[] R_Styleable_Window = (int[]) FieldUtils.readStaticField(R_Styleable_Class, "Window");
-            int R_Styleable_Window_windowIsTranslucent = (int) FieldUtils.readStaticField(R_Styleable_Class, "Window_windowIsTranslucent");
-            int R_Styleable_Window_windowIsFloating = (int) FieldUtils.readStaticField(R_Styleable_Class, "Window_windowIsFloating");
-            int R_Styleable_Window_windowShowWallpaper = (int) FieldUtils.readStaticField(R_Styleable_Class, "Window_windowShowWallpaper");
-
-            AttributeCache.Entry ent = AttributeCache.instance().get(targetInfo.packageName, targetInfo.theme,
-                    R_Styleable_Window);
-            if (ent != null && ent.array != null) {
-                Window_windowIsTranslucent = ent.array.getBoolean(R_Styleable_Window_windowIsTranslucent, false);
-                Window_windowIsFloating = ent.array.getBoolean(R_Styleable_Window_windowIsFloating, false);
-                Window_windowShowWallpaper = ent.array.getBoolean(R_Styleable_Window_windowShowWallpaper, false);
-            }
-        } catch (Throwable e) {
-            Log.e(TAG, "error on read com.android.internal.R$styleable", e);
-        }
-
-        boolean useDialogStyle = Window_windowIsTranslucent || Window_windowIsFloating || Window_windowShowWallpaper;
+        boolean useDialogStyle = isDialogStyle(targetInfo.packageName, targetInfo.theme);
 
         //先从正在运行的进程中查找看是否有符合条件的进程，如果有则直接使用之
         String stubProcessName1 = mRunningProcessList.getStubProcessByTarget(targetInfo);
         if (stubProcessName1 != null) {
-            List<ActivityInfo> stubInfos = mStaticProcessList.getActivityInfoForProcessName(stubProcessName1, useDialogStyle);
-            for (ActivityInfo stubInfo : stubInfos) {
-                if (stubInfo.launchMode == targetInfo.launchMode) {
-                    if (stubInfo.launchMode == ActivityInfo.LAUNCH_MULTIPLE) {
-                        mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
-                        return stubInfo;
-                    } else if (!mRunningProcessList.isStubInfoUsed(stubInfo, targetInfo, stubProcessName1)) {
-                        mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
-                        return stubInfo;
-                    }
-                }
+            ActivityInfo stubInfo = selectStubActivityInfo(stubProcessName1, useDialogStyle, targetInfo);
+            if (stubInfo != null) {
+                return stubInfo;
             }
         }
 
         List<String> stubProcessNames = mStaticProcessList.getProcessNames();
-        for (String stubProcessName : stubProcessNames) {
-            List<ActivityInfo> stubInfos = mStaticProcessList.getActivityInfoForProcessName(stubProcessName, useDialogStyle);
+        for (int i = 0; i < stubProcessNames.size(); i++) {
+            String stubProcessName = stubProcessNames.get(i);
             if (mRunningProcessList.isProcessRunning(stubProcessName)) {//该预定义的进程正在运行。
                 if (mRunningProcessList.isPkgEmpty(stubProcessName)) {//空进程，没有运行任何插件包。
-                    for (ActivityInfo stubInfo : stubInfos) {
-                        if (stubInfo.launchMode == targetInfo.launchMode) {
-                            if (stubInfo.launchMode == ActivityInfo.LAUNCH_MULTIPLE) {
-                                mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
-                                return stubInfo;
-                            } else if (!mRunningProcessList.isStubInfoUsed(stubInfo, targetInfo, stubProcessName1)) {
-                                mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
-                                return stubInfo;
-                            }
-                        }
+                    ActivityInfo stubInfo = selectStubActivityInfo(stubProcessName, useDialogStyle, targetInfo);
+                    if (stubInfo != null) {
+                        return stubInfo;
                     }
                     throw throwException("没有找到合适的StubInfo");
                 } else if (mRunningProcessList.isPkgCanRunInProcess(targetInfo.packageName, stubProcessName, targetInfo.processName)) {
-                    for (ActivityInfo stubInfo : stubInfos) {
-                        if (stubInfo.launchMode == targetInfo.launchMode) {
-                            if (stubInfo.launchMode == ActivityInfo.LAUNCH_MULTIPLE) {
-                                mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
-                                return stubInfo;
-                            } else if (!mRunningProcessList.isStubInfoUsed(stubInfo, targetInfo, stubProcessName1)) {
-                                mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
-                                return stubInfo;
-                            }
-                        }
+                    ActivityInfo stubInfo = selectStubActivityInfo(stubProcessName, useDialogStyle, targetInfo);
+                    if (stubInfo != null) {
+                        return stubInfo;
                     }
                     throw throwException("没有找到合适的StubInfo");
                 } else {
                     //这里需要考虑签名一样的情况，多个插件公用一个进程。
                 }
             } else { //该预定义的进程没有。
-                for (ActivityInfo stubInfo : stubInfos) {
-                    if (stubInfo.launchMode == targetInfo.launchMode) {
-                        if (stubInfo.launchMode == ActivityInfo.LAUNCH_MULTIPLE) {
-                            mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
-                            return stubInfo;
-                        } else if (!mRunningProcessList.isStubInfoUsed(stubInfo, targetInfo, stubProcessName1)) {
-                            mRunningProcessList.setTargetProcessName(stubInfo, targetInfo);
-                            return stubInfo;
-                        }
-                    }
+                ActivityInfo stubInfo = selectStubActivityInfo(stubProcessName, useDialogStyle, targetInfo);
+                if (stubInfo != null) {
+                    return stubInfo;
                 }
                 throw throwException("没有找到合适的StubInfo");
             }
         }
-        throw throwException("没有可用的进程了");
+        throw throwNoProcessException();
+    }
+
+    private ActivityInfo selectStubActivityInfo(String stubProcessName, boolean dialogStyle, ActivityInfo targetInfo) {
+        ActivityInfo stubInfo = mStubActivitySlots.select(stubProcessName, dialogStyle, targetInfo);
+        if (stubInfo != null) {
+            setTargetProcessName(stubInfo, targetInfo);
+        }
+        return stubInfo;
+    }
+
+    /**
+     * com.android.internal.R.styleable中Window相关的id，每个进程只反射一次
+     */
+    private static class WindowStyleable {
+        private static final int[] Window;
+        private static final int Window_windowIsTranslucent;
+        private static final int Window_windowIsFloating;
+        private static final int Window_windowShowWallpaper;
+
+        static {
+            int[] window = null;
+            int windowIsTranslucent = -1;
+            int windowIsFloating = -1;
+            int windowShowWallpaper = -1;
+            try {
+                Class<?> R_Styleable_Class = Class.forName("com.android.internal.R$styleable");
+                window = (int[]) FieldUtils.readStaticField(R_Styleable_Class, "Window");
+                windowIsTranslucent = (int) FieldUtils.readStaticField(R_Styleable_Class, "Window_windowIsTranslucent");
+                windowIsFloating = (int) FieldUtils.readStaticField(R_Styleable_Class, "Window_windowIsFloating");
+                windowShowWallpaper = (int) FieldUtils.readStaticField(R_Styleable_Class, "Window_windowShowWallpaper");
+            } catch (Throwable e) {
+                Log.e(TAG, "error on read com.android.internal.R$styleable", e);
+                window = null;
+            }
+            Window = window;
+            Window_windowIsTranslucent = windowIsTranslucent;
+            Window_windowIsFloating = windowIsFloating;
+            Window_windowShowWallpaper = windowShowWallpaper;
+        }
+    }
+
+    //插件主题是否需要使用Dialog样式的代理Activity，key=插件包名，value=主题resId到结果的映射。
+    //value写时复制，发布后不再修改，读不加锁。
+    private final Map<String, SparseBooleanArray> mDialogStyleCache = new ConcurrentHashMap<String, SparseBooleanArray>();
+
+    private boolean isDialogStyle(String packageName, int theme) {
+        SparseBooleanArray styles = mDialogStyleCache.get(packageName);
+        if (styles != null) {
+            int index = styles.indexOfKey(theme);
+            if (index >= 0) {
+                return styles.valueAt(index);
+            }
+        }
+        try {
+            return resolveDialogStyle(packageName, theme);
+        } catch (Throwable e) {
+            Log.e(TAG, "error on read window style of %s", e, packageName);
+            return false;
+        }
+    }
+
+    private boolean resolveDialogStyle(String packageName, int theme) {
+        int[] window = WindowStyleable.Window;
+        if (window == null) {
+            return false;
+        }
+        AttributeCache.Entry ent = AttributeCache.instance().get(packageName, theme, window);
+        if (ent == null || ent.array == null) {
+            //读不到资源时不缓存，下次再试
+            return false;
+        }
+        boolean dialogStyle;
+        try {
+            dialogStyle = ent.array.getBoolean(WindowStyleable.Window_windowIsTranslucent, false)
+                    || ent.array.getBoolean(WindowStyleable.Window_windowIsFloating, false)
+                    || ent.array.getBoolean(WindowStyleable.Window_windowShowWallpaper, false);
+        } finally {
+            ent.release();
+        }
+        synchronized (mDialogStyleCache) {
+            SparseBooleanArray old = mDialogStyleCache.get(packageName);
+            //SparseBooleanArray.clone()要API 14，这里手动复制
+            SparseBooleanArray styles = new SparseBooleanArray(old != null ? old.size() + 1 : 4);
+            if (old != null) {
+                for (int i = 0; i < old.size(); i++) {
+                    styles.put(old.keyAt(i), old.valueAt(i));
+                }
+            }
+            styles.put(theme, dialogStyle);
+            mDialogStyleCache.put(packageName, styles);
+        }
+        return dialogStyle;
+    }
+
+    @Override
+    public void onPkgInstalled(Map<String, PluginPackageParser> pluginCache, PluginPackageParser parser, String packageName) throws Exception {
+        super.onPkgInstalled(pluginCache, parser, packageName);
+        //升级后资源可能变了
+        synchronized (mDialogStyleCache) {
+            mDialogStyleCache.remove(packageName);
+        }
+        AttributeCache.instance().removePackage(packageName);
+
+        //安装时就算好每个主题的结果，启动Activity时不用再读资源
+        long b = System.currentTimeMillis();
+        try {
+            for (ActivityInfo info : parser.getActivities()) {
+                isDialogStyle(packageName, info.theme);
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, "precompute dialog style for %s fail", e, packageName);
+        }
+        Log.i(TAG, "precompute dialog style for %s cost %s ms", packageName, (System.currentTimeMillis() - b));
+    }
+
+    @Override
+    public void onPkgDeleted(Map<String, PluginPackageParser> pluginCache, PluginPackageParser parser, String packageName) throws Exception {
+        super.onPkgDeleted(pluginCache, parser, packageName);
+        synchronized (mDialogStyleCache) {
+            mDialogStyleCache.remove(packageName);
+        }
+        AttributeCache.instance().removePackage(packageName);
     }
 
     private static final Comparator<RunningAppProcessInfo> sProcessComparator = new Comparator<RunningAppProcessInfo>() {
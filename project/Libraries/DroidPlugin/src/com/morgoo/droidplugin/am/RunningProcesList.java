@@ -39,8 +39,10 @@ import com.morgoo.helper.Log;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -68,72 +70,82 @@ class RunningProcesList {
         }
     };
 
+    //锁内复制出来的进程信息。checkSignatures、getPackageInfo都是跨进程调用，不能在锁内做，
+    //否则后台回收进程时会挡住Stub的选择
+    private static class PkgsSnapshot {
+        final String stubProcessName;
+        //ProcessItem.pkgs本身只读，可以直接持有
+        final List<String> pkgs;
+
+        PkgsSnapshot(String stubProcessName, List<String> pkgs) {
+            this.stubProcessName = stubProcessName;
+            this.pkgs = pkgs;
+        }
+    }
+
     public String getStubProcessByTarget(ComponentInfo targetInfo) {
-        for (ProcessItem processItem : items.values()) {
-            if (processItem.pkgs.contains(targetInfo.packageName) && TextUtils.equals(processItem.targetProcessName, targetInfo.processName)) {
-                return processItem.stubProcessName;
-            } else {
-                try {
-                    boolean signed = false;
-                    for (String pkg : processItem.pkgs) {
-                        if (PluginManager.getInstance().checkSignatures(targetInfo.packageName, pkg) == PackageManager.SIGNATURE_MATCH) {
-                            signed = true;
-                            break;
-                        }
-                    }
-                    if (signed && TextUtils.equals(processItem.targetProcessName, targetInfo.processName)) {
+        List<PkgsSnapshot> candidates = new ArrayList<PkgsSnapshot>();
+        synchronized (this) {
+            //先找运行着同一个包的进程
+            Set<Integer> pids = mPidsByPkg.get(targetInfo.packageName);
+            if (pids != null) {
+                for (Integer pid : pids) {
+                    ProcessItem processItem = items.get(pid);
+                    if (processItem != null && TextUtils.equals(processItem.targetProcessName, targetInfo.processName)) {
                         return processItem.stubProcessName;
                     }
-                } catch (Exception e) {
-                    Log.e(TAG, "getStubProcessByTarget:error", e);
                 }
             }
+            for (ProcessItem processItem : items.values()) {
+                if (TextUtils.equals(processItem.targetProcessName, targetInfo.processName)) {
+                    candidates.add(new PkgsSnapshot(processItem.stubProcessName, processItem.pkgs));
+                }
+            }
+        }
+
+        //再找运行着相同签名的包的进程
+        for (PkgsSnapshot candidate : candidates) {
+            try {
+                for (String pkg : candidate.pkgs) {
+                    if (PluginManager.getInstance().checkSignatures(targetInfo.packageName, pkg) == PackageManager.SIGNATURE_MATCH) {
+                        return candidate.stubProcessName;
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "getStubProcessByTarget:error", e);
+            }
         }
         return null;
     }
 
     public boolean isPersistentApplication(int pid) {
         //是否是持久化的app。
-        for (ProcessItem processItem : items.values()) {
-            if (processItem.pid == pid) {
-
-                if (processItem.pkgs != null && processItem.pkgs.size() > 0) {
-                    for (String pkg : processItem.pkgs) {
-                        if (isPersistentApp(pkg)) {
-                            return true;
-                        }
-                    }
-                }
-
-                if (processItem.targetActivityInfos != null && processItem.targetActivityInfos.size() > 0) {
-                    for (ActivityInfo info : processItem.targetActivityInfos.values()) {
-                        if ((info.applicationInfo.flags & ApplicationInfo.FLAG_PERSISTENT) != 0) {
-                            return true;
-                        } else if (isPersistentApp(info.packageName)) {
-                            return true;
-                        }
-                    }
-                }
+        List<String> pkgs;
+        List<ComponentInfo> targetInfos;
+        synchronized (this) {
+            ProcessItem processItem = items.get(pid);
+            if (processItem == null) {
+                return false;
+            }
+            pkgs = processItem.pkgs;
+            targetInfos = new ArrayList<ComponentInfo>(processItem.targetActivityInfos.size()
+                    + processItem.targetProviderInfos.size() + processItem.targetServiceInfos.size());
+            targetInfos.addAll(processItem.targetActivityInfos.values());
+            targetInfos.addAll(processItem.targetProviderInfos.values());
+            targetInfos.addAll(processItem.targetServiceInfos.values());
+        }
 
-                if (processItem.targetProviderInfos != null && processItem.targetProviderInfos.size() > 0) {
-                    for (ProviderInfo info : processItem.targetProviderInfos.values()) {
-                        if ((info.applicationInfo.flags & ApplicationInfo.FLAG_PERSISTENT) != 0) {
-                            return true;
-                        } else if (isPersistentApp(info.packageName)) {
-                            return true;
-                        }
-                    }
-                }
+        for (String pkg : pkgs) {
+            if (isPersistentApp(pkg)) {
+                return true;
+            }
+        }
 
-                if (processItem.targetServiceInfos != null && processItem.targetServiceInfos.size() > 0) {
-                    for (ServiceInfo info : processItem.targetServiceInfos.values()) {
-                        if ((info.applicationInfo.flags & ApplicationInfo.FLAG_PERSISTENT) != 0) {
-                            return true;
-                        } else if (isPersistentApp(info.packageName)) {
-                            return true;
-                        }
-                    }
-                }
+        for (ComponentInfo info : targetInfos) {
+            if ((info.applicationInfo.flags & ApplicationInfo.FLAG_PERSISTENT) != 0) {
+                return true;
+            } else if (isPersistentApp(info.packageName)) {
+                return true;
             }
         }
 
@@ -176,7 +188,46 @@ class RunningProcesList {
         private int uid;
         private long startTime;
 
-        private List<String> pkgs = new ArrayList<String>(1);
+        //只读，修改时整体替换，读的人可以直接持有
+        private List<String> pkgs = Collections.emptyList();
+
+        private void addPkg(String pkg) {
+            if (pkg == null || pkgs.contains(pkg)) {
+                return;
+            }
+            ArrayList<String> newList = new ArrayList<String>(pkgs.size() + 1);
+            newList.addAll(pkgs);
+            newList.add(pkg);
+            pkgs = Collections.unmodifiableList(newList);
+            indexAdd(mPidsByPkg, pkg, pid);
+        }
+
+        private void setPkgs(List<String> newList) {
+            for (String pkg : pkgs) {
+                indexRemove(mPidsByPkg, pkg, pid);
+            }
+            ArrayList<String> list = new ArrayList<String>(newList.size());
+            for (String pkg : newList) {
+                if (pkg != null && !list.contains(pkg)) {
+                    list.add(pkg);
+                    indexAdd(mPidsByPkg, pkg, pid);
+                }
+            }
+            pkgs = Collections.unmodifiableList(list);
+        }
+
+        private void setStubProcessName(String name) {
+            if (TextUtils.equals(stubProcessName, name)) {
+                return;
+            }
+            if (stubProcessName != null) {
+                indexRemove(mPidsByStubProcess, stubProcessName, pid);
+            }
+            stubProcessName = name;
+            if (name != null) {
+                indexAdd(mPidsByStubProcess, name, pid);
+            }
+        }
 
         //正在运行的插件ActivityInfo
         //key=ActivityInfo.name, value=插件的ActivityInfo,
@@ -219,8 +270,7 @@ class RunningProcesList {
             for (ProviderInfo info : targetProviderInfos.values()) {
                 newList.add(info.packageName);
             }
-            pkgs.clear();
-            pkgs.addAll(newList);
+            setPkgs(newList);
         }
 
 
@@ -230,9 +280,7 @@ class RunningProcesList {
             }
 
             //pkgs
-            if (!pkgs.contains(info.packageName)) {
-                pkgs.add(info.packageName);
-            }
+            addPkg(info.packageName);
 
             //stub map to activity info
             Set<ActivityInfo> list = activityInfosMap.get(stubActivityName);
@@ -266,9 +314,7 @@ class RunningProcesList {
             if (!targetServiceInfos.containsKey(info.name)) {
                 targetServiceInfos.put(info.name, info);
 
-                if (!pkgs.contains(info.packageName)) {
-                    pkgs.add(info.packageName);
-                }
+                addPkg(info.packageName);
 
                 //stub map to activity info
                 Set<ServiceInfo> list = serviceInfosMap.get(stubServiceName);
@@ -303,9 +349,7 @@ class RunningProcesList {
             if (!targetProviderInfos.containsKey(info.authority)) {
                 targetProviderInfos.put(info.authority, info);
 
-                if (!pkgs.contains(info.packageName)) {
-                    pkgs.add(info.packageName);
-                }
+                addPkg(info.packageName);
 
                 //stub map to activity info
                 Set<ProviderInfo> list = providerInfosMap.get(stubAuthority);
@@ -342,11 +386,63 @@ class RunningProcesList {
     //key=pid, value=ProcessItem;
     private Map<Integer, ProcessItem> items = new HashMap<Integer, ProcessItem>(5);
 
-    ProcessItem removeByPid(int pid) {
-        return items.remove(pid);
+    //反向索引，随ProcessItem的修改一起维护，查询时不用再遍历所有进程
+    //key=预定义进程名, value=pid
+    private Map<String, Set<Integer>> mPidsByStubProcess = new HashMap<String, Set<Integer>>(5);
+    //key=插件包名, value=pid
+    private Map<String, Set<Integer>> mPidsByPkg = new HashMap<String, Set<Integer>>(5);
+
+    private static void indexAdd(Map<String, Set<Integer>> index, String key, int pid) {
+        Set<Integer> pids = index.get(key);
+        if (pids == null) {
+            pids = new LinkedHashSet<Integer>(2);
+            index.put(key, pids);
+        }
+        pids.add(pid);
+    }
+
+    private static void indexRemove(Map<String, Set<Integer>> index, String key, int pid) {
+        Set<Integer> pids = index.get(key);
+        if (pids != null) {
+            pids.remove(pid);
+            if (pids.isEmpty()) {
+                index.remove(key);
+            }
+        }
     }
 
-    List<String> getStubServiceByPid(int pid) {
+    //预定义进程对应的第一个ProcessItem
+    private ProcessItem getItemByStubProcess(String stubProcessName) {
+        Set<Integer> pids = stubProcessName != null ? mPidsByStubProcess.get(stubProcessName) : null;
+        if (pids != null) {
+            for (Integer pid : pids) {
+                ProcessItem item = items.get(pid);
+                if (item != null) {
+                    return item;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ProcessItem removeItem(int pid) {
+        ProcessItem item = items.remove(pid);
+        if (item != null) {
+            if (item.stubProcessName != null) {
+                indexRemove(mPidsByStubProcess, item.stubProcessName, pid);
+            }
+            for (String pkg : item.pkgs) {
+                indexRemove(mPidsByPkg, pkg, pid);
+            }
+        }
+        return item;
+    }
+
+    synchronized ProcessItem removeByPid(int pid) {
+        return removeItem(pid);
+    }
+
+    synchronized List<String> getStubServiceByPid(int pid) {
         ProcessItem item = items.get(pid);
         if (item != null && item.serviceInfosMap != null && item.serviceInfosMap.size() > 0) {
             return new ArrayList<String>(item.serviceInfosMap.keySet());
@@ -355,7 +451,7 @@ class RunningProcesList {
     }
 
 
-    void addActivityInfo(int pid, int uid, ActivityInfo stubInfo, ActivityInfo targetInfo) {
+    synchronized void addActivityInfo(int pid, int uid, ActivityInfo stubInfo, ActivityInfo targetInfo) {
         ProcessItem item = items.get(pid);
         if (TextUtils.isEmpty(targetInfo.processName)) {
             targetInfo.processName = targetInfo.packageName;
@@ -366,15 +462,13 @@ class RunningProcesList {
             item.uid = uid;
             items.put(pid, item);
         }
-        item.stubProcessName = stubInfo.processName;
-        if (!item.pkgs.contains(targetInfo.packageName)) {
-            item.pkgs.add(targetInfo.packageName);
-        }
+        item.setStubProcessName(stubInfo.processName);
+        item.addPkg(targetInfo.packageName);
         item.targetProcessName = targetInfo.processName;
         item.addActivityInfo(stubInfo.name, targetInfo);
     }
 
-    void removeActivityInfo(int pid, int uid, ActivityInfo stubInfo, ActivityInfo targetInfo) {
+    synchronized void removeActivityInfo(int pid, int uid, ActivityInfo stubInfo, ActivityInfo targetInfo) {
         ProcessItem item = items.get(pid);
         if (TextUtils.isEmpty(targetInfo.processName)) {
             targetInfo.processName = targetInfo.packageName;
@@ -385,7 +479,7 @@ class RunningProcesList {
     }
 
 
-    void addServiceInfo(int pid, int uid, ServiceInfo stubInfo, ServiceInfo targetInfo) {
+    synchronized void addServiceInfo(int pid, int uid, ServiceInfo stubInfo, ServiceInfo targetInfo) {
         ProcessItem item = items.get(pid);
         if (TextUtils.isEmpty(targetInfo.processName)) {
             targetInfo.processName = targetInfo.packageName;
@@ -397,15 +491,13 @@ class RunningProcesList {
 
             items.put(pid, item);
         }
-        item.stubProcessName = stubInfo.processName;
-        if (!item.pkgs.contains(targetInfo.packageName)) {
-            item.pkgs.add(targetInfo.packageName);
-        }
+        item.setStubProcessName(stubInfo.processName);
+        item.addPkg(targetInfo.packageName);
         item.targetProcessName = targetInfo.processName;
         item.addServiceInfo(stubInfo.name, targetInfo);
     }
 
-    void removeServiceInfo(int pid, int uid, ServiceInfo stubInfo, ServiceInfo targetInfo) {
+    synchronized void removeServiceInfo(int pid, int uid, ServiceInfo stubInfo, ServiceInfo targetInfo) {
         ProcessItem item = items.get(pid);
         if (TextUtils.isEmpty(targetInfo.processName)) {
             targetInfo.processName = targetInfo.packageName;
@@ -420,7 +512,7 @@ class RunningProcesList {
     }
 
 
-    void addProviderInfo(int pid, int uid, ProviderInfo stubInfo, ProviderInfo targetInfo) {
+    synchronized void addProviderInfo(int pid, int uid, ProviderInfo stubInfo, ProviderInfo targetInfo) {
         ProcessItem item = items.get(pid);
         if (TextUtils.isEmpty(targetInfo.processName)) {
             targetInfo.processName = targetInfo.packageName;
@@ -431,15 +523,13 @@ class RunningProcesList {
             item.uid = uid;
             items.put(pid, item);
         }
-        item.stubProcessName = stubInfo.processName;
-        if (!item.pkgs.contains(targetInfo.packageName)) {
-            item.pkgs.add(targetInfo.packageName);
-        }
+        item.setStubProcessName(stubInfo.processName);
+        item.addPkg(targetInfo.packageName);
         item.targetProcessName = targetInfo.processName;
         item.addProviderInfo(stubInfo.authority, targetInfo);
     }
 
-    void addItem(int pid, int uid) {
+    synchronized void addItem(int pid, int uid) {
         ProcessItem item = items.get(pid);
         if (item == null) {
             item = new ProcessItem();
@@ -454,36 +544,37 @@ class RunningProcesList {
         }
     }
 
-    boolean isProcessRunning(String stubProcessName) {
-        for (ProcessItem processItem : items.values()) {
-            if (TextUtils.equals(stubProcessName, processItem.stubProcessName)) {
-                return true;
-            }
-        }
-        return false;
+    synchronized boolean isProcessRunning(String stubProcessName) {
+        return getItemByStubProcess(stubProcessName) != null;
     }
 
 
     boolean isPkgCanRunInProcess(String packageName, String stubProcessName, String targetProcessName) throws RemoteException {
-        for (ProcessItem item : items.values()) {
-            if (TextUtils.equals(stubProcessName, item.stubProcessName)) {
-
-                if (!TextUtils.isEmpty(item.targetProcessName) && !TextUtils.equals(item.targetProcessName, targetProcessName)) {
-                    continue;
-                }
+        List<PkgsSnapshot> candidates = new ArrayList<PkgsSnapshot>(1);
+        synchronized (this) {
+            Set<Integer> pids = stubProcessName != null ? mPidsByStubProcess.get(stubProcessName) : null;
+            if (pids == null) {
+                return false;
+            }
+            for (Integer pid : pids) {
+                ProcessItem item = items.get(pid);
+                if (item != null) {
 
-                if (item.pkgs.contains(packageName)) {
-                    return true;
-                }
+                    if (!TextUtils.isEmpty(item.targetProcessName) && !TextUtils.equals(item.targetProcessName, targetProcessName)) {
+                        continue;
+                    }
 
-                boolean signed = false;
-                for (String pkg : item.pkgs) {
-                    if (PluginManager.getInstance().checkSignatures(packageName, pkg) == PackageManager.SIGNATURE_MATCH) {
-                        signed = true;
-                        break;
+                    if (item.pkgs.contains(packageName)) {
+                        return true;
                     }
+                    candidates.add(new PkgsSnapshot(item.stubProcessName, item.pkgs));
                 }
-                if (signed) {
+            }
+        }
+
+        for (PkgsSnapshot candidate : candidates) {
+            for (String pkg : candidate.pkgs) {
+                if (PluginManager.getInstance().checkSignatures(packageName, pkg) == PackageManager.SIGNATURE_MATCH) {
                     return true;
                 }
             }
@@ -491,13 +582,9 @@ class RunningProcesList {
         return false;
     }
 
-    boolean isPkgEmpty(String stubProcessName) {
-        for (ProcessItem item : items.values()) {
-            if (TextUtils.equals(stubProcessName, item.stubProcessName)) {
-                return item.pkgs.size() <= 0;
-            }
-        }
-        return true;
+    synchronized boolean isPkgEmpty(String stubProcessName) {
+        ProcessItem item = getItemByStubProcess(stubProcessName);
+        return item == null || item.pkgs.size() <= 0;
     }
 
 
@@ -511,87 +598,72 @@ class RunningProcesList {
         return false;
     }
 
-    boolean isStubInfoUsed(ActivityInfo stubInfo, ActivityInfo targetInfo, String stubProcessName) {
-        for (Integer pid : items.keySet()) {
-            ProcessItem item = items.get(pid);
-            if (TextUtils.equals(item.stubProcessName, stubProcessName)) {
-                Set<ActivityInfo> infos = item.activityInfosMap.get(stubInfo.name);
-                if (infos != null && infos.size() > 0) {
-                    for (ActivityInfo info : infos) {
-                        if (TextUtils.equals(info.name, targetInfo.name) && TextUtils.equals(info.packageName, targetInfo.packageName)) {
-                            return false;
-                        }
-                    }
-                    return true;
-                }
-                return false;
-            }
-        }
-        return false;
-    }
-
-    List<String> getPackageNameByPid(int pid) {
+    synchronized List<String> getPackageNameByPid(int pid) {
         ProcessItem item = items.get(pid);
-        return item != null ? item.pkgs : new ArrayList<String>();
+        return item != null ? item.pkgs : Collections.<String>emptyList();
     }
 
-    String getTargetProcessNameByPid(int pid) {
+    synchronized String getTargetProcessNameByPid(int pid) {
         ProcessItem item = items.get(pid);
         return item != null ? item.targetProcessName : null;
     }
 
-    public String getStubProcessNameByPid(int pid) {
+    public synchronized String getStubProcessNameByPid(int pid) {
         ProcessItem item = items.get(pid);
         return item != null ? item.stubProcessName : null;
     }
 
-    void setTargetProcessName(ComponentInfo stubInfo, ComponentInfo targetInfo) {
-        for (ProcessItem item : items.values()) {
-            if (TextUtils.equals(item.stubProcessName, stubInfo.processName)) {
-                if (!item.pkgs.contains(targetInfo.packageName)) {
-                    item.pkgs.add(targetInfo.packageName);
-                }
+    synchronized void setTargetProcessName(ComponentInfo stubInfo, ComponentInfo targetInfo) {
+        Set<Integer> pids = stubInfo.processName != null ? mPidsByStubProcess.get(stubInfo.processName) : null;
+        if (pids == null) {
+            return;
+        }
+        //addPkg会修改索引，先复制
+        for (Integer pid : pids.toArray(new Integer[pids.size()])) {
+            ProcessItem item = items.get(pid);
+            if (item != null) {
+                item.addPkg(targetInfo.packageName);
                 item.targetProcessName = targetInfo.processName;
             }
         }
     }
 
-    int getActivityCountByPid(int pid) {
+    synchronized int getActivityCountByPid(int pid) {
         ProcessItem item = items.get(pid);
         return item != null ? item.targetActivityInfos.size() : 0;
     }
 
-    int getServiceCountByPid(int pid) {
+    synchronized int getServiceCountByPid(int pid) {
         ProcessItem item = items.get(pid);
         return item != null ? item.targetServiceInfos.size() : 0;
     }
 
-    int getProviderCountByPid(int pid) {
+    synchronized int getProviderCountByPid(int pid) {
         ProcessItem item = items.get(pid);
         return item != null ? item.targetProviderInfos.size() : 0;
     }
 
-    void setProcessName(int pid, String stubProcessName, String targetProcessName, String targetPkg) {
+    synchronized void setProcessName(int pid, String stubProcessName, String targetProcessName, String targetPkg) {
         ProcessItem item = items.get(pid);
         if (item != null) {
-            if (!item.pkgs.contains(targetPkg)) {
-                item.pkgs.add(targetPkg);
-            }
+            item.addPkg(targetPkg);
             item.targetProcessName = targetProcessName;
-            item.stubProcessName = stubProcessName;
+            item.setStubProcessName(stubProcessName);
         }
     }
 
-    void onProcessDied(int pid, int uid) {
+    synchronized void onProcessDied(int pid, int uid) {
         //进程死掉的时候，移除相关item
-        items.remove(pid);
+        removeItem(pid);
     }
 
-    void clear() {
+    synchronized void clear() {
         items.clear();
+        mPidsByStubProcess.clear();
+        mPidsByPkg.clear();
     }
 
-    boolean isPlugin(int pid) {
+    synchronized boolean isPlugin(int pid) {
         ProcessItem item = items.get(pid);
         if (item != null) {
             return !TextUtils.isEmpty(item.stubProcessName) && !TextUtils.isEmpty(item.targetProcessName);
@@ -599,7 +671,7 @@ class RunningProcesList {
         return false;
     }
 
-    void dump(String msg) {
+    synchronized void dump(String msg) {
         StringBuilder sb = new StringBuilder("\r\n\r\ndump[" + msg + "]RunningProcess[");
         for (Integer pid : items.keySet()) {
             ProcessItem item = items.get(pid);
@@ -39,7 +39,6 @@ import com.morgoo.droidplugin.stub.ContentProviderStub;
 
 import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -59,6 +58,9 @@ class StaticProcessList {
 
     private List<String> mOtherProcessNames = new ArrayList<>();
 
+    //onCreate后不再变化，直接返回给调用者，避免每次启动都复制排序
+    private List<String> mProcessNames = Collections.emptyList();
+
 
     /**
      * 我们预注册的进程item
@@ -76,6 +78,38 @@ class StaticProcessList {
         //key=ProviderInfo.authority,value=ProviderInfo
         private Map<String, ProviderInfo> providerInfos = new HashMap<String, ProviderInfo>(1);
 
+        //以下按名字排好序的只读列表在onCreate结束时生成
+        private List<ActivityInfo> sortedActivityInfos;
+        private List<ActivityInfo> sortedDialogActivityInfos;
+        private List<ActivityInfo> sortedNormalActivityInfos;
+        private List<ServiceInfo> sortedServiceInfos;
+        private List<ProviderInfo> sortedProviderInfos;
+
+        private void buildSortedInfos() {
+            ArrayList<ActivityInfo> activities = new ArrayList<ActivityInfo>(activityInfos.values());
+            Collections.sort(activities, sComponentInfoComparator);
+            ArrayList<ActivityInfo> dialogActivities = new ArrayList<ActivityInfo>();
+            ArrayList<ActivityInfo> normalActivities = new ArrayList<ActivityInfo>();
+            for (ActivityInfo info : activities) {
+                if (info.name.startsWith(ActivityStub.Dialog.class.getName())) {
+                    dialogActivities.add(info);
+                } else {
+                    normalActivities.add(info);
+                }
+            }
+            sortedActivityInfos = Collections.unmodifiableList(activities);
+            sortedDialogActivityInfos = Collections.unmodifiableList(dialogActivities);
+            sortedNormalActivityInfos = Collections.unmodifiableList(normalActivities);
+
+            ArrayList<ServiceInfo> services = new ArrayList<ServiceInfo>(serviceInfos.values());
+            Collections.sort(services, sComponentInfoComparator);
+            sortedServiceInfos = Collections.unmodifiableList(services);
+
+            ArrayList<ProviderInfo> providers = new ArrayList<ProviderInfo>(providerInfos.values());
+            Collections.sort(providers, sComponentInfoComparator);
+            sortedProviderInfos = Collections.unmodifiableList(providers);
+        }
+
         private void addActivityInfo(ActivityInfo info) {
             if (!activityInfos.containsKey(info.name)) {
                 activityInfos.put(info.name, info);
@@ -124,6 +158,13 @@ class StaticProcessList {
             }
         }
 
+        ArrayList<String> processNames = new ArrayList<String>(items.keySet());
+        Collections.sort(processNames);
+        for (ProcessItem item : items.values()) {
+            item.buildSortedInfos();
+        }
+        mProcessNames = Collections.unmodifiableList(processNames);
+
         mOtherProcessNames.clear();
         PackageInfo packageInfo1 = pm.getPackageInfo(mHostContext.getPackageName(), PackageManager.GET_ACTIVITIES
                 | PackageManager.GET_RECEIVERS
@@ -244,14 +285,12 @@ class StaticProcessList {
     }
 
     List<String> getProcessNames() {
-        return new ArrayList<String>(items.keySet());
+        return mProcessNames;
     }
 
     List<ActivityInfo> getActivityInfoForProcessName(String processName) {
         ProcessItem item = items.get(processName);
-        ArrayList<ActivityInfo> activityInfos = new ArrayList<ActivityInfo>(item.activityInfos.values());
-        Collections.sort(activityInfos, sComponentInfoComparator);
-        return activityInfos;
+        return item.sortedActivityInfos;
     }
 
 
@@ -264,40 +303,22 @@ class StaticProcessList {
 
     List<ActivityInfo> getActivityInfoForProcessName(String processName, boolean dialogStyle) {
         ProcessItem item = items.get(processName);
-        Collection<ActivityInfo> values = item.activityInfos.values();
-        ArrayList<ActivityInfo> activityInfos = new ArrayList<ActivityInfo>();
-        for (ActivityInfo info : values) {
-            if (dialogStyle) {
-                if (info.name.startsWith(ActivityStub.Dialog.class.getName())) {
-                    activityInfos.add(info);
-                }
-            } else {
-                if (!info.name.startsWith(ActivityStub.Dialog.class.getName())) {
-                    activityInfos.add(info);
-                }
-            }
-        }
-
-        Collections.sort(activityInfos, sComponentInfoComparator);
-        return activityInfos;
+        return dialogStyle ? item.sortedDialogActivityInfos : item.sortedNormalActivityInfos;
     }
 
 
     List<ServiceInfo> getServiceInfoForProcessName(String processName) {
         ProcessItem item = items.get(processName);
-        ArrayList<ServiceInfo> serviceInfos = new ArrayList<ServiceInfo>(item.serviceInfos.values());
-        Collections.sort(serviceInfos, sComponentInfoComparator);
-        return serviceInfos;
+        return item.sortedServiceInfos;
     }
 
     List<ProviderInfo> getProviderInfoForProcessName(String processName) {
         ProcessItem item = items.get(processName);
-        ArrayList<ProviderInfo> providerInfos = new ArrayList<ProviderInfo>(item.providerInfos.values());
-        Collections.sort(providerInfos, sComponentInfoComparator);
-        return providerInfos;
+        return item.sortedProviderInfos;
     }
 
     void clear() {
         items.clear();
+        mProcessNames = Collections.emptyList();
     }
 }
@@ -0,0 +1,178 @@
+/*
+**        DroidPlugin Project
+**
+** Copyright(c) 2015 Andy Zhang <zhangyong232@gmail.com>
+**
+** This file is part of DroidPlugin.
+**
+** DroidPlugin is free software: you can redistribute it and/or
+** modify it under the terms of the GNU Lesser General Public
+** License as published by the Free Software Foundation, either
+** version 3 of the License, or (at your option) any later version.
+**
+** DroidPlugin is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+** Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public
+** License along with DroidPlugin.  If not, see <http://www.gnu.org/licenses/lgpl.txt>
+**
+**/
+
+package com.morgoo.droidplugin.am;
+
+import android.content.pm.ActivityInfo;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 代理Activity的分配表。
+ * <p/>
+ * 启动时按（预定义进程，是否Dialog样式，launchMode）把代理Activity分好组并排好序，之后不再变化。
+ * 每个代理Activity记录当前被哪些插件Activity占用，在onActivityCreated/onActivityDestory和进程死亡时增量更新。
+ * 选择代理Activity时直接取到对应的组，组内只有几个代理Activity，不用再复制排序列表，也不用遍历所有进程。
+ */
+class StubActivitySlots {
+
+    private static final int LAUNCH_MODE_COUNT = 4;
+
+    private static class Occupant {
+        final int pid;
+        final String packageName;
+        final String name;
+
+        Occupant(int pid, String packageName, String name) {
+            this.pid = pid;
+            this.packageName = packageName;
+            this.name = name;
+        }
+
+        boolean matches(ActivityInfo targetInfo) {
+            return TextUtils.equals(name, targetInfo.name) && TextUtils.equals(packageName, targetInfo.packageName);
+        }
+    }
+
+    private static class Slot {
+        final ActivityInfo stubInfo;
+        //正在使用这个代理Activity的插件Activity
+        final List<Occupant> occupants = new ArrayList<Occupant>(1);
+
+        Slot(ActivityInfo stubInfo) {
+            this.stubInfo = stubInfo;
+        }
+
+        //没有被占用，或者被同一个插件Activity占用时可以使用
+        boolean isFreeFor(ActivityInfo targetInfo) {
+            for (int i = 0; i < occupants.size(); i++) {
+                if (occupants.get(i).matches(targetInfo)) {
+                    return true;
+                }
+            }
+            return occupants.isEmpty();
+        }
+    }
+
+    private static final Slot[] EMPTY_SLOTS = new Slot[0];
+
+    //key=预定义进程名，value=[是否Dialog样式][launchMode]
+    private final Map<String, Slot[][][]> mProcessSlots = new HashMap<String, Slot[][][]>();
+    //key=代理ActivityInfo.name
+    private final Map<String, Slot> mSlotsByName = new HashMap<String, Slot>();
+
+    synchronized void init(StaticProcessList staticProcessList) {
+        mProcessSlots.clear();
+        mSlotsByName.clear();
+        for (String processName : staticProcessList.getProcessNames()) {
+            Slot[][][] groups = new Slot[2][LAUNCH_MODE_COUNT][];
+            for (int dialog = 0; dialog < 2; dialog++) {
+                for (int launchMode = 0; launchMode < LAUNCH_MODE_COUNT; launchMode++) {
+                    List<Slot> slots = new ArrayList<Slot>();
+                    for (ActivityInfo stubInfo : staticProcessList.getActivityInfoForProcessName(processName, dialog == 1)) {
+                        if (stubInfo.launchMode == launchMode) {
+                            Slot slot = new Slot(stubInfo);
+                            slots.add(slot);
+                            mSlotsByName.put(stubInfo.name, slot);
+                        }
+                    }
+                    groups[dialog][launchMode] = slots.toArray(new Slot[slots.size()]);
+                }
+            }
+            mProcessSlots.put(processName, groups);
+        }
+    }
+
+    /**
+     * 在预定义进程中选择一个可以运行targetInfo的代理Activity
+     *
+     * @return 没有合适的时返回null
+     */
+    synchronized ActivityInfo select(String stubProcessName, boolean dialogStyle, ActivityInfo targetInfo) {
+        Slot[] slots = getSlots(stubProcessName, dialogStyle, targetInfo.launchMode);
+        if (slots.length == 0) {
+            return null;
+        }
+        if (targetInfo.launchMode == ActivityInfo.LAUNCH_MULTIPLE) {
+            return slots[0].stubInfo;
+        }
+        for (Slot slot : slots) {
+            if (slot.isFreeFor(targetInfo)) {
+                return slot.stubInfo;
+            }
+        }
+        return null;
+    }
+
+    synchronized void onActivityCreated(int pid, ActivityInfo stubInfo, ActivityInfo targetInfo) {
+        Slot slot = stubInfo != null ? mSlotsByName.get(stubInfo.name) : null;
+        if (slot == null || targetInfo == null) {
+            return;
+        }
+        for (Occupant occupant : slot.occupants) {
+            if (occupant.pid == pid && occupant.matches(targetInfo)) {
+                return;
+            }
+        }
+        slot.occupants.add(new Occupant(pid, targetInfo.packageName, targetInfo.name));
+    }
+
+    synchronized void onActivityDestory(int pid, ActivityInfo stubInfo, ActivityInfo targetInfo) {
+        Slot slot = stubInfo != null ? mSlotsByName.get(stubInfo.name) : null;
+        if (slot == null || targetInfo == null) {
+            return;
+        }
+        for (int i = slot.occupants.size() - 1; i >= 0; i--) {
+            Occupant occupant = slot.occupants.get(i);
+            if (occupant.pid == pid && occupant.matches(targetInfo)) {
+                slot.occupants.remove(i);
+            }
+        }
+    }
+
+    synchronized void onProcessDied(int pid) {
+        for (Slot slot : mSlotsByName.values()) {
+            for (int i = slot.occupants.size() - 1; i >= 0; i--) {
+                if (slot.occupants.get(i).pid == pid) {
+                    slot.occupants.remove(i);
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mProcessSlots.clear();
+        mSlotsByName.clear();
+    }
+
+    private Slot[] getSlots(String stubProcessName, boolean dialogStyle, int launchMode) {
+        Slot[][][] groups = stubProcessName != null ? mProcessSlots.get(stubProcessName) : null;
+        if (groups == null || launchMode < 0 || launchMode >= LAUNCH_MODE_COUNT) {
+            return EMPTY_SLOTS;
+        }
+        return groups[dialogStyle ? 1 : 0][launchMode];
+    }
+}
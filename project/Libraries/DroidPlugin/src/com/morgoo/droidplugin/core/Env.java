@@ -36,5 +36,6 @@ public class Env {
     public static final String EXTRA_TARGET_AUTHORITY = "TargetAuthority";
     public static final String EXTRA_TYPE = "com.morgoo.droidplugin.EXTRA_TYPE";
     public static final String EXTRA_ACTION = "com.morgoo.droidplugin.EXTRA_ACTION";
+    public static final String EXTRA_WARM_UP_INFO = "com.morgoo.droidplugin.WarmUpInfo";
 
 }
@@ -93,6 +93,14 @@ public class PluginDirHelper {
         return files;
     }
 
+    public static String getPluginManifestIndexDir(Context context, String pluginInfoPackageName) {
+        return enforceDirExists(new File(makePluginBaseDir(context, pluginInfoPackageName), "ManifestIndex/"));
+    }
+
+    public static String getPluginManifestIndexFile(Context context, String pluginInfoPackageName) {
+        return new File(getPluginManifestIndexDir(context, pluginInfoPackageName), "index.bin").getPath();
+    }
+
     public static String getPluginApkDir(Context context, String pluginInfoPackageName) {
         return enforceDirExists(new File(makePluginBaseDir(context, pluginInfoPackageName), "apk"));
     }
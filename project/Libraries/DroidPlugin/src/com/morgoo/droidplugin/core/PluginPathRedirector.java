@@ -0,0 +1,281 @@
+/*
+**        DroidPlugin Project
+**
+** Copyright(c) 2015 Andy Zhang <zhangyong232@gmail.com>
+**
+** This file is part of DroidPlugin.
+**
+** DroidPlugin is free software: you can redistribute it and/or
+** modify it under the terms of the GNU Lesser General Public
+** License as published by the Free Software Foundation, either
+** version 3 of the License, or (at your option) any later version.
+**
+** DroidPlugin is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+** Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public
+** License along with DroidPlugin.  If not, see <http://www.gnu.org/licenses/lgpl.txt>
+**
+**/
+
+package com.morgoo.droidplugin.core;
+
+import android.content.Context;
+import android.os.Environment;
+
+import com.morgoo.helper.Log;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 插件数据目录的重定向。
+ * <p/>
+ * 把/data/data/插件包名/xxx 替换成/data/data/宿主包名/Plugin/插件包名/data/插件包名/xxx，宿主自己的目录不替换。
+ * <p/>
+ * 文件操作都要经过这里，所以按包名建了一棵字典树，每个包名节点上保存替换后的目录，
+ * 查找时逐个字符走树，不用截取包名，也不用拼接格式化字符串。第一次遇到的包名才加到树里。
+ * 读不加锁，写时复制子节点数组。
+ * <p/>
+ * 插件进程反复访问的往往是同一批路径（shared_prefs、databases、cache等），所以前面再加一层按路径的缓存，
+ * 缓存按字符数计算大小，不停生成临时文件名的插件也只会把旧的挤出去，不会无限增长。插件安装或卸载时清空。
+ * 缓存用ConcurrentHashMap，命中时不加锁；超出大小时由一个线程按second-chance近似LRU淘汰：
+ * 上次淘汰以来被访问过的项只清掉访问标记，没被访问过的才移除。
+ */
+public class PluginPathRedirector {
+
+    private static final String TAG = PluginPathRedirector.class.getSimpleName();
+
+    private static final Node[] EMPTY_NODES = new Node[0];
+
+    //缓存总共最多占用的字符数，大约256KB
+    private static final int CACHE_MAX_CHARS = 128 * 1024;
+    //每个缓存项除字符串内容外的大概开销，按字符数计
+    private static final int CACHE_ENTRY_OVERHEAD = 32;
+    //超出大小时淘汰到这个大小以下，避免每次put都要淘汰
+    private static final int CACHE_TRIM_CHARS = CACHE_MAX_CHARS * 3 / 4;
+    //缓存中表示不需要替换
+    private static final String NO_REDIRECT = new String("");
+
+    private static volatile PluginPathRedirector sInstance;
+
+    private static class Node {
+        final char c;
+        volatile Node[] children = EMPTY_NODES;
+        //替换后的目录，为null表示这个包名不替换
+        volatile String target;
+        volatile boolean terminal;
+
+        Node(char c) {
+            this.c = c;
+        }
+
+        Node child(char c) {
+            Node[] nodes = children;
+            for (Node node : nodes) {
+                if (node.c == c) {
+                    return node;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class CacheEntry {
+        final String value;
+        final int size;
+        //上次淘汰以来是否被访问过
+        volatile boolean referenced;
+
+        CacheEntry(String key, String value) {
+            this.value = value;
+            this.size = key.length() + value.length() + CACHE_ENTRY_OVERHEAD;
+        }
+    }
+
+    // /data/data/
+    private final String mDataRoot;
+    private final String mHostPkg;
+    private final String mHostDataDir;
+    private final Node mRoot = new Node('\0');
+
+    private final ConcurrentHashMap<String, CacheEntry> mCache = new ConcurrentHashMap<String, CacheEntry>(64);
+    private final AtomicInteger mCacheChars = new AtomicInteger(0);
+    private final AtomicBoolean mTrimming = new AtomicBoolean(false);
+    //命中时不用CAS，多线程下会少算一些，调试用足够了
+    private volatile long mHitCount = 0;
+    private final AtomicLong mMissCount = new AtomicLong(0);
+    private final AtomicLong mEvictionCount = new AtomicLong(0);
+
+    private PluginPathRedirector(Context hostContext) {
+        mDataRoot = new File(Environment.getDataDirectory(), "data/").getPath() + File.separator;
+        mHostPkg = hostContext.getPackageName();
+        mHostDataDir = PluginDirHelper.getContextDataDir(hostContext);
+        addPackage(mHostPkg);
+    }
+
+    public static PluginPathRedirector getInstance(Context hostContext) {
+        if (sInstance == null) {
+            synchronized (PluginPathRedirector.class) {
+                if (sInstance == null) {
+                    sInstance = new PluginPathRedirector(hostContext);
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * 插件安装或卸载后调用，清空路径缓存
+     */
+    public static void invalidate() {
+        PluginPathRedirector instance = sInstance;
+        if (instance != null) {
+            if (Log.isDebug()) {
+                Log.i(TAG, "invalidate %s", instance.dump());
+            }
+            instance.clearCache();
+        }
+    }
+
+    /**
+     * 路径缓存的命中情况，调试用
+     */
+    public String dump() {
+        long hits = mHitCount;
+        long misses = mMissCount.get();
+        long total = hits + misses;
+        return String.format("PluginPathRedirector[hits=%d,misses=%d,hitRate=%.1f%%,size=%d,chars=%d,evictions=%d]",
+                hits, misses, total > 0 ? hits * 100f / total : 0f, mCache.size(), mCacheChars.get(), mEvictionCount.get());
+    }
+
+    private void putCache(String key, String value) {
+        CacheEntry entry = new CacheEntry(key, value);
+        if (mCache.putIfAbsent(key, entry) == null && mCacheChars.addAndGet(entry.size) > CACHE_MAX_CHARS) {
+            trimCache();
+        }
+    }
+
+    private void trimCache() {
+        //已经有线程在淘汰了，这次不用管
+        if (!mTrimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            //第一遍可能只是清掉了访问标记，最多再扫一遍
+            for (int pass = 0; pass < 2 && mCacheChars.get() > CACHE_TRIM_CHARS; pass++) {
+                for (Map.Entry<String, CacheEntry> e : mCache.entrySet()) {
+                    CacheEntry entry = e.getValue();
+                    if (entry.referenced) {
+                        entry.referenced = false;
+                    } else if (mCache.remove(e.getKey(), entry)) {
+                        mEvictionCount.incrementAndGet();
+                        if (mCacheChars.addAndGet(-entry.size) <= CACHE_TRIM_CHARS) {
+                            break;
+                        }
+                    }
+                }
+            }
+        } finally {
+            mTrimming.set(false);
+        }
+    }
+
+    private void clearCache() {
+        for (Map.Entry<String, CacheEntry> e : mCache.entrySet()) {
+            CacheEntry entry = e.getValue();
+            if (mCache.remove(e.getKey(), entry)) {
+                mCacheChars.addAndGet(-entry.size);
+            }
+        }
+    }
+
+    /**
+     * @return 替换后的路径，不需要替换时返回null
+     */
+    public String redirect(String path) {
+        final String root = mDataRoot;
+        final int rootLength = root.length();
+        if (path == null || path.length() <= rootLength || path.charAt(1) != root.charAt(1) || !path.startsWith(root)) {
+            return null;
+        }
+        CacheEntry cached = mCache.get(path);
+        if (cached != null) {
+            if (!cached.referenced) {
+                cached.referenced = true;
+            }
+            mHitCount++;
+            return cached.value != NO_REDIRECT ? cached.value : null;
+        }
+        mMissCount.incrementAndGet();
+        String newPath = redirectInPackageTrie(path, rootLength);
+        putCache(path, newPath != null ? newPath : NO_REDIRECT);
+        return newPath;
+    }
+
+    private String redirectInPackageTrie(String path, int rootLength) {
+        final int length = path.length();
+        int end = path.indexOf('/', rootLength);
+        if (end < 0) {
+            end = length;
+        }
+        if (end == rootLength) {
+            return null;
+        }
+
+        Node node = mRoot;
+        for (int i = rootLength; i < end && node != null; i++) {
+            node = node.child(path.charAt(i));
+        }
+        if (node == null || !node.terminal) {
+            node = addPackage(path.substring(rootLength, end));
+        }
+        String target = node.target;
+        if (target == null) {
+            return null;
+        }
+        return new StringBuilder(target.length() + length - end).append(target).append(path, end, length).toString();
+    }
+
+    /**
+     * 替换args中指定位置的路径参数
+     */
+    public void redirect(Object[] args, int index) {
+        if (args != null && args.length > index && args[index] instanceof String) {
+            String newPath = redirect((String) args[index]);
+            if (newPath != null) {
+                args[index] = newPath;
+            }
+        }
+    }
+
+    private synchronized Node addPackage(String pkg) {
+        Node node = mRoot;
+        for (int i = 0; i < pkg.length(); i++) {
+            char c = pkg.charAt(i);
+            Node child = node.child(c);
+            if (child == null) {
+                child = new Node(c);
+                Node[] old = node.children;
+                Node[] nodes = new Node[old.length + 1];
+                System.arraycopy(old, 0, nodes, 0, old.length);
+                nodes[old.length] = child;
+                node.children = nodes;
+            }
+            node = child;
+        }
+        if (!node.terminal) {
+            if (!pkg.equals(mHostPkg)) {
+                node.target = mHostDataDir + "/Plugin/" + pkg + "/data/" + pkg;
+            }
+            node.terminal = true;
+        }
+        return node;
+    }
+}
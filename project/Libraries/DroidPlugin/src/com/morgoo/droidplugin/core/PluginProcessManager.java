@@ -58,10 +58,15 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -74,8 +79,12 @@ public class PluginProcessManager {
 
     private static String sCurrentProcessName;
     private static Object sGetCurrentProcessNameLock = new Object();
-    private static Map<String, ClassLoader> sPluginClassLoaderCache = new WeakHashMap<String, ClassLoader>(1);
-    private static Map<String, Object> sPluginLoadedApkCache = new WeakHashMap<String, Object>(1);
+    //本进程加载过的插件的ClassLoader和LoadedApk，强引用，插件被卸载时才移除。
+    //以前用的WeakHashMap以包名字符串为key，字符串被回收后插件还在运行就丢了缓存，只能重新创建ClassLoader。
+    private static final Map<String, ClassLoader> sPluginClassLoaderCache = new ConcurrentHashMap<String, ClassLoader>(1);
+    private static final Map<String, Object> sPluginLoadedApkCache = new ConcurrentHashMap<String, Object>(1);
+    //插件加载后在后台预先加载的类
+    private static final Map<String, Set<String>> sWarmUpClasses = new ConcurrentHashMap<String, Set<String>>(1);
 
     public static String getCurrentProcessName(Context context) {
         if (context == null)
@@ -177,9 +186,30 @@ public class PluginProcessManager {
             return;
         }
 
+        loadPluginApk(hostContext, pluginInfo);
+        //LoadedApk可能已经在预热线程里创建好了，那时ContextClassLoader设置在了预热线程上
+        ClassLoader classLoader = sPluginClassLoaderCache.get(pluginInfo.packageName);
+        if (classLoader != null) {
+            Thread.currentThread().setContextClassLoader(classLoader);
+        }
+        if (sPluginLoadedApkCache.containsKey(pluginInfo.packageName)) {
+            PluginProcessManager.preMakeApplication(hostContext, pluginInfo);
+        }
+    }
+
+    /**
+     * 服务端给本进程分配了插件组件时调用，这时还没有收到LAUNCH_ACTIVITY等消息，在后台预热这个插件。
+     */
+    public static void onTargetAssigned(Context hostContext, ComponentInfo targetInfo) {
+        if (targetInfo == null || sPluginClassLoaderCache.containsKey(targetInfo.packageName)) {
+            return;
+        }
+        warmUp(hostContext, targetInfo, sWarmUpClasses.get(targetInfo.packageName));
+    }
+
+    private static void loadPluginApk(Context hostContext, ComponentInfo pluginInfo) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, ClassNotFoundException {
         /*添加插件的LoadedApk对象到ActivityThread.mPackages*/
 
-        boolean found = false;
         synchronized (sPluginLoadedApkCache) {
             Object object = ActivityThreadCompat.currentActivityThread();
             if (object != null) {
@@ -192,7 +222,6 @@ public class PluginProcessManager {
                     } else {
                         loadedApk = MethodUtils.invokeMethod(object, "getPackageInfoNoCheck", pluginInfo.applicationInfo);
                     }
-                    sPluginLoadedApkCache.put(pluginInfo.packageName, loadedApk);
 
                 /*添加ClassLoader LoadedApk.mClassLoader*/
 
@@ -217,15 +246,96 @@ public class PluginProcessManager {
                             FieldUtils.writeDeclaredField(loadedApk, "mClassLoader", classloader);
                         }
                         sPluginClassLoaderCache.put(pluginInfo.packageName, classloader);
+                        sPluginLoadedApkCache.put(pluginInfo.packageName, loadedApk);
                         Thread.currentThread().setContextClassLoader(classloader);
-                        found = true;
                     }
                     ProcessCompat.setArgV0(pluginInfo.processName);
                 }
             }
         }
-        if (found) {
-            PluginProcessManager.preMakeApplication(hostContext, pluginInfo);
+    }
+
+    /**
+     * 设置插件分配到本进程后要在后台预先加载的类，比如启动Activity、常用的Fragment等。插件的Application类总会预先加载。
+     */
+    public static void setWarmUpClasses(String packageName, Collection<String> classNames) {
+        if (classNames != null && classNames.size() > 0) {
+            sWarmUpClasses.put(packageName, Collections.unmodifiableSet(new HashSet<String>(classNames)));
+        } else {
+            sWarmUpClasses.remove(packageName);
+        }
+    }
+
+    /**
+     * 在后台线程创建插件的ClassLoader并加载指定的类（不初始化），之后启动插件组件时不用再等这些工作。
+     * 知道本进程将要运行哪个插件时就可以调用，不用等到LAUNCH_ACTIVITY。
+     */
+    public static void warmUp(final Context hostContext, final ComponentInfo pluginInfo, final Collection<String> classNames) {
+        if (hostContext == null || pluginInfo == null || pluginInfo.applicationInfo == null) {
+            return;
+        }
+        new Thread("DroidPlugin@WarmUp") {
+            @Override
+            public void run() {
+                long b = System.currentTimeMillis();
+                int count = 0;
+                try {
+                    loadPluginApk(hostContext, pluginInfo);
+                    ClassLoader classLoader = sPluginClassLoaderCache.get(pluginInfo.packageName);
+                    if (classLoader == null) {
+                        return;
+                    }
+                    List<String> names = new ArrayList<String>();
+                    if (pluginInfo.applicationInfo.className != null) {
+                        names.add(pluginInfo.applicationInfo.className);
+                    }
+                    if (pluginInfo.name != null) {
+                        names.add(pluginInfo.name);
+                    }
+                    if (classNames != null) {
+                        names.addAll(classNames);
+                    }
+                    for (String name : names) {
+                        try {
+                            Class.forName(name, false, classLoader);
+                            count++;
+                        } catch (Throwable e) {
+                            Log.w(TAG, "warmUp load class %s fail", e, name);
+                        }
+                    }
+                } catch (Throwable e) {
+                    Log.e(TAG, "warmUp %s fail", e, pluginInfo.packageName);
+                } finally {
+                    Log.i(TAG, "warmUp %s load %s classes cost %s ms", pluginInfo.packageName, count, (System.currentTimeMillis() - b));
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * 插件被卸载后调用，释放本进程持有的ClassLoader和LoadedApk。
+     */
+    public static void onPluginRemoved(String packageName) {
+        if (packageName == null) {
+            return;
+        }
+        synchronized (sPluginLoadedApkCache) {
+            Object loadedApk = sPluginLoadedApkCache.remove(packageName);
+            sPluginClassLoaderCache.remove(packageName);
+            synchronized (sApplicationsCache) {
+                sApplicationsCache.remove(packageName);
+            }
+            if (loadedApk != null) {
+                try {
+                    Object object = ActivityThreadCompat.currentActivityThread();
+                    if (object != null) {
+                        Object mPackagesObj = FieldUtils.readField(object, "mPackages");
+                        MethodUtils.invokeMethod(mPackagesObj, "remove", packageName);
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "remove %s from mPackages fail", e, packageName);
+                }
+            }
         }
     }
 
@@ -313,9 +423,15 @@ public class PluginProcessManager {
         HookFactory.getInstance().installHook(hostContext, null);
     }
 
-    private static HashMap<String, Application> sApplicationsCache = new HashMap<String, Application>(2);
+    private static final HashMap<String, Application> sApplicationsCache = new HashMap<String, Application>(2);
 
     public static Application getPluginContext(String packageName) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException, ClassNotFoundException {
+        synchronized (sApplicationsCache) {
+            return getPluginContextLocked(packageName);
+        }
+    }
+
+    private static Application getPluginContextLocked(String packageName) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException, ClassNotFoundException {
         if (!sApplicationsCache.containsKey(packageName)) {
             Object at = ActivityThreadCompat.currentActivityThread();
             Object mAllApplications = FieldUtils.readField(at, "mAllApplications");
@@ -28,7 +28,9 @@ import com.morgoo.helper.Log;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -41,6 +43,18 @@ public abstract class BaseHookHandle {
 
     protected Map<String, HookedMethodHandler> sHookedMethodHandlers = new HashMap<String, HookedMethodHandler>(5);
 
+    /**
+     * 没有handler的方法在分发表中用这个占位，直接走原始方法。
+     */
+    private static final HookedMethodHandler NO_HANDLER = new HookedMethodHandler(null);
+
+    /**
+     * Method到handler的分发表，安装hook时预先生成，之后只读。
+     * 这里用Method.equals做key而不是引用相等，因为ART在每次Proxy调用时可能都会新建一个Method对象。
+     * 写入时复制一份新表再整体替换，读取不加锁。
+     */
+    private volatile Map<Method, HookedMethodHandler> mDispatchTable = new HashMap<Method, HookedMethodHandler>(0);
+
     public BaseHookHandle(Context hostContext) {
         mHostContext = hostContext;
         init();
@@ -48,18 +62,87 @@ public abstract class BaseHookHandle {
 
     protected abstract void init();
 
-    public Set<String> getHookedMethodNames(){
-        return sHookedMethodHandlers.keySet();
+    /**
+     * 被hook的方法名，按签名注册的key（例如"getApplicationInfo(java.lang.String,int,int)"）只取方法名部分。
+     */
+    public Set<String> getHookedMethodNames() {
+        Set<String> names = new HashSet<String>(sHookedMethodHandlers.size());
+        for (String key : sHookedMethodHandlers.keySet()) {
+            int index = key.indexOf('(');
+            names.add(index >= 0 ? key.substring(0, index) : key);
+        }
+        return Collections.unmodifiableSet(names);
     }
 
     public HookedMethodHandler getHookedMethodHandler(Method method) {
         if (method != null) {
-            return sHookedMethodHandlers.get(method.getName());
+            HookedMethodHandler handler = mDispatchTable.get(method);
+            if (handler == null) {
+                handler = addToDispatchTable(method);
+            }
+            return handler != NO_HANDLER ? handler : null;
         } else {
             return null;
         }
     }
 
+    /**
+     * 在安装hook时调用，为代理的所有接口方法预先生成分发表，避免每次调用都按方法名查找。
+     */
+    public void prepareDispatchTable(Class<?>[] interfaces) {
+        if (interfaces == null || interfaces.length <= 0) {
+            return;
+        }
+        synchronized (this) {
+            Map<Method, HookedMethodHandler> table = new HashMap<Method, HookedMethodHandler>(mDispatchTable);
+            for (Class<?> anInterface : interfaces) {
+                for (Method method : anInterface.getMethods()) {
+                    if (!table.containsKey(method)) {
+                        table.put(method, resolveHookedMethodHandler(method));
+                    }
+                }
+            }
+            mDispatchTable = table;
+        }
+    }
+
+    private HookedMethodHandler addToDispatchTable(Method method) {
+        synchronized (this) {
+            HookedMethodHandler handler = mDispatchTable.get(method);
+            if (handler == null) {
+                handler = resolveHookedMethodHandler(method);
+                Map<Method, HookedMethodHandler> table = new HashMap<Method, HookedMethodHandler>(mDispatchTable);
+                table.put(method, handler);
+                mDispatchTable = table;
+            }
+            return handler;
+        }
+    }
+
+    /**
+     * 先按完整签名查找，例如"getApplicationInfo(java.lang.String,int,int)"，用来区分同名的重载方法；
+     * 找不到再按方法名查找。
+     */
+    private HookedMethodHandler resolveHookedMethodHandler(Method method) {
+        HookedMethodHandler handler = sHookedMethodHandlers.get(getMethodSignature(method));
+        if (handler == null) {
+            handler = sHookedMethodHandlers.get(method.getName());
+        }
+        return handler != null ? handler : NO_HANDLER;
+    }
+
+    protected static String getMethodSignature(Method method) {
+        StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        for (int i = 0; i < parameterTypes.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(parameterTypes[i].getName());
+        }
+        return sb.append(')').toString();
+    }
+
     protected Class<?> getHookedClass() throws ClassNotFoundException {
         return null;
     }
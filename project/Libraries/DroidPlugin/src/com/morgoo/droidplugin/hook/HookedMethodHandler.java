@@ -32,31 +32,45 @@ public class HookedMethodHandler {
     private static final String TAG = HookedMethodHandler.class.getSimpleName();
     protected final Context mHostContext;
 
-    private Object mFakedResult = null;
-    private boolean mUseFakedResult = false;
+    /**
+     * 每次调用的状态（伪造的返回值等）保存在当前线程的调用帧中，而不是handler的成员变量里，
+     * 这样同一个handler可以被多个线程并发调用，也支持同一线程内的重入调用。
+     */
+    private static final ThreadLocal<InvokeFrame> sCurrentFrame = new ThreadLocal<InvokeFrame>();
+
+    private static final class InvokeFrame {
+        private final InvokeFrame mPrevious;
+        private Object mFakedResult = null;
+        private boolean mUseFakedResult = false;
+
+        private InvokeFrame(InvokeFrame previous) {
+            mPrevious = previous;
+        }
+    }
 
     public HookedMethodHandler(Context hostContext) {
         this.mHostContext = hostContext;
     }
 
 
-    public synchronized Object doHookInner(Object receiver, Method method, Object[] args) throws Throwable {
+    public Object doHookInner(Object receiver, Method method, Object[] args) throws Throwable {
         long b = System.currentTimeMillis();
+        InvokeFrame frame = new InvokeFrame(sCurrentFrame.get());
+        sCurrentFrame.set(frame);
         try {
-            mUseFakedResult = false;
-            mFakedResult = null;
             boolean suc = beforeInvoke(receiver, method, args);
             Object invokeResult = null;
             if (!suc) {
                 invokeResult = method.invoke(receiver, args);
             }
             afterInvoke(receiver, method, args, invokeResult);
-            if (mUseFakedResult) {
-                return mFakedResult;
+            if (frame.mUseFakedResult) {
+                return frame.mFakedResult;
             } else {
                 return invokeResult;
             }
         } finally {
+            sCurrentFrame.set(frame.mPrevious);
             long time = System.currentTimeMillis() - b;
             if (time > 5) {
                 Log.i(TAG, "doHookInner method(%s.%s) cost %s ms", method.getDeclaringClass().getName(), method.getName(), time);
@@ -64,9 +78,17 @@ public class HookedMethodHandler {
         }
     }
 
+    /**
+     * 只能在beforeInvoke/afterInvoke中调用，作用于当前线程正在执行的这次调用
+     */
     public void setFakedResult(Object fakedResult) {
-        this.mFakedResult = fakedResult;
-        mUseFakedResult = true;
+        InvokeFrame frame = sCurrentFrame.get();
+        if (frame != null) {
+            frame.mFakedResult = fakedResult;
+            frame.mUseFakedResult = true;
+        } else {
+            Log.w(TAG, "setFakedResult called outside of doHookInner, ignored");
+        }
     }
 
     /**
@@ -80,10 +102,12 @@ public class HookedMethodHandler {
     }
 
     public boolean isFakedResult() {
-        return mUseFakedResult;
+        InvokeFrame frame = sCurrentFrame.get();
+        return frame != null && frame.mUseFakedResult;
     }
 
     public Object getFakedResult() {
-        return mFakedResult;
+        InvokeFrame frame = sCurrentFrame.get();
+        return frame != null ? frame.mFakedResult : null;
     }
 }
@@ -50,11 +50,8 @@ abstract class BinderHook extends Hook implements InvocationHandler {
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         try {
-            if (!isEnable()) {
-                return method.invoke(mOldObj, args);
-            }
             HookedMethodHandler hookedMethodHandler = mHookHandles.getHookedMethodHandler(method);
-            if (hookedMethodHandler != null) {
+            if (hookedMethodHandler != null && isEnable()) {
                 return hookedMethodHandler.doHookInner(mOldObj, method, args);
             } else {
                 return method.invoke(mOldObj, args);
@@ -119,6 +116,7 @@ abstract class BinderHook extends Hook implements InvocationHandler {
         Class<?> clazz = mOldObj.getClass();
         List<Class<?>> interfaces = Utils.getAllInterfaces(clazz);
         Class[] ifs = interfaces != null && interfaces.size() > 0 ? interfaces.toArray(new Class[interfaces.size()]) : new Class[0];
+        mHookHandles.prepareDispatchTable(ifs);
         Object proxiedObj = MyProxy.newProxyInstance(clazz.getClassLoader(), ifs, this);
         MyServiceManager.addProxiedObj(getServiceName(), proxiedObj);
     }
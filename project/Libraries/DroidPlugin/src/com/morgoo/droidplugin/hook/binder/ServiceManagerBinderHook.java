@@ -62,6 +62,7 @@ public class ServiceManagerBinderHook extends ProxyHook implements InvocationHan
         Class<?> clazz = mOldObj.getClass();
         List<Class<?>> interfaces = Utils.getAllInterfaces(clazz);
         Class[] ifs = interfaces != null && interfaces.size() > 0 ? interfaces.toArray(new Class[interfaces.size()]) : new Class[0];
+        mHookHandles.prepareDispatchTable(ifs);
         Object proxiedObj = MyProxy.newProxyInstance(clazz.getClassLoader(), ifs, this);
         FieldUtils.writeStaticField(ServiceManagerCompat.Class(), "sServiceManager", proxiedObj);
     }
@@ -49,6 +49,7 @@ public class ServiceManagerCacheBinderHook extends Hook implements InvocationHan
 
 
     private String mServiceName;
+    private IBinder mOriginService;
 
     public ServiceManagerCacheBinderHook(Context hostContext, String servicename) {
         super(hostContext);
@@ -77,9 +78,11 @@ public class ServiceManagerCacheBinderHook extends Hook implements InvocationHan
                 }
                 if (mServiceIBinder != null) {
                     MyServiceManager.addOriginService(mServiceName, mServiceIBinder);
+                    mOriginService = mServiceIBinder;
                     Class clazz = mServiceIBinder.getClass();
                     List<Class<?>> interfaces = Utils.getAllInterfaces(clazz);
                     Class[] ifs = interfaces != null && interfaces.size() > 0 ? interfaces.toArray(new Class[interfaces.size()]) : new Class[0];
+                    mHookHandles.prepareDispatchTable(ifs);
                     IBinder mProxyServiceIBinder = (IBinder) MyProxy.newProxyInstance(clazz.getClassLoader(), ifs, this);
                     sCache.put(mServiceName, mProxyServiceIBinder);
                     MyServiceManager.addProxiedServiceCache(mServiceName, mProxyServiceIBinder);
@@ -92,12 +95,9 @@ public class ServiceManagerCacheBinderHook extends Hook implements InvocationHan
     @Override
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
         try {
-            IBinder originService = MyServiceManager.getOriginService(mServiceName);
-            if (!isEnable()) {
-                return method.invoke(originService, args);
-            }
+            IBinder originService = mOriginService != null ? mOriginService : MyServiceManager.getOriginService(mServiceName);
             HookedMethodHandler hookedMethodHandler = mHookHandles.getHookedMethodHandler(method);
-            if (hookedMethodHandler != null) {
+            if (hookedMethodHandler != null && isEnable()) {
                 return hookedMethodHandler.doHookInner(originService, method, args);
             } else {
                 return method.invoke(originService, args);
@@ -32,6 +32,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.content.res.Resources;
@@ -166,9 +167,10 @@ public class IActivityManagerHookHandle extends BaseHookHandle {
                     PluginPatchManager.getInstance().startPluginActivity(intent);
                     return false;
                 }
-                ActivityInfo activityInfo = resolveActivity(intent);
+                List<ActivityInfo> infos = resolveAndSelectProxyActivity(intent);
+                ActivityInfo activityInfo = infos != null ? infos.get(0) : null;
                 if (activityInfo != null && isPackagePlugin(activityInfo.packageName)) {
-                    ComponentName component = selectProxyActivity(intent);
+                    ComponentName component = toComponentName(infos.get(1));
                     if (component != null) {
                         Intent newIntent = new Intent();
                         try {
@@ -231,9 +233,10 @@ public class IActivityManagerHookHandle extends BaseHookHandle {
             int intentOfArgIndex = findFirstIntentIndexInArgs(args);
             if (args != null && args.length > 1 && intentOfArgIndex >= 0) {
                 Intent intent = (Intent) args[intentOfArgIndex];
-                ActivityInfo activityInfo = resolveActivity(intent);
+                List<ActivityInfo> infos = resolveAndSelectProxyActivity(intent);
+                ActivityInfo activityInfo = infos != null ? infos.get(0) : null;
                 if (activityInfo != null && isPackagePlugin(activityInfo.packageName)) {
-                    ComponentName component = selectProxyActivity(intent);
+                    ComponentName component = toComponentName(infos.get(1));
                     if (component != null) {
                         Intent newIntent = new Intent();
                         newIntent.setComponent(component);
@@ -1888,12 +1891,13 @@ public class IActivityManagerHookHandle extends BaseHookHandle {
                     Intent[] intents = (Intent[]) args[index];
                     for (int i = 0; i < intents.length; i++) {
                         Intent intent = intents[i];
-                        ComponentName component = selectProxyActivity(intent);
+                        List<ActivityInfo> infos = resolveAndSelectProxyActivity(intent);
+                        ComponentName component = infos != null ? toComponentName(infos.get(1)) : null;
                         if (component != null) {
                             Intent newIntent = new Intent();
                             newIntent.setComponent(component);
                             newIntent.putExtra(Env.EXTRA_TARGET_INTENT, intent);
-                            ActivityInfo activityInfo = resolveActivity(intent);
+                            ActivityInfo activityInfo = infos.get(0);
                             if (activityInfo != null && TextUtils.equals(mHostContext.getPackageName(), callingPackage)) {
                                 newIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                             }
@@ -1916,7 +1920,6 @@ public class IActivityManagerHookHandle extends BaseHookHandle {
                             Intent newIntent = new Intent();
                             newIntent.setComponent(component);
                             newIntent.putExtra(Env.EXTRA_TARGET_INTENT, intent);
-                            ActivityInfo activityInfo = resolveActivity(intent);
 //                            if (activityInfo != null && TextUtils.equals(mHostContext.getPackageName(), activityInfo.packageName)) {
 //                                newIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
 //                            }
@@ -2060,9 +2063,10 @@ public class IActivityManagerHookHandle extends BaseHookHandle {
         int intentOfArgIndex = findFirstIntentIndexInArgs(args);
         if (args != null && args.length > 1 && intentOfArgIndex >= 0) {
             Intent intent = (Intent) args[intentOfArgIndex];
-            ServiceInfo serviceInfo = resolveService(intent);
+            List<ServiceInfo> infos = resolveAndSelectProxyService(intent);
+            ServiceInfo serviceInfo = infos != null ? infos.get(0) : null;
             if (serviceInfo != null && isPackagePlugin(serviceInfo.packageName)) {
-                ServiceInfo proxyService = selectProxyService(intent);
+                ServiceInfo proxyService = infos.get(1);
                 if (proxyService != null) {
                     Intent newIntent = new Intent();
                     //FIXBUG：https://github.com/Qihoo360/DroidPlugin/issues/122
@@ -2111,18 +2115,39 @@ public class IActivityManagerHookHandle extends BaseHookHandle {
     }
 
 
-    private static ServiceInfo selectProxyService(Intent intent) {
+    /**
+     * 一次跨进程调用完成插件Activity的解析和代理Activity的选择。
+     *
+     * @return [targetInfo, stubInfo]，不是插件Activity时返回null
+     */
+    private static List<ActivityInfo> resolveAndSelectProxyActivity(Intent intent) {
+        if (intent == null) {
+            return null;
+        }
         try {
-            if (intent != null) {
-                ServiceInfo proxyInfo = PluginManager.getInstance().selectStubServiceInfo(intent);
-                if (proxyInfo != null) {
-                    return proxyInfo;
-                }
-            }
+            List<ActivityInfo> infos = PluginManager.getInstance().resolveAndSelectStubActivityInfo(intent);
+            return infos != null && infos.size() == 2 && infos.get(0) != null ? infos : null;
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.w(TAG, "resolveAndSelectProxyActivity fail", e);
+            return null;
         }
-        return null;
+    }
+
+    private static List<ServiceInfo> resolveAndSelectProxyService(Intent intent) {
+        if (intent == null) {
+            return null;
+        }
+        try {
+            List<ServiceInfo> infos = PluginManager.getInstance().resolveAndSelectStubServiceInfo(intent);
+            return infos != null && infos.size() == 2 && infos.get(0) != null ? infos : null;
+        } catch (Exception e) {
+            Log.w(TAG, "resolveAndSelectProxyService fail", e);
+            return null;
+        }
+    }
+
+    private static ComponentName toComponentName(ComponentInfo info) {
+        return info != null ? new ComponentName(info.packageName, info.name) : null;
     }
 
     private static ComponentName selectProxyService(ComponentName componentName) {
@@ -23,13 +23,10 @@
 package com.morgoo.droidplugin.hook.handle;
 
 import android.content.Context;
-import android.os.Environment;
-import android.text.TextUtils;
-import com.morgoo.droidplugin.core.PluginDirHelper;
+import com.morgoo.droidplugin.core.PluginPathRedirector;
 import com.morgoo.droidplugin.hook.BaseHookHandle;
 import com.morgoo.droidplugin.hook.HookedMethodHandler;
 
-import java.io.File;
 import java.lang.reflect.Method;
 
 /**
@@ -63,60 +60,32 @@ public class LibCoreHookHandle extends BaseHookHandle {
 
     private abstract static class BaseLibCore extends HookedMethodHandler {
 
-        private final String mDataDir;
-        private final String mHostDataDir;
-        private final String mHostPkg;
+        private static final int[] PATH_ARG_FIRST = new int[]{0};
+
+        private final PluginPathRedirector mRedirector;
+        //哪些参数是路径
+        private final int[] mPathArgs;
 
         public BaseLibCore(Context context) {
+            this(context, PATH_ARG_FIRST);
+        }
+
+        public BaseLibCore(Context context, int... pathArgs) {
             super(context);
-            mDataDir = new File(Environment.getDataDirectory(), "data/").getPath();
-            mHostDataDir = PluginDirHelper.getContextDataDir(context);
-            mHostPkg = context.getPackageName();
+            mRedirector = PluginPathRedirector.getInstance(context);
+            mPathArgs = pathArgs;
         }
 
 
         @Override
         protected boolean beforeInvoke(Object receiver, Method method, Object[] args) throws Throwable {
 //            Log.i(TAG, "Old %s(%s)", method.getName(), Arrays.toString(args));
-            int index = 0;
-            replace(args, index);
+            for (int index : mPathArgs) {
+                mRedirector.redirect(args, index);
+            }
 //            Log.i(TAG, "New %s(%s)", method.getName(), Arrays.toString(args));
             return super.beforeInvoke(receiver, method, args);
         }
-
-
-        protected void replace(Object[] args, int index) {
-            if (args != null && args.length > index && args[index] instanceof String) {
-                String path = (String) args[index];
-                String newPath = tryReplacePath(path);
-                if (newPath != null) {
-                    args[index] = newPath;
-                }
-            }
-        }
-
-        //传入一个路径，比如/data/data/com.xxx.plugin/xxx 会替换成/data/data/插件宿主包名/Plugin/插件包名/data/插件包名
-        private String tryReplacePath(String tarDir) {
-            //mDataDir=/data/data/
-            //mHostDataDir=/data/data/com.example.TestPlugin/
-            //mHostPkg=com.example.TestPlugin
-            //Old stat([/data/data/com.example.TestPlugin/Plugin/com.qihoo.appstore/apk/base-1.apk])
-            //New stat([/data/data/com.example.TestPlugin/Plugin/com.example.TestPlugin/data/com.example.TestPlugin/Plugin/com.qihoo.appstore/apk/base-1.apk])
-            if (tarDir != null && tarDir.length() > mDataDir.length() && !TextUtils.equals(tarDir, mDataDir) && tarDir.startsWith(mDataDir)) {
-                if (!tarDir.startsWith(mHostDataDir) && !TextUtils.equals(tarDir, mHostDataDir)) {
-                    String pkg = tarDir.substring(mDataDir.length() + 1);
-                    int index = pkg.indexOf("/");
-                    if (index > 0) {
-                        pkg = pkg.substring(0, index);
-                    }
-                    if (!TextUtils.equals(pkg, mHostPkg)) {
-                        tarDir = tarDir.replace(pkg, String.format("%s/Plugin/%s/data/%s", mHostPkg, pkg, pkg));
-                        return tarDir;
-                    }
-                }
-            }
-            return null;
-        }
     }
 
     private class access extends BaseLibCore {
@@ -169,14 +138,7 @@ public class LibCoreHookHandle extends BaseHookHandle {
 
     private class rename extends BaseLibCore {
         public rename(Context context) {
-            super(context);
-        }
-
-        @Override
-        protected boolean beforeInvoke(Object receiver, Method method, Object[] args) throws Throwable {
-            int index = 1;
-            replace(args, index);
-            return super.beforeInvoke(receiver, method, args);
+            super(context, 0, 1);
         }
     }
 
@@ -194,14 +156,7 @@ public class LibCoreHookHandle extends BaseHookHandle {
 
     private class symlink extends BaseLibCore {
         public symlink(Context context) {
-            super(context);
-        }
-
-        @Override
-        protected boolean beforeInvoke(Object receiver, Method method, Object[] args) throws Throwable {
-            int index = 1;
-            replace(args, index);
-            return super.beforeInvoke(receiver, method, args);
+            super(context, 0, 1);
         }
     }
 }
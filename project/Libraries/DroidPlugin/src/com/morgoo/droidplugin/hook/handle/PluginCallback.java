@@ -31,7 +31,9 @@ import android.content.pm.ResolveInfo;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 import com.morgoo.droidplugin.core.Env;
 import com.morgoo.droidplugin.core.PluginProcessManager;
@@ -41,6 +43,9 @@ import com.morgoo.droidplugin.reflect.FieldUtils;
 import com.morgoo.droidplugin.stub.ShortcutProxyActivity;
 import com.morgoo.helper.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 public class PluginCallback implements Handler.Callback {
 
@@ -208,12 +213,84 @@ public class PluginCallback implements Handler.Callback {
 
     private boolean mEnable = false;
 
+    //插件进程最多等待插件管理服务多久，超时后不再等待，直接处理
+    private static final long MAX_WAIT_FOR_CONNECTED = 5000;
+
+    //以下只在主线程访问
+    private final List<Message> mPendingMessages = new ArrayList<Message>();
+    private long mWaitStartTime = 0;
+    private long mTotalWaitTime = 0;
+    private boolean mWaitTimeout = false;
+
+    private final Runnable mOnConnected = new Runnable() {
+        @Override
+        public void run() {
+            if (Looper.myLooper() == mOldHandle.getLooper()) {
+                releasePendingMessages(false);
+            } else {
+                mOldHandle.postAtFrontOfQueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        releasePendingMessages(false);
+                    }
+                });
+            }
+        }
+    };
+
+    private final Runnable mOnWaitTimeout = new Runnable() {
+        @Override
+        public void run() {
+            releasePendingMessages(true);
+        }
+    };
+
     public PluginCallback(Context hostContext, Handler oldHandle, Handler.Callback callback) {
         mOldHandle = oldHandle;
         mCallback = callback;
         mHostContext = hostContext;
     }
 
+    private void waitForConnected(Message msg) {
+        mPendingMessages.add(Message.obtain(msg));
+        if (mPendingMessages.size() == 1) {
+            mWaitStartTime = SystemClock.uptimeMillis();
+            mOldHandle.postDelayed(mOnWaitTimeout, MAX_WAIT_FOR_CONNECTED);
+            PluginManager.getInstance().runOnConnected(mOnConnected);
+        }
+    }
+
+    /**
+     * 连接上插件管理服务或者等待超时后，按顺序处理等待中的消息
+     */
+    private void releasePendingMessages(boolean timeout) {
+        if (mPendingMessages.isEmpty()) {
+            return;
+        }
+        mOldHandle.removeCallbacks(mOnWaitTimeout);
+        PluginManager.getInstance().removeConnectedCallback(mOnConnected);
+        long waitTime = SystemClock.uptimeMillis() - mWaitStartTime;
+        mTotalWaitTime += waitTime;
+        if (timeout) {
+            mWaitTimeout = true;
+            Log.w(TAG, "Wait for PluginManager connected timeout after %s ms, handle %s messages without it", waitTime, mPendingMessages.size());
+        } else {
+            Log.i(TAG, "Wait for PluginManager connected cost %s ms, handle %s messages", waitTime, mPendingMessages.size());
+        }
+        Message[] messages = mPendingMessages.toArray(new Message[mPendingMessages.size()]);
+        mPendingMessages.clear();
+        for (Message message : messages) {
+            mOldHandle.dispatchMessage(message);
+        }
+    }
+
+    /**
+     * 插件进程启动时等待插件管理服务连接所花的时间（毫秒）
+     */
+    public long getTotalWaitTime() {
+        return mTotalWaitTime;
+    }
+
     public void setEnable(boolean enable) {
         this.mEnable = enable;
     }
@@ -230,15 +307,14 @@ public class PluginCallback implements Handler.Callback {
                 return false;
             }
 
-            if (PluginProcessManager.isPluginProcess(mHostContext)) {
-                if (!PluginManager.getInstance().isConnected()) {
-                    //这里必须要这么做。如果当前进程是插件进程，并且，还没有绑定上插件管理服务，我们则把消息延迟一段时间再处理。
-                    //这样虽然会降低启动速度，但是可以解决在没绑定服务就启动，会导致的一系列时序问题。
-                    Log.i(TAG, "handleMessage not isConnected post and wait,msg=%s", msg);
-                    mOldHandle.sendMessageDelayed(Message.obtain(msg), 5);
-                    //返回true，告诉下面的handle不要处理了。
-                    return true;
-                }
+            if (!mPendingMessages.isEmpty() || (!mWaitTimeout && PluginProcessManager.isPluginProcess(mHostContext) && !PluginManager.getInstance().isConnected())) {
+                //这里必须要这么做。如果当前进程是插件进程，并且，还没有绑定上插件管理服务，我们则把消息先存起来，
+                //等连接上服务后按原来的顺序再处理，可以解决在没绑定服务就启动，会导致的一系列时序问题。
+                //已经有消息在等待时，后来的消息也要排在后面。
+                Log.i(TAG, "handleMessage not isConnected queue and wait,msg=%s", msg);
+                waitForConnected(msg);
+                //返回true，告诉下面的handle不要处理了。
+                return true;
             }
 
             if (msg.what == LAUNCH_ACTIVITY) {
@@ -83,6 +83,7 @@ public class IActivityManagerHook extends ProxyHook {
             Class<?> objClass = mOldObj.getClass();
             List<Class<?>> interfaces = Utils.getAllInterfaces(objClass);
             Class[] ifs = interfaces != null && interfaces.size() > 0 ? interfaces.toArray(new Class[interfaces.size()]) : new Class[0];
+            mHookHandles.prepareDispatchTable(ifs);
             Object proxiedActivityManager = MyProxy.newProxyInstance(objClass.getClassLoader(), ifs, this);
             FieldUtils.writeStaticField(cls, "gDefault", proxiedActivityManager);
             Log.i(TAG, "Install ActivityManager Hook 1 old=%s,new=%s", mOldObj, proxiedActivityManager);
@@ -95,6 +96,7 @@ public class IActivityManagerHook extends ProxyHook {
             setOldObj(obj1);
             List<Class<?>> interfaces = Utils.getAllInterfaces(mOldObj.getClass());
             Class[] ifs = interfaces != null && interfaces.size() > 0 ? interfaces.toArray(new Class[interfaces.size()]) : new Class[0];
+            mHookHandles.prepareDispatchTable(ifs);
             final Object object = MyProxy.newProxyInstance(mOldObj.getClass().getClassLoader(), ifs, IActivityManagerHook.this);
             Object iam1 = ActivityManagerNativeCompat.getDefault();
 
@@ -67,6 +67,7 @@ public class IPackageManagerHook extends ProxyHook {
         Class<?> iPmClass = mOldObj.getClass();
         List<Class<?>> interfaces = Utils.getAllInterfaces(iPmClass);
         Class[] ifs = interfaces != null && interfaces.size() > 0 ? interfaces.toArray(new Class[interfaces.size()]) : new Class[0];
+        mHookHandles.prepareDispatchTable(ifs);
         Object newPm = MyProxy.newProxyInstance(iPmClass.getClassLoader(), ifs, this);
         FieldUtils.writeField(currentActivityThread, "sPackageManager", newPm);
         PackageManager pm = mHostContext.getPackageManager();
@@ -70,6 +70,12 @@ public class LibCoreHook extends ProxyHook {
         return re.toArray(new Class[re.size()]);
     }
 
+    @Override
+    public boolean isEnable() {
+        //写日志文件的线程不走hook，否则hook里打日志又会写文件，循环调用
+        return super.isEnable() && !Log.isFileLogThread();
+    }
+
     @Override
     protected void onInstall(ClassLoader classLoader) throws Throwable {
         if (!installHook1()) {
@@ -85,6 +91,7 @@ public class LibCoreHook extends ProxyHook {
             setOldObj(Posix);
             Class<?> aClass = mOldObj.getClass();
             Class<?>[] interfaces = getAllInterfaces(aClass);
+            mHookHandles.prepareDispatchTable(interfaces);
             Object proxyObj = MyProxy.newProxyInstance(mOldObj.getClass().getClassLoader(), interfaces, this);
             FieldUtils.writeField(LibCoreOs, "os", proxyObj, true);
             return true;
@@ -100,6 +107,7 @@ public class LibCoreHook extends ProxyHook {
         setOldObj(oldObj);
         Class<?> aClass = mOldObj.getClass();
         Class<?>[] interfaces = getAllInterfaces(aClass);
+        mHookHandles.prepareDispatchTable(interfaces);
         Object proxyObj = MyProxy.newProxyInstance(mOldObj.getClass().getClassLoader(), interfaces, this);
         FieldUtils.writeStaticField(LibCore, "os", proxyObj);
     }
@@ -52,11 +52,8 @@ public abstract class ProxyHook extends Hook implements InvocationHandler {
     public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
 
         try {
-            if (!isEnable()) {
-                return method.invoke(mOldObj, args);
-            }
             HookedMethodHandler hookedMethodHandler = mHookHandles.getHookedMethodHandler(method);
-            if (hookedMethodHandler != null) {
+            if (hookedMethodHandler != null && isEnable()) {
                 return hookedMethodHandler.doHookInner(mOldObj, method, args);
             }
             return method.invoke(mOldObj, args);
@@ -59,6 +59,7 @@ public class WebViewFactoryProviderHook extends ProxyHook {
         Class<?> clazz = mOldObj.getClass();
         List<Class<?>> interfaces = Utils.getAllInterfaces(clazz);
         Class[] ifs = interfaces != null && interfaces.size() > 0 ? interfaces.toArray(new Class[interfaces.size()]) : new Class[0];
+        mHookHandles.prepareDispatchTable(ifs);
         Object newObj = MyProxy.newProxyInstance(clazz.getClassLoader(), ifs, this);
         FieldUtils.writeStaticField(WebViewFactoryCompat.Class(), "sProviderInstance", newObj);
     }
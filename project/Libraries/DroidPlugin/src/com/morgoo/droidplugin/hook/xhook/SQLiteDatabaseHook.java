@@ -24,14 +24,10 @@ package com.morgoo.droidplugin.hook.xhook;
 
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
-import android.os.Environment;
-import android.text.TextUtils;
-import com.morgoo.droidplugin.core.PluginDirHelper;
+import com.morgoo.droidplugin.core.PluginPathRedirector;
 import com.morgoo.droidplugin.hook.BaseHookHandle;
 import com.morgoo.droidplugin.hook.Hook;
 
-import java.io.File;
-
 /**
  * Created by Andy Zhang(zhangyong232@gmail.com) on 2015/4/1.
  */
@@ -39,16 +35,12 @@ public class SQLiteDatabaseHook extends Hook {
 
     private static final String TAG = "SQLiteDatabaseHook";
 
-    private final String mDataDir;
-    private final String mHostDataDir;
-    private final String mHostPkg;
+    private final PluginPathRedirector mRedirector;
 
 
     public SQLiteDatabaseHook(Context hostContext) {
         super(hostContext);
-        mDataDir = new File(Environment.getDataDirectory(), "data/").getPath();
-        mHostDataDir = PluginDirHelper.getContextDataDir(hostContext);
-        mHostPkg = hostContext.getPackageName();
+        mRedirector = PluginPathRedirector.getInstance(hostContext);
     }
 
     @Override
@@ -56,37 +48,8 @@ public class SQLiteDatabaseHook extends Hook {
         return null;
     }
 
-    //传入一个路径，比如/data/data/com.xxx.plugin/xxx 会替换成/data/data/插件宿主包名/Plugin/插件包名/data/插件包名
-    private String tryReplacePath(String tarDir) {
-        //mDataDir=/data/data/
-        //mHostDataDir=/data/data/com.example.TestPlugin/
-        //mHostPkg=com.example.TestPlugin
-        //Old stat([/data/data/com.example.TestPlugin/Plugin/com.qihoo.appstore/apk/base-1.apk])
-        //New stat([/data/data/com.example.TestPlugin/Plugin/com.example.TestPlugin/data/com.example.TestPlugin/Plugin/com.qihoo.appstore/apk/base-1.apk])
-        if (tarDir != null && tarDir.length() > mDataDir.length() && !TextUtils.equals(tarDir, mDataDir) && tarDir.startsWith(mDataDir)) {
-            if (!tarDir.startsWith(mHostDataDir) && !TextUtils.equals(tarDir, mHostDataDir)) {
-                String pkg = tarDir.substring(mDataDir.length() + 1);
-                int index = pkg.indexOf("/");
-                if (index > 0) {
-                    pkg = pkg.substring(0, index);
-                }
-                if (!TextUtils.equals(pkg, mHostPkg)) {
-                    tarDir = tarDir.replace(pkg, String.format("%s/Plugin/%s/data/%s", mHostPkg, pkg, pkg));
-                    return tarDir;
-                }
-            }
-        }
-        return null;
-    }
-
     protected void replace(Object[] args, int index) {
-        if (args != null && args.length > index && args[index] instanceof String) {
-            String path = (String) args[index];
-            String newPath = tryReplacePath(path);
-            if (newPath != null) {
-                args[index] = newPath;
-            }
-        }
+        mRedirector.redirect(args, index);
     }
 
     @Override
@@ -43,12 +43,15 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.morgoo.droidplugin.am.BaseActivityManagerService;
 import com.morgoo.droidplugin.am.MyActivityManagerService;
-import com.morgoo.droidplugin.core.PluginClassLoader;
 import com.morgoo.droidplugin.core.PluginDirHelper;
 import com.morgoo.droidplugin.pm.parser.IntentMatcher;
 import com.morgoo.droidplugin.pm.parser.PluginPackageParser;
@@ -58,15 +61,25 @@ import com.morgoo.helper.compat.NativeLibraryHelperCompat;
 import com.morgoo.helper.compat.PackageManagerCompat;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 此服务模仿系统的PackageManagerService，提供对插件简单的管理服务。
@@ -76,22 +89,42 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
 
     private static final String TAG = IPluginManagerImpl.class.getSimpleName();
 
+    //安装过程中的临时文件后缀
+    private static final String STAGING_SUFFIX = ".staging";
+    private static final String OLD_SUFFIX = ".old";
+
     private Map<String, PluginPackageParser> mPluginCache = Collections.synchronizedMap(new HashMap<String, PluginPackageParser>(20));
+    //已经卸载的插件，防止后台线程加载完成后又把它放回mPluginCache，需要持有mPluginCache锁访问
+    private Set<String> mDeletedPackages = new HashSet<String>();
 
     private Context mContext;
 
     private AtomicBoolean mHasLoadedOk = new AtomicBoolean(false);
+    //用开机时间做高位初始值，服务进程重启后客户端缓存的旧generation不会碰巧相等
+    private AtomicLong mPluginPackagesGeneration = new AtomicLong(SystemClock.elapsedRealtime() << 20);
     private final Object mLock = new Object();
 
     private BaseActivityManagerService mActivityManagerService;
+    private PluginDexOptimizer mDexOptimizer;
 
     private Set<String> mHostRequestedPermission = new HashSet<String>(10);
 
-    private Map<String, Signature[]> mSignatureCache = new HashMap<String, Signature[]>();
+    private Map<String, Signature[]> mSignatureCache = Collections.synchronizedMap(new HashMap<String, Signature[]>());
+
+    private static volatile Set<String> sPriorityPlugins = null;
+    private static volatile boolean sAheadOfTimeDexOpt = true;
+
+    private static final long PLUGIN_FILE_CHECK_INTERVAL = 5 * 60 * 1000;
+    private static final long PLUGIN_FILE_CHECK_DELAY = 500;
+
+    private HandlerThread mPluginFileCheckThread;
+    private Handler mPluginFileCheckHandler;
+    private FileObserver mPluginDirObserver;
 
     public IPluginManagerImpl(Context context) {
         mContext = context;
         mActivityManagerService = new MyActivityManagerService(mContext);
+        mDexOptimizer = new PluginDexOptimizer(mContext);
     }
 
     public void onCreate() {
@@ -106,6 +139,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     private void onCreateInner() {
         loadAllPlugin(mContext);
         loadHostRequestedPermission();
+        startPluginFileCheck();
         try {
             mHasLoadedOk.set(true);
             synchronized (mLock) {
@@ -130,6 +164,23 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     }
 
 
+    /**
+     * 设置优先加载的插件包名。设置之后，插件管理服务在这些插件加载完成后就进入ready状态，
+     * 其余插件在后台继续加载，加载完成后陆续对外可见，并发送ACTION_PACKAGE_ADDED广播。
+     * 需要在PluginManagerService启动之前调用。
+     */
+    public static void setPriorityPlugins(Collection<String> packageNames) {
+        sPriorityPlugins = packageNames != null ? Collections.unmodifiableSet(new HashSet<String>(packageNames)) : null;
+    }
+
+    /**
+     * 是否在插件安装后和服务启动后，在后台提前优化插件的dex，默认开启。
+     * 关闭后由插件进程第一次创建ClassLoader时再优化。
+     */
+    public static void setAheadOfTimeDexOpt(boolean enable) {
+        sAheadOfTimeDexOpt = enable;
+    }
+
     private void loadAllPlugin(Context context) {
         long b = System.currentTimeMillis();
         ArrayList<File> apkfiles = null;
@@ -153,31 +204,42 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
         b = System.currentTimeMillis();
 
         if (apkfiles != null && apkfiles.size() > 0) {
+            //插件目录名就是插件包名，优先加载的插件先提交，线程池按提交顺序执行
+            Set<String> priorityPlugins = sPriorityPlugins;
+            List<File> priorityFiles = new ArrayList<File>();
+            List<File> otherFiles = new ArrayList<File>();
             for (File pluginFile : apkfiles) {
-                long b1 = System.currentTimeMillis();
-                try {
-                    PluginPackageParser pluginPackageParser = new PluginPackageParser(mContext, pluginFile);
-                    Signature[] signatures = readSignatures(pluginPackageParser.getPackageName());
-                    if (signatures == null || signatures.length <= 0) {
-                        pluginPackageParser.collectCertificates(0);
-                        PackageInfo info = pluginPackageParser.getPackageInfo(PackageManager.GET_SIGNATURES);
-                        saveSignatures(info);
-                    } else {
-                        mSignatureCache.put(pluginPackageParser.getPackageName(), signatures);
-                        pluginPackageParser.writeSignature(signatures);
-                    }
-                    if (!mPluginCache.containsKey(pluginPackageParser.getPackageName())) {
-                        mPluginCache.put(pluginPackageParser.getPackageName(), pluginPackageParser);
-                    }
-                } catch (Throwable e) {
-                    Log.e(TAG, "parse a apk file error %s", e, pluginFile.getPath());
-                } finally {
-                    Log.i(TAG, "Parse %s apk cost %s ms", pluginFile.getPath(), (System.currentTimeMillis() - b1));
+                String pkg = pluginFile.getParentFile().getParentFile().getName();
+                if (priorityPlugins != null && priorityPlugins.contains(pkg)) {
+                    priorityFiles.add(pluginFile);
+                } else {
+                    otherFiles.add(pluginFile);
+                }
+            }
+
+            int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), apkfiles.size()));
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "DroidPlugin@PluginLoader-" + mCount.incrementAndGet());
                 }
+            });
+            List<Future<?>> priorityFutures = submitLoadPlugin(executor, priorityFiles);
+            List<Future<?>> otherFutures = submitLoadPlugin(executor, otherFiles);
+            executor.shutdown();
+
+            waitForLoadPlugin(priorityFutures);
+            if (priorityPlugins != null && priorityPlugins.size() > 0) {
+                Log.i(TAG, "Parse %s priority apk with %s threads cost %s ms, %s apk left in background", priorityFiles.size(), threads, (System.currentTimeMillis() - b), otherFiles.size());
+            } else {
+                waitForLoadPlugin(otherFutures);
+                Log.i(TAG, "Parse all %s apk with %s threads cost %s ms", apkfiles.size(), threads, (System.currentTimeMillis() - b));
             }
         }
 
-        Log.i(TAG, "Parse all apk cost %s ms", (System.currentTimeMillis() - b));
+        mPluginPackagesGeneration.incrementAndGet();
         b = System.currentTimeMillis();
 
         try {
@@ -189,18 +251,149 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
         Log.i(TAG, "ActivityManagerService.onCreate %s ms", (System.currentTimeMillis() - b));
     }
 
-    private void enforcePluginFileExists() throws RemoteException {
-        List<String> removedPkg = new ArrayList<>();
-        for (String pkg : mPluginCache.keySet()) {
-            PluginPackageParser parser = mPluginCache.get(pkg);
+    private List<Future<?>> submitLoadPlugin(ExecutorService executor, List<File> pluginFiles) {
+        List<Future<?>> futures = new ArrayList<Future<?>>(pluginFiles.size());
+        for (final File pluginFile : pluginFiles) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    loadPlugin(pluginFile);
+                }
+            }));
+        }
+        return futures;
+    }
+
+    private void waitForLoadPlugin(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                Log.e(TAG, "wait for load plugin error", e);
+            }
+        }
+    }
+
+    /**
+     * 后台线程可能还在往mPluginCache里添加插件，遍历时要用这里的快照，否则可能抛ConcurrentModificationException。
+     */
+    private List<PluginPackageParser> getPluginPackageParsers() {
+        synchronized (mPluginCache) {
+            return new ArrayList<PluginPackageParser>(mPluginCache.values());
+        }
+    }
+
+    private Map<String, PluginPackageParser> getPluginCacheSnapshot() {
+        synchronized (mPluginCache) {
+            return new HashMap<String, PluginPackageParser>(mPluginCache);
+        }
+    }
+
+    private void loadPlugin(File pluginFile) {
+        long b = System.currentTimeMillis();
+        try {
+            PluginPackageParser pluginPackageParser = new PluginPackageParser(mContext, pluginFile);
+            Signature[] signatures = readSignatures(pluginPackageParser.getPackageName());
+            if (signatures == null || signatures.length <= 0) {
+                pluginPackageParser.collectCertificates(0);
+                PackageInfo info = pluginPackageParser.getPackageInfo(PackageManager.GET_SIGNATURES);
+                saveSignatures(info);
+            } else {
+                mSignatureCache.put(pluginPackageParser.getPackageName(), signatures);
+                pluginPackageParser.writeSignature(signatures);
+            }
+            boolean added = false;
+            synchronized (mPluginCache) {
+                if (!mPluginCache.containsKey(pluginPackageParser.getPackageName())
+                        && !mDeletedPackages.contains(pluginPackageParser.getPackageName())
+                        && pluginFile.exists()) {
+                    mPluginCache.put(pluginPackageParser.getPackageName(), pluginPackageParser);
+                    mPluginPackagesGeneration.incrementAndGet();
+                    added = true;
+                }
+            }
+            if (added && sAheadOfTimeDexOpt) {
+                mDexOptimizer.schedule(pluginPackageParser.getPackageName());
+            }
+            if (added && mHasLoadedOk.get()) {
+                //服务已经ready之后才在后台加载完成的插件，通知客户端刷新插件列表
+                sendInstalledBroadcast(pluginPackageParser.getPackageName());
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, "parse a apk file error %s", e, pluginFile.getPath());
+        } finally {
+            Log.i(TAG, "Parse %s apk on %s cost %s ms", pluginFile.getPath(), Thread.currentThread().getName(), (System.currentTimeMillis() - b));
+        }
+    }
+
+    /**
+     * 插件apk被外部删除时，不在每次查询时检查文件是否存在，而是监听插件目录的变化并定期在后台检查，
+     * 发现apk不存在了就异步卸载该插件。这样查询接口都只是内存操作。
+     */
+    private void startPluginFileCheck() {
+        mPluginFileCheckThread = new HandlerThread("DroidPlugin@PluginFileCheckThread");
+        mPluginFileCheckThread.start();
+        mPluginFileCheckHandler = new Handler(mPluginFileCheckThread.getLooper());
+        try {
+            mPluginDirObserver = new FileObserver(PluginDirHelper.getBaseDir(mContext), FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF) {
+                @Override
+                public void onEvent(int event, String path) {
+                    schedulePluginFileCheck(PLUGIN_FILE_CHECK_DELAY);
+                }
+            };
+            mPluginDirObserver.startWatching();
+        } catch (Exception e) {
+            Log.e(TAG, "start watching plugin dir error", e);
+        }
+        schedulePluginFileCheck(PLUGIN_FILE_CHECK_INTERVAL);
+    }
+
+    private void stopPluginFileCheck() {
+        if (mPluginDirObserver != null) {
+            mPluginDirObserver.stopWatching();
+            mPluginDirObserver = null;
+        }
+        if (mPluginFileCheckThread != null) {
+            mPluginFileCheckHandler.removeCallbacks(mPluginFileCheckRunnable);
+            mPluginFileCheckThread.quit();
+            mPluginFileCheckThread = null;
+        }
+    }
+
+    private void schedulePluginFileCheck(long delay) {
+        Handler handler = mPluginFileCheckHandler;
+        if (handler != null) {
+            handler.removeCallbacks(mPluginFileCheckRunnable);
+            handler.postDelayed(mPluginFileCheckRunnable, delay);
+        }
+    }
+
+    private final Runnable mPluginFileCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                checkPluginFileExists();
+            } catch (Throwable e) {
+                Log.e(TAG, "checkPluginFileExists error", e);
+            } finally {
+                schedulePluginFileCheck(PLUGIN_FILE_CHECK_INTERVAL);
+            }
+        }
+    };
+
+    private void checkPluginFileExists() throws RemoteException {
+        List<PluginPackageParser> parsers = getPluginPackageParsers();
+        List<String> removedPkg = new ArrayList<String>();
+        for (PluginPackageParser parser : parsers) {
             File pluginFile = parser.getPluginFile();
             if (pluginFile != null && pluginFile.exists()) {
                 //DO NOTHING
             } else {
-                removedPkg.add(pkg);
+                removedPkg.add(parser.getPackageName());
             }
         }
         for (String pkg : removedPkg) {
+            Log.w(TAG, "Plugin %s apk file not exists, delete it", pkg);
             deletePackage(pkg, 0);
         }
     }
@@ -224,6 +417,29 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     }
 
 
+    @Override
+    public long getPluginPackagesGeneration() throws RemoteException {
+        waitForReadyInner();
+        return mPluginPackagesGeneration.get();
+    }
+
+    @Override
+    public Map getPluginPackageVersions() throws RemoteException {
+        waitForReadyInner();
+        try {
+            List<PluginPackageParser> parsers = getPluginPackageParsers();
+            Map<String, Integer> versions = new HashMap<String, Integer>(parsers.size());
+            for (PluginPackageParser parser : parsers) {
+                PackageInfo packageInfo = parser.getPackageInfo(0);
+                versions.put(parser.getPackageName(), packageInfo != null ? packageInfo.versionCode : 0);
+            }
+            return versions;
+        } catch (Exception e) {
+            handleException(e);
+        }
+        return null;
+    }
+
     private void handleException(Exception e) throws RemoteException {
         RemoteException remoteException;
         if (VERSION.SDK_INT >= VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
@@ -245,7 +461,6 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
         try {
             String pkg = getAndCheckCallingPkg(packageName);
             if (pkg != null && !TextUtils.equals(packageName, mContext.getPackageName())) {
-                enforcePluginFileExists();
                 PluginPackageParser parser = mPluginCache.get(pkg);
                 if (parser != null) {
                     PackageInfo packageInfo = parser.getPackageInfo(flags);
@@ -265,7 +480,6 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     @Override
     public boolean isPluginPackage(String packageName) throws RemoteException {
         waitForReadyInner();
-        enforcePluginFileExists();
         return mPluginCache.containsKey(packageName);
     }
 
@@ -275,7 +489,6 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
         try {
             String pkg = getAndCheckCallingPkg(className.getPackageName());
             if (pkg != null) {
-                enforcePluginFileExists();
                 PluginPackageParser parser = mPluginCache.get(className.getPackageName());
                 if (parser != null) {
                     return parser.getActivityInfo(className, flags);
@@ -293,7 +506,6 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
         try {
             String pkg = getAndCheckCallingPkg(className.getPackageName());
             if (pkg != null) {
-                enforcePluginFileExists();
                 PluginPackageParser parser = mPluginCache.get(className.getPackageName());
                 if (parser != null) {
                     return parser.getReceiverInfo(className, flags);
@@ -311,7 +523,6 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
         try {
             String pkg = getAndCheckCallingPkg(className.getPackageName());
             if (pkg != null) {
-                enforcePluginFileExists();
                 PluginPackageParser parser = mPluginCache.get(className.getPackageName());
                 if (parser != null) {
                     return parser.getServiceInfo(className, flags);
@@ -330,7 +541,6 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
         try {
             String pkg = getAndCheckCallingPkg(className.getPackageName());
             if (pkg != null) {
-                enforcePluginFileExists();
                 PluginPackageParser parser = mPluginCache.get(className.getPackageName());
                 if (parser != null) {
                     return parser.getProviderInfo(className, flags);
@@ -383,9 +593,8 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public ResolveInfo resolveIntent(Intent intent, String resolvedType, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                List<ResolveInfo> infos = IntentMatcher.resolveIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                List<ResolveInfo> infos = IntentMatcher.resolveIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
                 if (infos != null && infos.size() > 0) {
                     return IntentMatcher.findBest(infos);
                 }
@@ -394,7 +603,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 List<ResolveInfo> infos = new ArrayList<ResolveInfo>();
                 for (String pkg : pkgs) {
                     intent.setPackage(pkg);
-                    List<ResolveInfo> list = IntentMatcher.resolveIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                    List<ResolveInfo> list = IntentMatcher.resolveIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
                     infos.addAll(list);
                 }
                 if (infos != null && infos.size() > 0) {
@@ -412,15 +621,14 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public List<ResolveInfo> queryIntentActivities(Intent intent, String resolvedType, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                return IntentMatcher.resolveActivityIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                return IntentMatcher.resolveActivityIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
                 List<ResolveInfo> infos = new ArrayList<ResolveInfo>();
                 for (String pkg : pkgs) {
                     intent.setPackage(pkg);
-                    List<ResolveInfo> list = IntentMatcher.resolveActivityIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                    List<ResolveInfo> list = IntentMatcher.resolveActivityIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
                     infos.addAll(list);
                 }
                 if (infos != null && infos.size() > 0) {
@@ -437,15 +645,14 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public List<ResolveInfo> queryIntentReceivers(Intent intent, String resolvedType, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                return IntentMatcher.resolveReceiverIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                return IntentMatcher.resolveReceiverIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
                 List<ResolveInfo> infos = new ArrayList<ResolveInfo>();
                 for (String pkg : pkgs) {
                     intent.setPackage(pkg);
-                    List<ResolveInfo> list = IntentMatcher.resolveReceiverIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                    List<ResolveInfo> list = IntentMatcher.resolveReceiverIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
                     infos.addAll(list);
                 }
                 if (infos != null && infos.size() > 0) {
@@ -462,9 +669,8 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public ResolveInfo resolveService(Intent intent, String resolvedType, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                List<ResolveInfo> infos = IntentMatcher.resolveServiceIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                List<ResolveInfo> infos = IntentMatcher.resolveServiceIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
                 if (infos != null && infos.size() > 0) {
                     return IntentMatcher.findBest(infos);
                 }
@@ -473,7 +679,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 List<ResolveInfo> infos = new ArrayList<ResolveInfo>();
                 for (String pkg : pkgs) {
                     intent.setPackage(pkg);
-                    List<ResolveInfo> list = IntentMatcher.resolveServiceIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                    List<ResolveInfo> list = IntentMatcher.resolveServiceIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
                     infos.addAll(list);
                 }
                 if (infos != null && infos.size() > 0) {
@@ -490,15 +696,14 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public List<ResolveInfo> queryIntentServices(Intent intent, String resolvedType, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                return IntentMatcher.resolveServiceIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                return IntentMatcher.resolveServiceIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
                 List<ResolveInfo> infos = new ArrayList<ResolveInfo>();
                 for (String pkg : pkgs) {
                     intent.setPackage(pkg);
-                    List<ResolveInfo> list = IntentMatcher.resolveServiceIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                    List<ResolveInfo> list = IntentMatcher.resolveServiceIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
                     infos.addAll(list);
                 }
                 if (infos != null && infos.size() > 0) {
@@ -515,15 +720,14 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public List<ResolveInfo> queryIntentContentProviders(Intent intent, String resolvedType, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                return IntentMatcher.resolveProviderIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                return IntentMatcher.resolveProviderIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
                 List<ResolveInfo> infos = new ArrayList<ResolveInfo>();
                 for (String pkg : pkgs) {
                     intent.setPackage(pkg);
-                    List<ResolveInfo> list = IntentMatcher.resolveProviderIntent(mContext, mPluginCache, intent, resolvedType, flags);
+                    List<ResolveInfo> list = IntentMatcher.resolveProviderIntent(mContext, getPluginCacheSnapshot(), intent, resolvedType, flags);
                     infos.addAll(list);
                 }
                 if (infos != null && infos.size() > 0) {
@@ -541,15 +745,14 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public List<PackageInfo> getInstalledPackages(int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             List<PackageInfo> infos = new ArrayList<PackageInfo>(mPluginCache.size());
             if (shouldNotBlockOtherInfo()) {
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     infos.add(pluginPackageParser.getPackageInfo(flags));
                 }
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     if (pkgs.contains(pluginPackageParser.getPackageName())) {
                         infos.add(pluginPackageParser.getPackageInfo(flags));
                     }
@@ -566,15 +769,14 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public List<ApplicationInfo> getInstalledApplications(int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             List<ApplicationInfo> infos = new ArrayList<ApplicationInfo>(mPluginCache.size());
             if (shouldNotBlockOtherInfo()) {
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     infos.add(pluginPackageParser.getApplicationInfo(flags));
                 }
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     if (pkgs.contains(pluginPackageParser.getPackageName())) {
                         infos.add(pluginPackageParser.getApplicationInfo(flags));
                     }
@@ -592,9 +794,8 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public PermissionInfo getPermissionInfo(String name, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<PermissionInfo> permissionInfos = pluginPackageParser.getPermissions();
                     for (PermissionInfo permissionInfo : permissionInfos) {
                         if (TextUtils.equals(permissionInfo.name, name)) {
@@ -604,7 +805,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 }
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<PermissionInfo> permissionInfos = pluginPackageParser.getPermissions();
                     for (PermissionInfo permissionInfo : permissionInfos) {
                         if (TextUtils.equals(permissionInfo.name, name) && pkgs.contains(permissionInfo.packageName)) {
@@ -623,10 +824,9 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public List<PermissionInfo> queryPermissionsByGroup(String group, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             List<PermissionInfo> list = new ArrayList<PermissionInfo>();
             if (shouldNotBlockOtherInfo()) {
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<PermissionInfo> permissionInfos = pluginPackageParser.getPermissions();
                     for (PermissionInfo permissionInfo : permissionInfos) {
                         if (TextUtils.equals(permissionInfo.group, group) && !list.contains(permissionInfo)) {
@@ -636,7 +836,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 }
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<PermissionInfo> permissionInfos = pluginPackageParser.getPermissions();
                     for (PermissionInfo permissionInfo : permissionInfos) {
                         if (pkgs.contains(permissionInfo.packageName) && TextUtils.equals(permissionInfo.group, group) && !list.contains(permissionInfo)) {
@@ -656,9 +856,8 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public PermissionGroupInfo getPermissionGroupInfo(String name, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<PermissionGroupInfo> permissionGroupInfos = pluginPackageParser.getPermissionGroups();
                     for (PermissionGroupInfo permissionGroupInfo : permissionGroupInfos) {
                         if (TextUtils.equals(permissionGroupInfo.name, name)) {
@@ -668,7 +867,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 }
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<PermissionGroupInfo> permissionGroupInfos = pluginPackageParser.getPermissionGroups();
                     for (PermissionGroupInfo permissionGroupInfo : permissionGroupInfos) {
                         if (TextUtils.equals(permissionGroupInfo.name, name) && pkgs.contains(permissionGroupInfo.packageName)) {
@@ -687,10 +886,9 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public List<PermissionGroupInfo> getAllPermissionGroups(int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             List<PermissionGroupInfo> list = new ArrayList<PermissionGroupInfo>();
             if (shouldNotBlockOtherInfo()) {
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<PermissionGroupInfo> permissionGroupInfos = pluginPackageParser.getPermissionGroups();
                     for (PermissionGroupInfo permissionGroupInfo : permissionGroupInfos) {
                         if (!list.contains(permissionGroupInfo)) {
@@ -700,7 +898,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 }
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<PermissionGroupInfo> permissionGroupInfos = pluginPackageParser.getPermissionGroups();
                     for (PermissionGroupInfo permissionGroupInfo : permissionGroupInfos) {
                         if (!list.contains(permissionGroupInfo) && pkgs
@@ -721,9 +919,8 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     public ProviderInfo resolveContentProvider(String name, int flags) throws RemoteException {
         waitForReadyInner();
         try {
-            enforcePluginFileExists();
             if (shouldNotBlockOtherInfo()) {
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<ProviderInfo> providerInfos = pluginPackageParser.getProviders();
                     for (ProviderInfo providerInfo : providerInfos) {
                         if (TextUtils.equals(providerInfo.authority, name)) {
@@ -733,7 +930,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 }
             } else {
                 List<String> pkgs = mActivityManagerService.getPackageNamesByPid(Binder.getCallingPid());
-                for (PluginPackageParser pluginPackageParser : mPluginCache.values()) {
+                for (PluginPackageParser pluginPackageParser : getPluginPackageParsers()) {
                     List<ProviderInfo> providerInfos = pluginPackageParser.getProviders();
                     for (ProviderInfo providerInfo : providerInfos) {
                         if (TextUtils.equals(providerInfo.authority, name) && pkgs.contains(providerInfo.packageName)) {
@@ -818,7 +1015,20 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     @Override
     public int installPackage(String filepath, int flags) throws RemoteException {
         //install plugin
+        //先复制到插件目录下的临时文件，校验和解压so都在临时文件上进行，全部成功后再替换正式文件。
+        //替换已有插件时，校验失败不会破坏原来的插件。
         String apkfile = null;
+        File stagingApk = null;
+        File stagingLibDir = null;
+        FutureTask<Integer> nativeLibsTask = null;
+        //替换过程中原来的apk和so目录改名为.old，全部完成后才删除，中途失败时改回去
+        File apk = null;
+        File oldApk = null;
+        File nativeLibDir = null;
+        File oldNativeLibDir = null;
+        boolean apkReplaced = false;
+        boolean libsReplaced = false;
+        boolean installed = false;
         try {
             PackageManager pm = mContext.getPackageManager();
             PackageInfo info = pm.getPackageArchiveInfo(filepath, 0);
@@ -826,107 +1036,154 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 return PackageManagerCompat.INSTALL_FAILED_INVALID_APK;
             }
 
-            apkfile = PluginDirHelper.getPluginApkFile(mContext, info.packageName);
+            boolean replace = (flags & PackageManagerCompat.INSTALL_REPLACE_EXISTING) != 0;
+            if (!replace && mPluginCache.containsKey(info.packageName)) {
+                return PackageManagerCompat.INSTALL_FAILED_ALREADY_EXISTS;
+            }
 
-            if ((flags & PackageManagerCompat.INSTALL_REPLACE_EXISTING) != 0) {
-                forceStopPackage(info.packageName);
-                if (mPluginCache.containsKey(info.packageName)) {
-                    deleteApplicationCacheFiles(info.packageName, null);
-                }
-                new File(apkfile).delete();
-                Utils.copyFile(filepath, apkfile);
-                PluginPackageParser parser = new PluginPackageParser(mContext, new File(apkfile));
-                parser.collectCertificates(0);
-                PackageInfo pkgInfo = parser.getPackageInfo(PackageManager.GET_PERMISSIONS | PackageManager.GET_SIGNATURES);
-                if (pkgInfo != null && pkgInfo.requestedPermissions != null && pkgInfo.requestedPermissions.length > 0) {
-                    for (String requestedPermission : pkgInfo.requestedPermissions) {
-                        boolean b = false;
-                        try {
-                            b = pm.getPermissionInfo(requestedPermission, 0) != null;
-                        } catch (NameNotFoundException e) {
-                        }
-                        if (!mHostRequestedPermission.contains(requestedPermission) && b) {
-                            Log.e(TAG, "No Permission %s", requestedPermission);
-                            new File(apkfile).delete();
-                            return PluginManager.INSTALL_FAILED_NO_REQUESTEDPERMISSION;
-                        }
-                    }
-                }
-                saveSignatures(pkgInfo);
-//                if (pkgInfo.reqFeatures != null && pkgInfo.reqFeatures.length > 0) {
-//                    for (FeatureInfo reqFeature : pkgInfo.reqFeatures) {
-//                        Log.e(TAG, "reqFeature name=%s,flags=%s,glesVersion=%s", reqFeature.name, reqFeature.flags, reqFeature.getGlEsVersion());
-//                    }
+            long b = System.currentTimeMillis();
+            apkfile = PluginDirHelper.getPluginApkFile(mContext, info.packageName);
+            String libDir = PluginDirHelper.getPluginNativeLibraryDir(mContext, info.packageName);
+            stagingApk = new File(apkfile + STAGING_SUFFIX);
+            stagingLibDir = new File(libDir + STAGING_SUFFIX);
+            stagingApk.delete();
+            Utils.deleteDir(stagingLibDir.getPath());
+            stagingLibDir.mkdirs();
+            Utils.copyFile(filepath, stagingApk.getPath());
+            Log.i(TAG, "Copy %s cost %s ms", filepath, (System.currentTimeMillis() - b));
+
+            //解压so和校验签名同时进行，两者都要完整读一遍apk
+            nativeLibsTask = startCopyNativeLibs(stagingApk, stagingLibDir, new File(libDir));
+            PluginPackageParser stagingParser = new PluginPackageParser(mContext, stagingApk);
+            stagingParser.collectCertificates(0);
+            PackageInfo pkgInfo = stagingParser.getPackageInfo(PackageManager.GET_PERMISSIONS | PackageManager.GET_SIGNATURES);
+            if (!checkRequestedPermissions(pm, pkgInfo)) {
+                return PluginManager.INSTALL_FAILED_NO_REQUESTEDPERMISSION;
+            }
+//            if (pkgInfo.reqFeatures != null && pkgInfo.reqFeatures.length > 0) {
+//                for (FeatureInfo reqFeature : pkgInfo.reqFeatures) {
+//                    Log.e(TAG, "reqFeature name=%s,flags=%s,glesVersion=%s", reqFeature.name, reqFeature.flags, reqFeature.getGlEsVersion());
 //                }
-                if (copyNativeLibs(mContext, apkfile, parser.getApplicationInfo(0)) < 0) {
-                    new File(apkfile).delete();
-                    return PackageManagerCompat.INSTALL_FAILED_NOT_SUPPORT_ABI;
-                }
+//            }
+            int nativeLibsResult = nativeLibsTask.get();
+            nativeLibsTask = null;
+            if (nativeLibsResult < 0) {
+                return PackageManagerCompat.INSTALL_FAILED_NOT_SUPPORT_ABI;
+            }
+            Log.i(TAG, "Verify %s cost %s ms", filepath, (System.currentTimeMillis() - b));
 
-                dexOpt(mContext, apkfile, parser);
-                mPluginCache.put(parser.getPackageName(), parser);
-                mActivityManagerService.onPkgInstalled(mPluginCache, parser, parser.getPackageName());
-                sendInstalledBroadcast(info.packageName);
-                return PackageManagerCompat.INSTALL_SUCCEEDED;
+            forceStopPackage(info.packageName);
+            if (replace && mPluginCache.containsKey(info.packageName)) {
+                deleteApplicationCacheFiles(info.packageName, null);
+            }
+            apk = new File(apkfile);
+            oldApk = new File(apkfile + OLD_SUFFIX);
+            nativeLibDir = new File(libDir);
+            oldNativeLibDir = new File(libDir + OLD_SUFFIX);
+            replaceWithBackup(stagingApk, apk, oldApk);
+            apkReplaced = true;
+            //临时文件已经解析过了，改名不改变大小和修改时间，直接给正式的apk写索引，下面创建parser时不用再解析一遍
+            stagingParser.writeManifestIndex(apk);
+            replaceWithBackup(stagingLibDir, nativeLibDir, oldNativeLibDir);
+            libsReplaced = true;
+
+            PluginPackageParser parser = new PluginPackageParser(mContext, apk);
+            //签名已经在临时文件上校验过了，不用再读一遍apk
+            parser.writeSignature(pkgInfo.signatures);
+            if (sAheadOfTimeDexOpt) {
+                mDexOptimizer.reset(parser.getPackageName());
             } else {
-                if (mPluginCache.containsKey(info.packageName)) {
-                    return PackageManagerCompat.INSTALL_FAILED_ALREADY_EXISTS;
-                } else {
-                    forceStopPackage(info.packageName);
-                    new File(apkfile).delete();
-                    Utils.copyFile(filepath, apkfile);
-                    PluginPackageParser parser = new PluginPackageParser(mContext, new File(apkfile));
-                    parser.collectCertificates(0);
-                    PackageInfo pkgInfo = parser.getPackageInfo(PackageManager.GET_PERMISSIONS | PackageManager.GET_SIGNATURES);
-                    if (pkgInfo != null && pkgInfo.requestedPermissions != null && pkgInfo.requestedPermissions.length > 0) {
-                        for (String requestedPermission : pkgInfo.requestedPermissions) {
-                            boolean b = false;
-                            try {
-                                b = pm.getPermissionInfo(requestedPermission, 0) != null;
-                            } catch (NameNotFoundException e) {
-                            }
-                            if (!mHostRequestedPermission.contains(requestedPermission) && b) {
-                                Log.e(TAG, "No Permission %s", requestedPermission);
-                                new File(apkfile).delete();
-                                return PluginManager.INSTALL_FAILED_NO_REQUESTEDPERMISSION;
-                            }
-                        }
-                    }
-                    saveSignatures(pkgInfo);
-//                    if (pkgInfo.reqFeatures != null && pkgInfo.reqFeatures.length > 0) {
-//                        for (FeatureInfo reqFeature : pkgInfo.reqFeatures) {
-//                            Log.e(TAG, "reqFeature name=%s,flags=%s,glesVersion=%s", reqFeature.name, reqFeature.flags, reqFeature.getGlEsVersion());
-//                        }
-//                    }
-
-                    if (copyNativeLibs(mContext, apkfile, parser.getApplicationInfo(0)) < 0) {
-                        new File(apkfile).delete();
-                        return PackageManagerCompat.INSTALL_FAILED_NOT_SUPPORT_ABI;
-                    }
-
-                    dexOpt(mContext, apkfile, parser);
-                    mPluginCache.put(parser.getPackageName(), parser);
-                    mActivityManagerService.onPkgInstalled(mPluginCache, parser, parser.getPackageName());
-                    sendInstalledBroadcast(info.packageName);
-                    return PackageManagerCompat.INSTALL_SUCCEEDED;
-                }
+                PluginDirHelper.cleanOptimizedDirectory(PluginDirHelper.getPluginDalvikCacheDir(mContext, parser.getPackageName()));
             }
+            saveSignatures(pkgInfo);
+            synchronized (mPluginCache) {
+                mDeletedPackages.remove(parser.getPackageName());
+                mPluginCache.put(parser.getPackageName(), parser);
+            }
+            installed = true;
+            Utils.deleteDir(oldNativeLibDir.getPath());
+            oldApk.delete();
+            mPluginPackagesGeneration.incrementAndGet();
+            mActivityManagerService.onPkgInstalled(mPluginCache, parser, parser.getPackageName());
+            sendInstalledBroadcast(info.packageName);
+            return PackageManagerCompat.INSTALL_SUCCEEDED;
         } catch (Exception e) {
-            if (apkfile != null) {
-                new File(apkfile).delete();
+            if (!installed) {
+                //还没有替换成功，恢复原来的插件
+                if (libsReplaced) {
+                    restoreFromBackup(nativeLibDir, oldNativeLibDir);
+                }
+                if (apkReplaced) {
+                    restoreFromBackup(apk, oldApk);
+                }
             }
             handleException(e);
             return PackageManagerCompat.INSTALL_FAILED_INTERNAL_ERROR;
+        } finally {
+            if (nativeLibsTask != null) {
+                //等解压结束再删除临时目录
+                try {
+                    nativeLibsTask.get();
+                } catch (Exception e) {
+                }
+            }
+            if (stagingApk != null) {
+                stagingApk.delete();
+            }
+            if (stagingLibDir != null) {
+                Utils.deleteDir(stagingLibDir.getPath());
+            }
+        }
+    }
+
+    private boolean checkRequestedPermissions(PackageManager pm, PackageInfo pkgInfo) {
+        if (pkgInfo != null && pkgInfo.requestedPermissions != null && pkgInfo.requestedPermissions.length > 0) {
+            for (String requestedPermission : pkgInfo.requestedPermissions) {
+                boolean b = false;
+                try {
+                    b = pm.getPermissionInfo(requestedPermission, 0) != null;
+                } catch (NameNotFoundException e) {
+                }
+                if (!mHostRequestedPermission.contains(requestedPermission) && b) {
+                    Log.e(TAG, "No Permission %s", requestedPermission);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private FutureTask<Integer> startCopyNativeLibs(final File apkFile, final File nativeLibraryDir, final File installedLibraryDir) {
+        FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return NativeLibraryHelperCompat.copyNativeBinaries(apkFile, nativeLibraryDir, installedLibraryDir);
+            }
+        });
+        new Thread(task, "DroidPlugin@CopyNativeLibs").start();
+        return task;
+    }
+
+    /**
+     * 用src替换dst，原来的dst改名为old保留，由调用方在成功后删除或用restoreFromBackup恢复。
+     * 这一步失败时dst保持不变。
+     */
+    private static void replaceWithBackup(File src, File dst, File old) throws IOException {
+        Utils.deleteDir(old.getPath());
+        if (dst.exists() && !dst.renameTo(old)) {
+            throw new IOException("rename " + dst.getPath() + " fail");
+        }
+        if (!src.renameTo(dst)) {
+            old.renameTo(dst);
+            throw new IOException("rename " + src.getPath() + " fail");
         }
     }
 
-    private void dexOpt(Context hostContext, String apkfile, PluginPackageParser parser) throws Exception {
-        String packageName = parser.getPackageName();
-        String optimizedDirectory = PluginDirHelper.getPluginDalvikCacheDir(hostContext, packageName);
-        String libraryPath = PluginDirHelper.getPluginNativeLibraryDir(hostContext, packageName);
-        ClassLoader classloader = new PluginClassLoader(apkfile, optimizedDirectory, libraryPath,hostContext.getClassLoader().getParent());
-//        DexFile dexFile = DexFile.loadDex(apkfile, PluginDirHelper.getPluginDalvikCacheFile(mContext, parser.getPackageName()), 0);
-//        Log.e(TAG, "dexFile=%s,1=%s,2=%s", dexFile, DexFile.isDexOptNeeded(apkfile), DexFile.isDexOptNeeded(PluginDirHelper.getPluginDalvikCacheFile(mContext, parser.getPackageName())));
+    private static void restoreFromBackup(File dst, File old) {
+        Utils.deleteDir(dst.getPath());
+        if (old.exists() && !old.renameTo(dst)) {
+            Log.e(TAG, "restore %s fail", dst.getPath());
+        }
     }
 
     private void saveSignatures(PackageInfo pkgInfo) {
@@ -986,12 +1243,6 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
         mContext.sendBroadcast(intent);
     }
 
-    private int copyNativeLibs(Context context, String apkfile, ApplicationInfo applicationInfo) throws Exception {
-        String nativeLibraryDir = PluginDirHelper.getPluginNativeLibraryDir(context, applicationInfo.packageName);
-        return NativeLibraryHelperCompat.copyNativeBinaries(new File(apkfile), new File(nativeLibraryDir));
-    }
-
-
     @Override
     public int deletePackage(String packageName, int flags) throws RemoteException {
         try {
@@ -1001,7 +1252,9 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
                 PluginPackageParser parser;
                 synchronized (mPluginCache) {
                     parser = mPluginCache.remove(packageName);
+                    mDeletedPackages.add(packageName);
                 }
+                mPluginPackagesGeneration.incrementAndGet();
                 Utils.deleteDir(PluginDirHelper.makePluginBaseDir(mContext, packageName));
                 mActivityManagerService.onPkgDeleted(mPluginCache, parser, packageName);
                 mSignatureCache.remove(packageName);
@@ -1120,16 +1373,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
 
     @Override
     public ActivityInfo selectStubActivityInfoByIntent(Intent intent) throws RemoteException {
-        ActivityInfo ai = null;
-        if (intent.getComponent() != null) {
-            ai = getActivityInfo(intent.getComponent(), 0);
-        } else {
-            ResolveInfo resolveInfo = resolveIntent(intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), 0);
-            if (resolveInfo != null && resolveInfo.activityInfo != null) {
-                ai = resolveInfo.activityInfo;
-            }
-        }
-
+        ActivityInfo ai = resolveTargetActivityInfo(intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()));
         if (ai != null) {
             return selectStubActivityInfo(ai);
         }
@@ -1143,22 +1387,67 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
 
     @Override
     public ServiceInfo selectStubServiceInfoByIntent(Intent intent) throws RemoteException {
-        ServiceInfo ai = null;
-        if (intent.getComponent() != null) {
-            ai = getServiceInfo(intent.getComponent(), 0);
-        } else {
-            ResolveInfo resolveInfo = resolveIntent(intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), 0);
-            if (resolveInfo.serviceInfo != null) {
-                ai = resolveInfo.serviceInfo;
-            }
-        }
-
+        ServiceInfo ai = resolveTargetServiceInfo(intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()));
         if (ai != null) {
             return selectStubServiceInfo(ai);
         }
         return null;
     }
 
+    @Override
+    public List<ActivityInfo> resolveAndSelectStubActivityInfo(Intent targetIntent, String resolvedType) throws RemoteException {
+        ActivityInfo targetInfo = resolveTargetActivityInfo(targetIntent, resolvedType);
+        if (targetInfo == null) {
+            return null;
+        }
+        List<ActivityInfo> infos = new ArrayList<ActivityInfo>(2);
+        infos.add(targetInfo);
+        ActivityInfo stubInfo = null;
+        try {
+            stubInfo = selectStubActivityInfo(targetInfo);
+        } catch (Exception e) {
+            //没有可用的代理Activity时不要把异常抛给调用方，stubInfo为null时客户端按原来的Intent启动
+            Log.e(TAG, "select stub activity for %s fail", e, targetInfo.name);
+        }
+        infos.add(stubInfo);
+        return infos;
+    }
+
+    @Override
+    public List<ServiceInfo> resolveAndSelectStubServiceInfo(Intent targetIntent, String resolvedType) throws RemoteException {
+        ServiceInfo targetInfo = resolveTargetServiceInfo(targetIntent, resolvedType);
+        if (targetInfo == null) {
+            return null;
+        }
+        List<ServiceInfo> infos = new ArrayList<ServiceInfo>(2);
+        infos.add(targetInfo);
+        ServiceInfo stubInfo = null;
+        try {
+            stubInfo = selectStubServiceInfo(targetInfo);
+        } catch (Exception e) {
+            //没有可用的代理Service时不要把异常抛给调用方，stubInfo为null时客户端按原来的Intent启动
+            Log.e(TAG, "select stub service for %s fail", e, targetInfo.name);
+        }
+        infos.add(stubInfo);
+        return infos;
+    }
+
+    private ActivityInfo resolveTargetActivityInfo(Intent intent, String resolvedType) throws RemoteException {
+        if (intent.getComponent() != null) {
+            return getActivityInfo(intent.getComponent(), 0);
+        }
+        ResolveInfo resolveInfo = resolveIntent(intent, resolvedType, 0);
+        return resolveInfo != null ? resolveInfo.activityInfo : null;
+    }
+
+    private ServiceInfo resolveTargetServiceInfo(Intent intent, String resolvedType) throws RemoteException {
+        if (intent.getComponent() != null) {
+            return getServiceInfo(intent.getComponent(), 0);
+        }
+        ResolveInfo resolveInfo = resolveIntent(intent, resolvedType, 0);
+        return resolveInfo != null ? resolveInfo.serviceInfo : null;
+    }
+
 
     @Override
     public ServiceInfo getTargetServiceInfo(ServiceInfo targetInfo) throws RemoteException {
@@ -1257,6 +1546,7 @@ public class IPluginManagerImpl extends IPluginManager.Stub {
     }
 
     public void onDestroy() {
+        stopPluginFileCheck();
         mActivityManagerService.onDestory();
     }
 
@@ -0,0 +1,168 @@
+/*
+**        DroidPlugin Project
+**
+** Copyright(c) 2015 Andy Zhang <zhangyong232@gmail.com>
+**
+** This file is part of DroidPlugin.
+**
+** DroidPlugin is free software: you can redistribute it and/or
+** modify it under the terms of the GNU Lesser General Public
+** License as published by the Free Software Foundation, either
+** version 3 of the License, or (at your option) any later version.
+**
+** DroidPlugin is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+** Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public
+** License along with DroidPlugin.  If not, see <http://www.gnu.org/licenses/lgpl.txt>
+**
+**/
+
+package com.morgoo.droidplugin.pm;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Process;
+import android.text.TextUtils;
+
+import com.morgoo.droidplugin.core.PluginDirHelper;
+import com.morgoo.helper.Log;
+import com.morgoo.helper.Utils;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import dalvik.system.DexFile;
+
+/**
+ * 在插件管理服务进程里提前优化插件的dex。
+ * <p/>
+ * 插件进程第一次创建PluginClassLoader时如果还没有优化过的dex，就要同步做dexopt/dex2oat，
+ * 第一个Activity启动很慢。这里在安装后和服务启动后在后台线程里把dex优化好，写到PluginClassLoader
+ * 使用的同一个文件，插件进程直接加载。
+ * <p/>
+ * 优化完成后在dalvik-cache目录下写一个标记文件，记录apk的大小、修改时间和系统版本，三者都没变才认为优化结果有效。
+ */
+class PluginDexOptimizer {
+
+    private static final String TAG = PluginDexOptimizer.class.getSimpleName();
+
+    private static final String STAMP_FILE = "dexopt.stamp";
+
+    private final Context mContext;
+    private final ExecutorService mExecutor;
+
+    PluginDexOptimizer(Context context) {
+        mContext = context;
+        mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "DroidPlugin@DexOptimizer");
+            }
+        });
+    }
+
+    /**
+     * 在后台优化，已经有效的会跳过。
+     */
+    void schedule(final String packageName) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                optimize(packageName);
+            }
+        });
+    }
+
+    /**
+     * 插件重新安装后，先清掉旧的优化结果，再在后台优化。
+     * 清理也放到优化线程里做，和前面还没做完的优化串行，不会删掉正在写的文件。
+     */
+    void reset(final String packageName) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PluginDirHelper.cleanOptimizedDirectory(PluginDirHelper.getPluginDalvikCacheDir(mContext, packageName));
+                optimize(packageName);
+            }
+        });
+    }
+
+    private boolean isOptimized(File apkFile, String optimizedDirectory) {
+        File stampFile = new File(optimizedDirectory, STAMP_FILE);
+        if (!stampFile.exists() || !getOptimizedFile(apkFile, optimizedDirectory).exists()) {
+            return false;
+        }
+        try {
+            byte[] data = Utils.readFromFile(stampFile);
+            return data != null && TextUtils.equals(new String(data, "UTF-8"), makeStamp(apkFile));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void optimize(String packageName) {
+        File apkFile = new File(PluginDirHelper.getPluginApkFile(mContext, packageName));
+        if (!apkFile.exists()) {
+            //已经卸载了
+            return;
+        }
+        String optimizedDirectory = PluginDirHelper.getPluginDalvikCacheDir(mContext, packageName);
+        if (isOptimized(apkFile, optimizedDirectory)) {
+            return;
+        }
+        long b = System.currentTimeMillis();
+        File stampFile = new File(optimizedDirectory, STAMP_FILE);
+        DexFile dexFile = null;
+        try {
+            stampFile.delete();
+            String stamp = makeStamp(apkFile);
+            dexFile = DexFile.loadDex(apkFile.getPath(), getOptimizedFile(apkFile, optimizedDirectory).getPath(), 0);
+            //优化过程中apk被替换了，结果不可信
+            if (TextUtils.equals(stamp, makeStamp(apkFile))) {
+                Utils.writeToFile(stampFile, stamp.getBytes("UTF-8"));
+            }
+            Log.i(TAG, "Dexopt %s cost %s ms", packageName, (System.currentTimeMillis() - b));
+        } catch (Throwable e) {
+            Log.e(TAG, "Dexopt %s fail, cost %s ms", e, packageName, (System.currentTimeMillis() - b));
+            stampFile.delete();
+        } finally {
+            if (dexFile != null) {
+                try {
+                    dexFile.close();
+                } catch (Exception e) {
+                }
+            }
+        }
+    }
+
+    private static String makeStamp(File apkFile) {
+        return apkFile.length() + ":" + apkFile.lastModified() + ":" + Build.VERSION.SDK_INT + ":" + Build.FINGERPRINT;
+    }
+
+    /**
+     * 和DexClassLoader（DexPathList.optimizedPathFor）使用同一个文件名，插件进程才能直接用上优化结果
+     */
+    private static File getOptimizedFile(File apkFile, String optimizedDirectory) {
+        String fileName = apkFile.getName();
+        if (!fileName.endsWith(".dex")) {
+            int lastDot = fileName.lastIndexOf(".");
+            if (lastDot < 0) {
+                fileName = fileName + ".dex";
+            } else {
+                fileName = fileName.substring(0, lastDot) + ".dex";
+            }
+        }
+        return new File(optimizedDirectory, fileName);
+    }
+}
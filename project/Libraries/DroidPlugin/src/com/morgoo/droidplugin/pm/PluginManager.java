@@ -23,6 +23,7 @@
 package com.morgoo.droidplugin.pm;
 
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -30,6 +31,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
@@ -45,14 +47,21 @@ import android.text.TextUtils;
 
 import com.morgoo.droidplugin.BuildConfig;
 import com.morgoo.droidplugin.PluginManagerService;
+import com.morgoo.droidplugin.core.Env;
+import com.morgoo.droidplugin.core.PluginPathRedirector;
+import com.morgoo.droidplugin.core.PluginProcessManager;
 import com.morgoo.droidplugin.reflect.MethodUtils;
 import com.morgoo.helper.Log;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 插件包管理服务的客户端实现。
@@ -92,6 +101,10 @@ public class PluginManager implements ServiceConnection {
     @Override
     public void onServiceConnected(final ComponentName componentName, final IBinder iBinder) {
         mPluginManager = IPluginManager.Stub.asInterface(iBinder);
+        mBinding = false;
+        //可能是新的服务进程，之前的插件列表不能再用
+        mPluginPackages = null;
+        dispatchConnected();
         new Thread() {
             @Override
             public void run() {
@@ -101,6 +114,9 @@ public class PluginManager implements ServiceConnection {
 
                         @Override
                         public Bundle onCallback(Bundle extra) throws RemoteException {
+                            if (extra != null && extra.containsKey(Env.EXTRA_WARM_UP_INFO)) {
+                                PluginProcessManager.onTargetAssigned(mHostContext, (ComponentInfo) extra.getParcelable(Env.EXTRA_WARM_UP_INFO));
+                            }
                             return extra;
                         }
                     });
@@ -144,6 +160,9 @@ public class PluginManager implements ServiceConnection {
     public void onServiceDisconnected(ComponentName componentName) {
         Log.i(TAG, "onServiceDisconnected disconnected!");
         mPluginManager = null;
+        mBinding = false;
+        mPluginPackages = null;
+        invalidatePluginPackages();
 
         Iterator<WeakReference<ServiceConnection>> iterator = sServiceConnection.iterator();
         while (iterator.hasNext()) {
@@ -202,15 +221,53 @@ public class PluginManager implements ServiceConnection {
     }
 
 
+    private final List<Runnable> mConnectedCallbacks = new ArrayList<Runnable>(1);
+
+    /**
+     * 已经连接上时立即执行，否则在onServiceConnected时（主线程）执行，只执行一次。
+     */
+    public void runOnConnected(Runnable callback) {
+        synchronized (mConnectedCallbacks) {
+            if (!isConnected()) {
+                mConnectedCallbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    public void removeConnectedCallback(Runnable callback) {
+        synchronized (mConnectedCallbacks) {
+            mConnectedCallbacks.remove(callback);
+        }
+    }
+
+    private void dispatchConnected() {
+        Runnable[] callbacks;
+        synchronized (mConnectedCallbacks) {
+            callbacks = mConnectedCallbacks.toArray(new Runnable[mConnectedCallbacks.size()]);
+            mConnectedCallbacks.clear();
+        }
+        for (Runnable callback : callbacks) {
+            try {
+                callback.run();
+            } catch (Throwable e) {
+                Log.e(TAG, "dispatchConnected", e);
+            }
+        }
+    }
+
     private IPluginManager mPluginManager;
+    //bindService已经调用，还没有回调onServiceConnected
+    private volatile boolean mBinding = false;
 
     public void connectToService() {
-        if (mPluginManager == null) {
+        if (mPluginManager == null && !mBinding) {
             try {
                 Intent intent = new Intent(mHostContext, PluginManagerService.class);
                 intent.setPackage(mHostContext.getPackageName());
                 mHostContext.startService(intent);
-                mHostContext.bindService(intent, this, Context.BIND_AUTO_CREATE);
+                mBinding = mHostContext.bindService(intent, this, Context.BIND_AUTO_CREATE);
             } catch (Exception e) {
                 Log.e(TAG, "connectToService", e);
             }
@@ -218,7 +275,14 @@ public class PluginManager implements ServiceConnection {
     }
 
     public void addServiceConnection(ServiceConnection sc) {
-        sServiceConnection.add(new WeakReference<ServiceConnection>(sc));
+        synchronized (sServiceConnection) {
+            for (WeakReference<ServiceConnection> wsc : sServiceConnection) {
+                if (wsc.get() == sc) {
+                    return;
+                }
+            }
+            sServiceConnection.add(new WeakReference<ServiceConnection>(sc));
+        }
     }
 
     public void removeServiceConnection(ServiceConnection sc) {
@@ -234,6 +298,7 @@ public class PluginManager implements ServiceConnection {
 
     public void init(Context hostContext) {
         mHostContext = hostContext;
+        registerPluginPackagesReceiver(hostContext);
         connectToService();
     }
 
@@ -252,6 +317,127 @@ public class PluginManager implements ServiceConnection {
         return sInstance;
     }
 
+    //////////////////////////
+    //  Plugin packages cache
+    //////////////////////////
+
+    /**
+     * 本进程缓存的已安装插件列表，不可变，整体替换。
+     */
+    private static final class PluginPackagesSnapshot {
+        private final Map<String, Integer> mVersions;
+        private final long mGeneration;
+        private final int mInvalidation;
+
+        private PluginPackagesSnapshot(Map<String, Integer> versions, long generation, int invalidation) {
+            mVersions = versions;
+            mGeneration = generation;
+            mInvalidation = invalidation;
+        }
+    }
+
+    private volatile PluginPackagesSnapshot mPluginPackages = null;
+    private final AtomicInteger mPluginPackagesInvalidation = new AtomicInteger(0);
+    private final AtomicLong mPluginPackagesHitCount = new AtomicLong(0);
+    private final AtomicLong mPluginPackagesMissCount = new AtomicLong(0);
+    private final AtomicLong mPluginPackagesStaleRefreshCount = new AtomicLong(0);
+    private boolean mPluginPackagesReceiverRegistered = false;
+
+    private void registerPluginPackagesReceiver(Context hostContext) {
+        synchronized (mPluginPackagesInvalidation) {
+            if (mPluginPackagesReceiverRegistered) {
+                return;
+            }
+            try {
+                IntentFilter filter = new IntentFilter();
+                filter.addAction(ACTION_PACKAGE_ADDED);
+                filter.addAction(ACTION_PACKAGE_REMOVED);
+                filter.addDataScheme("package");
+                hostContext.registerReceiver(new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        invalidatePluginPackages();
+                        if (ACTION_PACKAGE_REMOVED.equals(intent.getAction()) && intent.getData() != null) {
+                            PluginProcessManager.onPluginRemoved(intent.getData().getHost());
+                        }
+                    }
+                }, filter);
+                mPluginPackagesReceiverRegistered = true;
+            } catch (Exception e) {
+                Log.e(TAG, "registerPluginPackagesReceiver", e);
+            }
+        }
+    }
+
+    /**
+     * 让本进程缓存的插件列表失效，下次查询时会重新从服务端获取。
+     */
+    public void invalidatePluginPackages() {
+        mPluginPackagesInvalidation.incrementAndGet();
+        PluginPathRedirector.invalidate();
+    }
+
+    private Map<String, Integer> getPluginPackages() throws RemoteException {
+        PluginPackagesSnapshot snapshot = mPluginPackages;
+        int invalidation = mPluginPackagesInvalidation.get();
+        if (snapshot != null && snapshot.mInvalidation == invalidation) {
+            mPluginPackagesHitCount.incrementAndGet();
+            return snapshot.mVersions;
+        }
+
+        IPluginManager pluginManager = mPluginManager;
+        if (pluginManager == null) {
+            return null;
+        }
+        mPluginPackagesMissCount.incrementAndGet();
+        long generation = pluginManager.getPluginPackagesGeneration();
+        if (snapshot != null && snapshot.mGeneration == generation) {
+            //只是收到了广播，服务端的插件列表并没有变化
+            snapshot = new PluginPackagesSnapshot(snapshot.mVersions, generation, invalidation);
+        } else {
+            if (snapshot != null) {
+                mPluginPackagesStaleRefreshCount.incrementAndGet();
+            }
+            Map versions = pluginManager.getPluginPackageVersions();
+            if (versions == null) {
+                return null;
+            }
+            snapshot = new PluginPackagesSnapshot(Collections.unmodifiableMap(new HashMap<String, Integer>(versions)), generation, invalidation);
+        }
+        mPluginPackages = snapshot;
+        return snapshot.mVersions;
+    }
+
+    /**
+     * @return 插件的versionCode，不是插件返回-1
+     */
+    public int getPluginPackageVersion(String packageName) throws RemoteException {
+        try {
+            Map<String, Integer> packages = packageName != null ? getPluginPackages() : null;
+            if (packages != null) {
+                Integer version = packages.get(packageName);
+                return version != null ? version : -1;
+            }
+        } catch (RemoteException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "getPluginPackageVersion", e);
+        }
+        return -1;
+    }
+
+    public long getPluginPackagesHitCount() {
+        return mPluginPackagesHitCount.get();
+    }
+
+    public long getPluginPackagesMissCount() {
+        return mPluginPackagesMissCount.get();
+    }
+
+    public long getPluginPackagesStaleRefreshCount() {
+        return mPluginPackagesStaleRefreshCount.get();
+    }
+
     //////////////////////////
     //  API
     //////////////////////////
@@ -281,6 +467,10 @@ public class PluginManager implements ServiceConnection {
             }
 
             if (mPluginManager != null && packageName != null) {
+                Map<String, Integer> packages = getPluginPackages();
+                if (packages != null) {
+                    return packages.containsKey(packageName);
+                }
                 return mPluginManager.isPluginPackage(packageName);
             } else {
                 Log.w(TAG, "Plugin Package Manager Service not be connect");
@@ -700,6 +890,46 @@ public class PluginManager implements ServiceConnection {
         return null;
     }
 
+    /**
+     * 一次跨进程调用完成插件Activity的解析和代理Activity的选择。
+     *
+     * @return [targetInfo, stubInfo]，stubInfo可能为null；不是插件Activity时返回null
+     */
+    public List<ActivityInfo> resolveAndSelectStubActivityInfo(Intent intent) throws RemoteException {
+        try {
+            if (mPluginManager != null) {
+                return mPluginManager.resolveAndSelectStubActivityInfo(intent, intent.resolveTypeIfNeeded(mHostContext.getContentResolver()));
+            } else {
+                Log.w(TAG, "Plugin Package Manager Service not be connect");
+            }
+        } catch (RemoteException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "resolveAndSelectStubActivityInfo", e);
+        }
+        return null;
+    }
+
+    /**
+     * 一次跨进程调用完成插件Service的解析和代理Service的选择。
+     *
+     * @return [targetInfo, stubInfo]，stubInfo可能为null；不是插件Service时返回null
+     */
+    public List<ServiceInfo> resolveAndSelectStubServiceInfo(Intent intent) throws RemoteException {
+        try {
+            if (mPluginManager != null) {
+                return mPluginManager.resolveAndSelectStubServiceInfo(intent, intent.resolveTypeIfNeeded(mHostContext.getContentResolver()));
+            } else {
+                Log.w(TAG, "Plugin Package Manager Service not be connect");
+            }
+        } catch (RemoteException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "resolveAndSelectStubServiceInfo", e);
+        }
+        return null;
+    }
+
     public ProviderInfo selectStubProviderInfo(String name) throws RemoteException {
         try {
             if (mPluginManager != null) {
@@ -854,6 +1084,7 @@ public class PluginManager implements ServiceConnection {
         try {
             if (mPluginManager != null) {
                 int result = mPluginManager.installPackage(filepath, flags);
+                invalidatePluginPackages();
                 Log.w(TAG, String.format("%s install result %d", filepath, result));
                 return result;
             } else {
@@ -985,6 +1216,7 @@ public class PluginManager implements ServiceConnection {
         try {
             if (mPluginManager != null) {
                 mPluginManager.deletePackage(packageName, flags);
+                invalidatePluginPackages();
             } else {
                 Log.w(TAG, "Plugin Package Manager Service not be connect");
             }
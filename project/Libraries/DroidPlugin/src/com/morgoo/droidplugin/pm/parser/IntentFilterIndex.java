@@ -0,0 +1,200 @@
+/*
+**        DroidPlugin Project
+**
+** Copyright(c) 2015 Andy Zhang <zhangyong232@gmail.com>
+**
+** This file is part of DroidPlugin.
+**
+** DroidPlugin is free software: you can redistribute it and/or
+** modify it under the terms of the GNU Lesser General Public
+** License as published by the Free Software Foundation, either
+** version 3 of the License, or (at your option) any later version.
+**
+** DroidPlugin is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+** Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public
+** License along with DroidPlugin.  If not, see <http://www.gnu.org/licenses/lgpl.txt>
+**
+**/
+
+package com.morgoo.droidplugin.pm.parser;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 插件组件IntentFilter的索引，仿照系统IntentResolver的做法，按MIME类型、scheme、action把IntentFilter分桶。
+ * 匹配隐式Intent时只需要对候选的IntentFilter调用match，不用遍历插件的所有组件。
+ * <p/>
+ * category不参与分桶，和系统一样交给IntentFilter.match去检查。
+ */
+class IntentFilterIndex {
+
+    static class Filter {
+        final ComponentName component;
+        final IntentFilter filter;
+
+        Filter(ComponentName component, IntentFilter filter) {
+            this.component = component;
+            this.filter = filter;
+        }
+    }
+
+    //完整的MIME类型，比如image/png，只有主类型的记成image/*
+    private final Map<String, List<Filter>> mTypeToFilter = new HashMap<String, List<Filter>>();
+    //声明了完整MIME类型的，按主类型索引
+    private final Map<String, List<Filter>> mBaseTypeToFilter = new HashMap<String, List<Filter>>();
+    //只声明了主类型的，比如image/*
+    private final Map<String, List<Filter>> mWildTypeToFilter = new HashMap<String, List<Filter>>();
+    private final Map<String, List<Filter>> mSchemeToFilter = new HashMap<String, List<Filter>>();
+    //没有声明data的IntentFilter
+    private final Map<String, List<Filter>> mActionToFilter = new HashMap<String, List<Filter>>();
+    //声明了MIME类型的IntentFilter，用于匹配*/*
+    private final Map<String, List<Filter>> mTypedActionToFilter = new HashMap<String, List<Filter>>();
+    //没有声明data的IntentFilter，action为空的Intent只能在这里面找
+    private final List<Filter> mNoDataFilters = new ArrayList<Filter>();
+
+    void addFilter(ComponentName component, IntentFilter intentFilter) {
+        Filter filter = new Filter(component, intentFilter);
+        int numS = register(filter, intentFilter.schemesIterator(), mSchemeToFilter);
+        int numT = registerMimeTypes(filter, intentFilter.typesIterator());
+        if (numS == 0 && numT == 0) {
+            register(filter, intentFilter.actionsIterator(), mActionToFilter);
+            mNoDataFilters.add(filter);
+        }
+        if (numT != 0) {
+            register(filter, intentFilter.actionsIterator(), mTypedActionToFilter);
+        }
+    }
+
+    /**
+     * 找出可能和intent匹配的IntentFilter，结果还需要调用IntentFilter.match确认。
+     */
+    List<Filter> queryCandidates(Intent intent, String resolvedType) {
+        final String action = intent.getAction();
+        final String scheme = intent.getScheme();
+
+        List<Filter> firstTypeCut = null;
+        List<Filter> secondTypeCut = null;
+        List<Filter> thirdTypeCut = null;
+        List<Filter> schemeCut = null;
+
+        if (resolvedType != null) {
+            int slashpos = resolvedType.indexOf('/');
+            if (slashpos > 0) {
+                final String baseType = resolvedType.substring(0, slashpos);
+                if (!baseType.equals("*")) {
+                    if (resolvedType.length() != slashpos + 2 || resolvedType.charAt(slashpos + 1) != '*') {
+                        firstTypeCut = mTypeToFilter.get(resolvedType);
+                    } else {
+                        firstTypeCut = mBaseTypeToFilter.get(baseType);
+                    }
+                    secondTypeCut = mWildTypeToFilter.get(baseType);
+                    thirdTypeCut = mWildTypeToFilter.get("*");
+                } else if (action != null) {
+                    firstTypeCut = mTypedActionToFilter.get(action);
+                }
+            }
+        }
+
+        if (scheme != null) {
+            schemeCut = mSchemeToFilter.get(scheme);
+        }
+
+        if (resolvedType == null && scheme == null) {
+            if (action != null) {
+                firstTypeCut = mActionToFilter.get(action);
+            } else {
+                firstTypeCut = mNoDataFilters;
+            }
+        }
+
+        int cuts = (firstTypeCut != null ? 1 : 0) + (secondTypeCut != null ? 1 : 0)
+                + (thirdTypeCut != null ? 1 : 0) + (schemeCut != null ? 1 : 0);
+        if (cuts == 0) {
+            return Collections.emptyList();
+        }
+        if (cuts == 1) {
+            List<Filter> cut = firstTypeCut != null ? firstTypeCut : secondTypeCut != null ? secondTypeCut : thirdTypeCut != null ? thirdTypeCut : schemeCut;
+            return new ArrayList<Filter>(cut);
+        }
+
+        //同时声明了scheme和MIME类型的IntentFilter会出现在多个桶里，去重
+        List<Filter> candidates = new ArrayList<Filter>();
+        Set<Filter> seen = Collections.newSetFromMap(new IdentityHashMap<Filter, Boolean>());
+        addCandidates(firstTypeCut, candidates, seen);
+        addCandidates(secondTypeCut, candidates, seen);
+        addCandidates(thirdTypeCut, candidates, seen);
+        addCandidates(schemeCut, candidates, seen);
+        return candidates;
+    }
+
+    private static void addCandidates(List<Filter> cut, List<Filter> out, Set<Filter> seen) {
+        if (cut != null) {
+            for (Filter filter : cut) {
+                if (seen.add(filter)) {
+                    out.add(filter);
+                }
+            }
+        }
+    }
+
+    private int registerMimeTypes(Filter filter, Iterator<String> types) {
+        if (types == null) {
+            return 0;
+        }
+        int num = 0;
+        while (types.hasNext()) {
+            String name = types.next();
+            num++;
+            String baseName = name;
+            final int slashpos = name.indexOf('/');
+            if (slashpos > 0) {
+                baseName = name.substring(0, slashpos);
+            } else {
+                name = name + "/*";
+            }
+            addFilter(mTypeToFilter, name, filter);
+            if (slashpos > 0) {
+                addFilter(mBaseTypeToFilter, baseName, filter);
+            } else {
+                addFilter(mWildTypeToFilter, baseName, filter);
+            }
+        }
+        return num;
+    }
+
+    private static int register(Filter filter, Iterator<String> names, Map<String, List<Filter>> dest) {
+        if (names == null) {
+            return 0;
+        }
+        int num = 0;
+        while (names.hasNext()) {
+            num++;
+            addFilter(dest, names.next(), filter);
+        }
+        return num;
+    }
+
+    private static void addFilter(Map<String, List<Filter>> map, String name, Filter filter) {
+        List<Filter> filters = map.get(name);
+        if (filters == null) {
+            filters = new ArrayList<Filter>(1);
+            map.put(name, filters);
+        }
+        filters.add(filter);
+    }
+}
@@ -35,8 +35,6 @@ import android.content.pm.ServiceInfo;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
 
-import com.morgoo.droidplugin.reflect.FieldUtils;
-
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -98,11 +96,13 @@ public class IntentMatcher {
                 }
             }
         }
+        //只解析一次MIME类型，content uri的类型需要跨进程查询
+        resolvedType = intent.resolveType(context.getContentResolver());
 
         if (comp != null && comp.getPackageName() != null) {
             PluginPackageParser parser = pluginPackages.get(comp.getPackageName());
             if (parser != null) {
-                queryIntentReceiverForPackage(context, parser, intent, flags, list);
+                queryIntentReceiverForPackage(context, parser, intent, resolvedType, flags, list);
                 if (list.size() > 0) {
                     Collections.sort(list, mResolvePrioritySorter);
                     return list;
@@ -119,13 +119,13 @@ public class IntentMatcher {
         if (pkgName != null) {
             PluginPackageParser parser = pluginPackages.get(pkgName);
             if (parser != null) {
-                queryIntentReceiverForPackage(context, parser, intent, flags, list);
+                queryIntentReceiverForPackage(context, parser, intent, resolvedType, flags, list);
             } else {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
             for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentReceiverForPackage(context, parser, intent, flags, list);
+                queryIntentReceiverForPackage(context, parser, intent, resolvedType, flags, list);
             }
 
         }
@@ -149,12 +149,14 @@ public class IntentMatcher {
                 }
             }
         }
+        //只解析一次MIME类型，content uri的类型需要跨进程查询
+        resolvedType = intent.resolveType(context.getContentResolver());
 
         if (comp != null && comp.getPackageName() != null) {
             PluginPackageParser parser = pluginPackages.get(comp.getPackageName());
             if (parser != null) {
 
-                queryIntentServiceForPackage(context, parser, intent, flags, list);
+                queryIntentServiceForPackage(context, parser, intent, resolvedType, flags, list);
                 if (list.size() > 0) {
                     Collections.sort(list, mResolvePrioritySorter);
                     return list;
@@ -172,13 +174,13 @@ public class IntentMatcher {
         if (pkgName != null) {
             PluginPackageParser parser = pluginPackages.get(pkgName);
             if (parser != null) {
-                queryIntentServiceForPackage(context, parser, intent, flags, list);
+                queryIntentServiceForPackage(context, parser, intent, resolvedType, flags, list);
             } else {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
             for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentServiceForPackage(context, parser, intent, flags, list);
+                queryIntentServiceForPackage(context, parser, intent, resolvedType, flags, list);
             }
         }
         Collections.sort(list, mResolvePrioritySorter);
@@ -201,11 +203,13 @@ public class IntentMatcher {
                 }
             }
         }
+        //只解析一次MIME类型，content uri的类型需要跨进程查询
+        resolvedType = intent.resolveType(context.getContentResolver());
 
         if (comp != null && comp.getPackageName() != null) {
             PluginPackageParser parser = pluginPackages.get(comp.getPackageName());
             if (parser != null) {
-                queryIntentProviderForPackage(context, parser, intent, flags, list);
+                queryIntentProviderForPackage(context, parser, intent, resolvedType, flags, list);
                 if (list.size() > 0) {
                     Collections.sort(list, mResolvePrioritySorter);
                     return list;
@@ -222,13 +226,13 @@ public class IntentMatcher {
         if (pkgName != null) {
             PluginPackageParser parser = pluginPackages.get(pkgName);
             if (parser != null) {
-                queryIntentProviderForPackage(context, parser, intent, flags, list);
+                queryIntentProviderForPackage(context, parser, intent, resolvedType, flags, list);
             } else {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
             for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentProviderForPackage(context, parser, intent, flags, list);
+                queryIntentProviderForPackage(context, parser, intent, resolvedType, flags, list);
             }
 
         }
@@ -252,11 +256,13 @@ public class IntentMatcher {
                 }
             }
         }
+        //只解析一次MIME类型，content uri的类型需要跨进程查询
+        resolvedType = intent.resolveType(context.getContentResolver());
 
         if (comp != null && comp.getPackageName() != null) {
             PluginPackageParser parser = pluginPackages.get(comp.getPackageName());
             if (parser != null) {
-                queryIntentActivityForPackage(context, parser, intent, flags, list);
+                queryIntentActivityForPackage(context, parser, intent, resolvedType, flags, list);
                 if (list.size() > 0) {
                     Collections.sort(list, mResolvePrioritySorter);
                     return list;
@@ -273,13 +279,13 @@ public class IntentMatcher {
         if (pkgName != null) {
             PluginPackageParser parser = pluginPackages.get(pkgName);
             if (parser != null) {
-                queryIntentActivityForPackage(context, parser, intent, flags, list);
+                queryIntentActivityForPackage(context, parser, intent, resolvedType, flags, list);
             } else {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
             for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentActivityForPackage(context, parser, intent, flags, list);
+                queryIntentActivityForPackage(context, parser, intent, resolvedType, flags, list);
             }
 
         }
@@ -302,26 +308,28 @@ public class IntentMatcher {
                 }
             }
         }
+        //只解析一次MIME类型，content uri的类型需要跨进程查询
+        resolvedType = intent.resolveType(context.getContentResolver());
 
         if (comp != null && comp.getPackageName() != null) {
             PluginPackageParser parser = pluginPackages.get(comp.getPackageName());
             if (parser != null) {
-                queryIntentActivityForPackage(context, parser, intent, flags, list);
+                queryIntentActivityForPackage(context, parser, intent, resolvedType, flags, list);
                 if (list.size() > 0) {
                     Collections.sort(list, mResolvePrioritySorter);
                     return list;
                 }
-                queryIntentServiceForPackage(context, parser, intent, flags, list);
+                queryIntentServiceForPackage(context, parser, intent, resolvedType, flags, list);
                 if (list.size() > 0) {
                     Collections.sort(list, mResolvePrioritySorter);
                     return list;
                 }
-                queryIntentProviderForPackage(context, parser, intent, flags, list);
+                queryIntentProviderForPackage(context, parser, intent, resolvedType, flags, list);
                 if (list.size() > 0) {
                     Collections.sort(list, mResolvePrioritySorter);
                     return list;
                 }
-                queryIntentReceiverForPackage(context, parser, intent, flags, list);
+                queryIntentReceiverForPackage(context, parser, intent, resolvedType, flags, list);
                 if (list.size() > 0) {
                     Collections.sort(list, mResolvePrioritySorter);
                     return list;
@@ -338,19 +346,19 @@ public class IntentMatcher {
         if (pkgName != null) {
             PluginPackageParser parser = pluginPackages.get(pkgName);
             if (parser != null) {
-                queryIntentActivityForPackage(context, parser, intent, flags, list);
-                queryIntentServiceForPackage(context, parser, intent, flags, list);
-                queryIntentProviderForPackage(context, parser, intent, flags, list);
-                queryIntentReceiverForPackage(context, parser, intent, flags, list);
+                queryIntentActivityForPackage(context, parser, intent, resolvedType, flags, list);
+                queryIntentServiceForPackage(context, parser, intent, resolvedType, flags, list);
+                queryIntentProviderForPackage(context, parser, intent, resolvedType, flags, list);
+                queryIntentReceiverForPackage(context, parser, intent, resolvedType, flags, list);
             } else {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
             for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentActivityForPackage(context, parser, intent, flags, list);
-                queryIntentServiceForPackage(context, parser, intent, flags, list);
-                queryIntentProviderForPackage(context, parser, intent, flags, list);
-                queryIntentReceiverForPackage(context, parser, intent, flags, list);
+                queryIntentActivityForPackage(context, parser, intent, resolvedType, flags, list);
+                queryIntentServiceForPackage(context, parser, intent, resolvedType, flags, list);
+                queryIntentProviderForPackage(context, parser, intent, resolvedType, flags, list);
+                queryIntentReceiverForPackage(context, parser, intent, resolvedType, flags, list);
             }
 
         }
@@ -358,162 +366,119 @@ public class IntentMatcher {
         return list;
     }
 
-    private static void queryIntentReceiverForPackage(Context context, PluginPackageParser packageParser, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
-        List<ActivityInfo> receivers = packageParser.getReceivers();
-        if (receivers != null && receivers.size() >= 0) {
-            for (ActivityInfo receiver : receivers) {
-                List<IntentFilter> intentFilters = packageParser.getReceiverIntentFilter(receiver);
-                if (intentFilters != null && intentFilters.size() > 0) {
-                    for (IntentFilter intentFilter : intentFilters) {
-                        int match = intentFilter.match(context.getContentResolver(), intent, true, "");
-                        if (match >= 0) {
-                            ActivityInfo flagInfo = packageParser.getReceiverInfo(new ComponentName(receiver.packageName, receiver.name), flags);
-                            if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
-                                if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
-                                    ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
-                                    resolveInfo.match = match;
-                                    resolveInfo.isDefault = true;
-                                    outList.add(resolveInfo);
-                                } else {
-                                    //只是匹配默认。这里也算匹配不上。
-                                }
-                            } else {
-                                ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
-                                resolveInfo.match = match;
-                                resolveInfo.isDefault = false;
-                                outList.add(resolveInfo);
-                            }
-                        }
-                    }
-                    if (outList.size() <= 0) {
-                        //没有在插件包中找到IntentFilter匹配的ACTIVITY
+    private static void queryIntentReceiverForPackage(Context context, PluginPackageParser packageParser, Intent intent, String resolvedType, int flags, List<ResolveInfo> outList) throws Exception {
+        List<IntentFilterIndex.Filter> filters = packageParser.getReceiverIntentFilterIndex().queryCandidates(intent, resolvedType);
+        for (IntentFilterIndex.Filter filter : filters) {
+            IntentFilter intentFilter = filter.filter;
+            int match = intentFilter.match(intent.getAction(), resolvedType, intent.getScheme(), intent.getData(), intent.getCategories(), TAG);
+            if (match >= 0) {
+                ActivityInfo flagInfo = packageParser.getReceiverInfo(filter.component, flags);
+                if (flagInfo == null) {
+                    continue;
+                }
+                if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
+                    if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                        ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
+                        resolveInfo.match = match;
+                        resolveInfo.isDefault = true;
+                        outList.add(resolveInfo);
+                    } else {
+                        //只是匹配默认。这里也算匹配不上。
                     }
                 } else {
-                    //该插件包中没有具有IntentFilter的ACTIVITY
+                    ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
+                    resolveInfo.match = match;
+                    resolveInfo.isDefault = false;
+                    outList.add(resolveInfo);
                 }
             }
-        } else {
-            //该插件apk包中没有ACTIVITY
         }
     }
 
-    private static void queryIntentProviderForPackage(Context context, PluginPackageParser packageParser, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
-        List<ProviderInfo> providerInfos = packageParser.getProviders();
-        if (providerInfos != null && providerInfos.size() >= 0) {
-            for (ProviderInfo providerInfo : providerInfos) {
-                ComponentName className = new ComponentName(providerInfo.packageName, providerInfo.name);
-                List<IntentFilter> intentFilters = packageParser.getProviderIntentFilter(className);
-                if (intentFilters != null && intentFilters.size() > 0) {
-                    for (IntentFilter intentFilter : intentFilters) {
-                        int match = intentFilter.match(context.getContentResolver(), intent, true, "");
-                        if (match >= 0) {
-                            ProviderInfo flagInfo = packageParser.getProviderInfo(new ComponentName(providerInfo.packageName, providerInfo.name), flags);
-                            if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
-                                if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
-                                    ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
-                                    resolveInfo.match = match;
-                                    resolveInfo.isDefault = true;
-                                    outList.add(resolveInfo);
-                                } else {
-                                    //只是匹配默认。这里也算匹配不上。
-                                }
-                            } else {
-                                ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
-                                resolveInfo.match = match;
-                                resolveInfo.isDefault = false;
-                                outList.add(resolveInfo);
-                            }
-                        }
-                    }
-                    if (outList.size() <= 0) {
-                        //没有在插件包中找到IntentFilter匹配的Service
+    private static void queryIntentProviderForPackage(Context context, PluginPackageParser packageParser, Intent intent, String resolvedType, int flags, List<ResolveInfo> outList) throws Exception {
+        List<IntentFilterIndex.Filter> filters = packageParser.getProviderIntentFilterIndex().queryCandidates(intent, resolvedType);
+        for (IntentFilterIndex.Filter filter : filters) {
+            IntentFilter intentFilter = filter.filter;
+            int match = intentFilter.match(intent.getAction(), resolvedType, intent.getScheme(), intent.getData(), intent.getCategories(), TAG);
+            if (match >= 0) {
+                ProviderInfo flagInfo = packageParser.getProviderInfo(filter.component, flags);
+                if (flagInfo == null) {
+                    continue;
+                }
+                if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
+                    if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                        ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
+                        resolveInfo.match = match;
+                        resolveInfo.isDefault = true;
+                        outList.add(resolveInfo);
+                    } else {
+                        //只是匹配默认。这里也算匹配不上。
                     }
                 } else {
-                    //该插件包中没有具有IntentFilter的Service
+                    ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
+                    resolveInfo.match = match;
+                    resolveInfo.isDefault = false;
+                    outList.add(resolveInfo);
                 }
             }
-        } else {
-            //该插件apk包中没有Service
         }
     }
 
-    private static void queryIntentServiceForPackage(Context context, PluginPackageParser packageParser, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
-        List<ServiceInfo> serviceInfos = packageParser.getServices();
-        if (serviceInfos != null && serviceInfos.size() >= 0) {
-            for (ServiceInfo serviceInfo : serviceInfos) {
-                ComponentName className = new ComponentName(serviceInfo.packageName, serviceInfo.name);
-                List<IntentFilter> intentFilters = packageParser.getServiceIntentFilter(className);
-                if (intentFilters != null && intentFilters.size() > 0) {
-                    for (IntentFilter intentFilter : intentFilters) {
-                        int match = intentFilter.match(context.getContentResolver(), intent, true, "");
-                        if (match >= 0) {
-                            ServiceInfo flagServiceInfo = packageParser.getServiceInfo(new ComponentName(serviceInfo.packageName, serviceInfo.name), flags);
-                            if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
-                                if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
-                                    ResolveInfo resolveInfo = newResolveInfo(flagServiceInfo, intentFilter);
-                                    resolveInfo.match = match;
-                                    resolveInfo.isDefault = true;
-                                    outList.add(resolveInfo);
-                                } else {
-                                    //只是匹配默认。这里也算匹配不上。
-                                }
-                            } else {
-                                ResolveInfo resolveInfo = newResolveInfo(flagServiceInfo, intentFilter);
-                                resolveInfo.match = match;
-                                resolveInfo.isDefault = false;
-                                outList.add(resolveInfo);
-                            }
-                        }
-                    }
-                    if (outList.size() <= 0) {
-                        //没有在插件包中找到IntentFilter匹配的Service
+    private static void queryIntentServiceForPackage(Context context, PluginPackageParser packageParser, Intent intent, String resolvedType, int flags, List<ResolveInfo> outList) throws Exception {
+        List<IntentFilterIndex.Filter> filters = packageParser.getServiceIntentFilterIndex().queryCandidates(intent, resolvedType);
+        for (IntentFilterIndex.Filter filter : filters) {
+            IntentFilter intentFilter = filter.filter;
+            int match = intentFilter.match(intent.getAction(), resolvedType, intent.getScheme(), intent.getData(), intent.getCategories(), TAG);
+            if (match >= 0) {
+                ServiceInfo flagServiceInfo = packageParser.getServiceInfo(filter.component, flags);
+                if (flagServiceInfo == null) {
+                    continue;
+                }
+                if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
+                    if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                        ResolveInfo resolveInfo = newResolveInfo(flagServiceInfo, intentFilter);
+                        resolveInfo.match = match;
+                        resolveInfo.isDefault = true;
+                        outList.add(resolveInfo);
+                    } else {
+                        //只是匹配默认。这里也算匹配不上。
                     }
                 } else {
-                    //该插件包中没有具有IntentFilter的Service
+                    ResolveInfo resolveInfo = newResolveInfo(flagServiceInfo, intentFilter);
+                    resolveInfo.match = match;
+                    resolveInfo.isDefault = false;
+                    outList.add(resolveInfo);
                 }
             }
-        } else {
-            //该插件apk包中没有Service
         }
     }
 
-    private static void queryIntentActivityForPackage(Context context, PluginPackageParser packageParser, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
-        List<ActivityInfo> activityInfos = packageParser.getActivities();
-        if (activityInfos != null && activityInfos.size() >= 0) {
-            for (ActivityInfo activityInfo : activityInfos) {
-                ComponentName className = new ComponentName(activityInfo.packageName, activityInfo.name);
-                List<IntentFilter> intentFilters = packageParser.getActivityIntentFilter(className);
-                if (intentFilters != null && intentFilters.size() > 0) {
-                    for (IntentFilter intentFilter : intentFilters) {
-                        int match = intentFilter.match(context.getContentResolver(), intent, true, "");
-                        if (match >= 0) {
-                            ActivityInfo flagInfo = packageParser.getActivityInfo(new ComponentName(activityInfo.packageName, activityInfo.name), flags);
-                            if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
-                                if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
-                                    ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
-                                    resolveInfo.match = match;
-                                    resolveInfo.isDefault = true;
-                                    outList.add(resolveInfo);
-                                } else {
-                                    //只是匹配默认。这里也算匹配不上。
-                                }
-                            } else {
-                                ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
-                                resolveInfo.match = match;
-                                resolveInfo.isDefault = false;
-                                outList.add(resolveInfo);
-                            }
-                        }
-                    }
-                    if (outList.size() <= 0) {
-                        //没有在插件包中找到IntentFilter匹配的ACTIVITY
+    private static void queryIntentActivityForPackage(Context context, PluginPackageParser packageParser, Intent intent, String resolvedType, int flags, List<ResolveInfo> outList) throws Exception {
+        List<IntentFilterIndex.Filter> filters = packageParser.getActivityIntentFilterIndex().queryCandidates(intent, resolvedType);
+        for (IntentFilterIndex.Filter filter : filters) {
+            IntentFilter intentFilter = filter.filter;
+            int match = intentFilter.match(intent.getAction(), resolvedType, intent.getScheme(), intent.getData(), intent.getCategories(), TAG);
+            if (match >= 0) {
+                ActivityInfo flagInfo = packageParser.getActivityInfo(filter.component, flags);
+                if (flagInfo == null) {
+                    continue;
+                }
+                if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
+                    if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                        ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
+                        resolveInfo.match = match;
+                        resolveInfo.isDefault = true;
+                        outList.add(resolveInfo);
+                    } else {
+                        //只是匹配默认。这里也算匹配不上。
                     }
                 } else {
-                    //该插件包中没有具有IntentFilter的ACTIVITY
+                    ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
+                    resolveInfo.match = match;
+                    resolveInfo.isDefault = false;
+                    outList.add(resolveInfo);
                 }
             }
-        } else {
-            //该插件apk包中没有ACTIVITY
         }
     }
 
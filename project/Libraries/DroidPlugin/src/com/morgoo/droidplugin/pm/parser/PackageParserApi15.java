@@ -31,9 +31,6 @@ import android.content.pm.PermissionGroupInfo;
 import android.content.pm.PermissionInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
-import com.morgoo.droidplugin.reflect.MethodUtils;
-
-import java.lang.reflect.Method;
 import java.util.HashSet;
 
 /**
@@ -47,26 +44,37 @@ class PackageParserApi15 extends PackageParserApi20 {
     }
 
     @Override
-    public ActivityInfo generateActivityInfo(Object activity, int flags) throws Exception {
+    protected void initAccessors() throws Exception {
+        initCommonAccessors();
         /*   public static final ActivityInfo generateActivityInfo(Activity a, int flags) */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateActivityInfo", sActivityClass, int.class);
-        return (ActivityInfo) method.invoke(null, activity, flags);
+        mGenerateActivityInfoMethod = getParserMethod("generateActivityInfo", sActivityClass, int.class);
+        /*  public static final ServiceInfo generateServiceInfo(Service s, int flags)*/
+        mGenerateServiceInfoMethod = getParserMethod("generateServiceInfo", sServiceClass, int.class);
+        /* public static final ProviderInfo generateProviderInfo(Provider p, int flags)  */
+        mGenerateProviderInfoMethod = getParserMethod("generateProviderInfo", sProviderClass, int.class);
+        /* public static ApplicationInfo generateApplicationInfo(Package p, int flags) */
+        mGenerateApplicationInfoMethod = getParserMethod("generateApplicationInfo", sPackageClass, int.class);
+        /* public static PackageInfo generatePackageInfo(PackageParser.Package p,
+            int gids[], int flags, long firstInstallTime, long lastUpdateTime) */
+        mGeneratePackageInfoMethod = getParserMethod("generatePackageInfo", sPackageClass,
+                int[].class, int.class, long.class, long.class);
+    }
+
+    @Override
+    public ActivityInfo generateActivityInfo(Object activity, int flags) throws Exception {
+        return (ActivityInfo) mGenerateActivityInfoMethod.invoke(null, activity, flags);
     }
 
 
     @Override
     public ServiceInfo generateServiceInfo(Object service, int flags) throws Exception {
-        /*  public static final ServiceInfo generateServiceInfo(Service s, int flags)*/
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateServiceInfo", sServiceClass, int.class);
-        return (ServiceInfo) method.invoke(null, service, flags);
+        return (ServiceInfo) mGenerateServiceInfoMethod.invoke(null, service, flags);
     }
 
 
     @Override
     public ProviderInfo generateProviderInfo(Object provider, int flags) throws Exception {
-        /* public static final ProviderInfo generateProviderInfo(Provider p, int flags)  */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateProviderInfo", sProviderClass, int.class);
-        return (ProviderInfo) method.invoke(null, provider, flags);
+        return (ProviderInfo) mGenerateProviderInfoMethod.invoke(null, provider, flags);
     }
 
     @Override
@@ -79,9 +87,7 @@ class PackageParserApi15 extends PackageParserApi20 {
 
     @Override
     public ApplicationInfo generateApplicationInfo(int flags) throws Exception {
-        /* public static ApplicationInfo generateApplicationInfo(Package p, int flags) */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateApplicationInfo", mPackage.getClass(), int.class);
-        return (ApplicationInfo) method.invoke(null, mPackage, flags);
+        return (ApplicationInfo) mGenerateApplicationInfoMethod.invoke(null, mPackage, flags);
     }
 
     @Override
@@ -105,11 +111,6 @@ class PackageParserApi15 extends PackageParserApi20 {
     public PackageInfo generatePackageInfo(
             int gids[], int flags, long firstInstallTime, long lastUpdateTime,
             HashSet<String> grantedPermissions) throws Exception {
-        /* public static PackageInfo generatePackageInfo(PackageParser.Package p,
-            int gids[], int flags, long firstInstallTime, long lastUpdateTime) */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generatePackageInfo",
-                mPackage.getClass(),
-                int[].class, int.class, long.class, long.class);
-        return (PackageInfo) method.invoke(null, mPackage, gids, flags, firstInstallTime, lastUpdateTime);
+        return (PackageInfo) mGeneratePackageInfoMethod.invoke(null, mPackage, gids, flags, firstInstallTime, lastUpdateTime);
     }
 }
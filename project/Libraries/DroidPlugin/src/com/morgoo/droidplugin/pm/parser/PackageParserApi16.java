@@ -33,9 +33,6 @@ import android.content.pm.PermissionInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.os.Build;
-import com.morgoo.droidplugin.reflect.MethodUtils;
-
-import java.lang.reflect.Method;
 import java.util.HashSet;
 
 /**
@@ -54,27 +51,40 @@ class PackageParserApi16 extends PackageParserApi20 {
     }
 
     @Override
-    public ActivityInfo generateActivityInfo(Object activity, int flags) throws Exception {
+    protected void initAccessors() throws Exception {
+        initCommonAccessors();
         /*public static final ActivityInfo generateActivityInfo(Activity a, int flags, boolean stopped, int enabledState, int userId)  */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateActivityInfo", sActivityClass, int.class, boolean.class, int.class, int.class);
-        return (ActivityInfo) method.invoke(null, activity, flags, mStopped, mEnabledState, mUserId);
+        mGenerateActivityInfoMethod = getParserMethod("generateActivityInfo", sActivityClass, int.class, boolean.class, int.class, int.class);
+        /*public static final ServiceInfo generateServiceInfo(Service s, int flags, boolean stopped, int enabledState, int userId)*/
+        mGenerateServiceInfoMethod = getParserMethod("generateServiceInfo", sServiceClass, int.class, boolean.class, int.class, int.class);
+        /*     public static final ProviderInfo generateProviderInfo(Provider p, int flags, boolean stopped,
+            int enabledState, int userId)  */
+        mGenerateProviderInfoMethod = getParserMethod("generateProviderInfo", sProviderClass, int.class, boolean.class, int.class, int.class);
+        /*   public static ApplicationInfo generateApplicationInfo(Package p, int flags,
+            boolean stopped, int enabledState, int userId) */
+        mGenerateApplicationInfoMethod = getParserMethod("generateApplicationInfo", sPackageClass, int.class, boolean.class, int.class, int.class);
+        /*     public static PackageInfo generatePackageInfo(PackageParser.Package p,
+            int gids[], int flags, long firstInstallTime, long lastUpdateTime,
+            HashSet<String> grantedPermissions, boolean stopped, int enabledState, int userId)*/
+        mGeneratePackageInfoMethod = getParserMethod("generatePackageInfo", sPackageClass,
+                int[].class, int.class, long.class, long.class, HashSet.class, boolean.class, int.class, int.class);
+    }
+
+    @Override
+    public ActivityInfo generateActivityInfo(Object activity, int flags) throws Exception {
+        return (ActivityInfo) mGenerateActivityInfoMethod.invoke(null, activity, flags, mStopped, mEnabledState, mUserId);
     }
 
 
     @Override
     public ServiceInfo generateServiceInfo(Object service, int flags) throws Exception {
-        /*public static final ServiceInfo generateServiceInfo(Service s, int flags, boolean stopped, int enabledState, int userId)*/
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateServiceInfo", sServiceClass, int.class, boolean.class, int.class, int.class);
-        return (ServiceInfo) method.invoke(null, service, flags, mStopped, mEnabledState, mUserId);
+        return (ServiceInfo) mGenerateServiceInfoMethod.invoke(null, service, flags, mStopped, mEnabledState, mUserId);
     }
 
 
     @Override
     public ProviderInfo generateProviderInfo(Object provider, int flags) throws Exception {
-        /*     public static final ProviderInfo generateProviderInfo(Provider p, int flags, boolean stopped,
-            int enabledState, int userId)  */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateProviderInfo", sProviderClass, int.class, boolean.class, int.class, int.class);
-        return (ProviderInfo) method.invoke(null, provider, flags, mStopped, mEnabledState, mUserId);
+        return (ProviderInfo) mGenerateProviderInfoMethod.invoke(null, provider, flags, mStopped, mEnabledState, mUserId);
     }
 
     @Override
@@ -87,10 +97,7 @@ class PackageParserApi16 extends PackageParserApi20 {
 
     @Override
     public ApplicationInfo generateApplicationInfo(int flags) throws Exception {
-        /*   public static ApplicationInfo generateApplicationInfo(Package p, int flags,
-            boolean stopped, int enabledState, int userId) */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateApplicationInfo", mPackage.getClass(), int.class, boolean.class, int.class, int.class);
-        return (ApplicationInfo) method.invoke(null, mPackage, flags, mStopped, mEnabledState, mUserId);
+        return (ApplicationInfo) mGenerateApplicationInfoMethod.invoke(null, mPackage, flags, mStopped, mEnabledState, mUserId);
     }
 
     @Override
@@ -114,12 +121,6 @@ class PackageParserApi16 extends PackageParserApi20 {
     public PackageInfo generatePackageInfo(
             int gids[], int flags, long firstInstallTime, long lastUpdateTime,
             HashSet<String> grantedPermissions) throws Exception {
-        /*     public static PackageInfo generatePackageInfo(PackageParser.Package p,
-            int gids[], int flags, long firstInstallTime, long lastUpdateTime,
-            HashSet<String> grantedPermissions, boolean stopped, int enabledState, int userId)*/
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generatePackageInfo",
-                mPackage.getClass(),
-                int[].class, int.class, long.class, long.class, HashSet.class, boolean.class, int.class, int.class);
-        return (PackageInfo) method.invoke(null, mPackage, gids, flags, firstInstallTime, lastUpdateTime, grantedPermissions, mStopped, mEnabledState, mUserId);
+        return (PackageInfo) mGeneratePackageInfoMethod.invoke(null, mPackage, gids, flags, firstInstallTime, lastUpdateTime, grantedPermissions, mStopped, mEnabledState, mUserId);
     }
 }
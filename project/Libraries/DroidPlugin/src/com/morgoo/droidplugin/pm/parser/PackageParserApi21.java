@@ -44,6 +44,7 @@ import com.morgoo.helper.compat.UserHandleCompat;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.Collection;
 import java.util.HashSet;
@@ -67,6 +68,35 @@ class PackageParserApi21 extends PackageParser {
     protected Class<?> sPermissionClass;
     protected Class<?> sPermissionGroupClass;
     protected Class<?> sArraySetClass;
+    protected Class<?> sPackageClass;
+    protected Class<?> sComponentClass;
+
+    //构造时一次性找到所有要用的系统方法和字段，之后每次调用不用再查找
+    protected Method mCollectCertificatesMethod;
+    protected Method mGenerateActivityInfoMethod;
+    protected Method mGenerateServiceInfoMethod;
+    protected Method mGenerateProviderInfoMethod;
+    protected Method mGenerateInstrumentationInfoMethod;
+    protected Method mGenerateApplicationInfoMethod;
+    protected Method mGeneratePermissionGroupInfoMethod;
+    protected Method mGeneratePermissionInfoMethod;
+    protected Method mGeneratePackageInfoMethod;
+    //Android 5.1上grantedPermissions参数是ArraySet
+    protected boolean mGrantedPermissionsAsArraySet;
+    protected Constructor<?> mArraySetConstructor;
+
+    protected Field mActivitiesField;
+    protected Field mServicesField;
+    protected Field mProvidersField;
+    protected Field mReceiversField;
+    protected Field mPermissionsField;
+    protected Field mPermissionGroupsField;
+    protected Field mRequestedPermissionsField;
+    protected Field mInstrumentationField;
+    protected Field mPackageNameField;
+    protected Field mSignaturesField;
+    protected Field mComponentClassNameField;
+    protected Field mComponentIntentsField;
 
     protected Object mPackage;
     protected Object mDefaultPackageUserState;
@@ -77,6 +107,7 @@ class PackageParserApi21 extends PackageParser {
     public PackageParserApi21(Context context) throws Exception {
         super(context);
         initClasses();
+        initAccessors();
     }
 
 
@@ -98,6 +129,103 @@ class PackageParserApi21 extends PackageParser {
             mDefaultPackageUserState = sPackageUserStateClass.newInstance();
             mUserId = UserHandleCompat.getCallingUserId();
         }
+        sPackageClass = Class.forName("android.content.pm.PackageParser$Package");
+        sComponentClass = Class.forName("android.content.pm.PackageParser$Component");
+    }
+
+    /**
+     * 找到当前系统版本下要用的PackageParser方法和字段，任何一个找不到都直接失败，
+     * 而不是解析到一半才出错。子类的方法签名不同时覆盖这个方法。
+     */
+    protected void initAccessors() throws Exception {
+        initCommonAccessors();
+        /*   public static final ActivityInfo generateActivityInfo(Activity a, int flags,
+            PackageUserState state, int userId) */
+        mGenerateActivityInfoMethod = getParserMethod("generateActivityInfo", sActivityClass, int.class, sPackageUserStateClass, int.class);
+        /* public static final ServiceInfo generateServiceInfo(Service s, int flags,
+            PackageUserState state, int userId)*/
+        mGenerateServiceInfoMethod = getParserMethod("generateServiceInfo", sServiceClass, int.class, sPackageUserStateClass, int.class);
+        /*  public static final ProviderInfo generateProviderInfo(Provider p, int flags,
+            PackageUserState state, int userId) */
+        mGenerateProviderInfoMethod = getParserMethod("generateProviderInfo", sProviderClass, int.class, sPackageUserStateClass, int.class);
+        /* public static ApplicationInfo generateApplicationInfo(Package p, int flags,
+            PackageUserState state, int userId) */
+        mGenerateApplicationInfoMethod = getParserMethod("generateApplicationInfo", sPackageClass, int.class, sPackageUserStateClass, int.class);
+        mGeneratePackageInfoMethod = findGeneratePackageInfoMethod();
+    }
+
+    /**
+     * 各个系统版本签名都一样的方法和字段。
+     */
+    protected void initCommonAccessors() throws Exception {
+        // public void collectCertificates(Package pkg, int flags) throws PackageParserException
+        mCollectCertificatesMethod = getParserMethod("collectCertificates", sPackageClass, int.class);
+        /*  public static final InstrumentationInfo generateInstrumentationInfo(
+            Instrumentation i, int flags)*/
+        mGenerateInstrumentationInfoMethod = getParserMethod("generateInstrumentationInfo", sInstrumentationClass, int.class);
+        /*  public static final PermissionGroupInfo generatePermissionGroupInfo(
+            PermissionGroup pg, int flags)*/
+        mGeneratePermissionGroupInfoMethod = getParserMethod("generatePermissionGroupInfo", sPermissionGroupClass, int.class);
+        /*public static final PermissionInfo generatePermissionInfo(
+            Permission p, int flags)*/
+        mGeneratePermissionInfoMethod = getParserMethod("generatePermissionInfo", sPermissionClass, int.class);
+
+        mActivitiesField = getRequiredField(sPackageClass, "activities");
+        mServicesField = getRequiredField(sPackageClass, "services");
+        mProvidersField = getRequiredField(sPackageClass, "providers");
+        mReceiversField = getRequiredField(sPackageClass, "receivers");
+        mPermissionsField = getRequiredField(sPackageClass, "permissions");
+        mPermissionGroupsField = getRequiredField(sPackageClass, "permissionGroups");
+        mRequestedPermissionsField = getRequiredField(sPackageClass, "requestedPermissions");
+        mInstrumentationField = getRequiredField(sPackageClass, "instrumentation");
+        mPackageNameField = getRequiredField(sPackageClass, "packageName");
+        mSignaturesField = getRequiredField(sPackageClass, "mSignatures");
+        mComponentClassNameField = getRequiredField(sComponentClass, "className");
+        mComponentIntentsField = getRequiredField(sComponentClass, "intents");
+    }
+
+    private Method findGeneratePackageInfoMethod() throws NoSuchMethodException {
+        /*public static PackageInfo generatePackageInfo(PackageParser.Package p,
+            int gids[], int flags, long firstInstallTime, long lastUpdateTime,
+            Set<String> grantedPermissions, PackageUserState state, int userId) */
+        Class<?>[] grantedPermissionsClasses = new Class<?>[]{Set.class, HashSet.class, sArraySetClass};
+        for (Class<?> grantedPermissionsClass : grantedPermissionsClasses) {
+            if (grantedPermissionsClass == null) {
+                continue;
+            }
+            try {
+                Method method = getParserMethod("generatePackageInfo", sPackageClass,
+                        int[].class, int.class, long.class, long.class, grantedPermissionsClass, sPackageUserStateClass, int.class);
+                mGrantedPermissionsAsArraySet = grantedPermissionsClass == sArraySetClass;
+                if (mGrantedPermissionsAsArraySet) {
+                    try {
+                        mArraySetConstructor = sArraySetClass.getConstructor(Collection.class);
+                    } catch (NoSuchMethodException e) {
+                        Log.w(TAG, "get ArraySet(Collection) fail", e);
+                    }
+                }
+                return method;
+            } catch (NoSuchMethodException e) {
+                Log.i(TAG, "get generatePackageInfo with %s fail", grantedPermissionsClass.getName());
+            }
+        }
+        throw new NoSuchMethodException("Can not found method generatePackageInfo");
+    }
+
+    protected Method getParserMethod(String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, name, parameterTypes);
+        if (method == null) {
+            throw new NoSuchMethodException(sPackageParserClass.getName() + "." + name);
+        }
+        return method;
+    }
+
+    protected static Field getRequiredField(Class<?> cls, String name) throws NoSuchFieldException {
+        Field field = FieldUtils.getField(cls, name);
+        if (field == null) {
+            throw new NoSuchFieldException(cls.getName() + "." + name);
+        }
+        return field;
     }
 
 
@@ -110,190 +238,132 @@ class PackageParserApi21 extends PackageParser {
 
     @Override
     public void collectCertificates(int flags) throws Exception {
-        // public void collectCertificates(Package pkg, int flags) throws PackageParserException
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "collectCertificates",
-                mPackage.getClass(), int.class);
-        method.invoke(mPackageParser, mPackage, flags);
+        mCollectCertificatesMethod.invoke(mPackageParser, mPackage, flags);
     }
 
 
     @Override
     public ActivityInfo generateActivityInfo(Object activity, int flags) throws Exception {
-        /*   public static final ActivityInfo generateActivityInfo(Activity a, int flags,
-            PackageUserState state, int userId) */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateActivityInfo", sActivityClass, int.class, sPackageUserStateClass, int.class);
-        return (ActivityInfo) method.invoke(null, activity, flags, mDefaultPackageUserState, mUserId);
+        return (ActivityInfo) mGenerateActivityInfoMethod.invoke(null, activity, flags, mDefaultPackageUserState, mUserId);
     }
 
 
     @Override
     public ServiceInfo generateServiceInfo(Object service, int flags) throws Exception {
-        /* public static final ServiceInfo generateServiceInfo(Service s, int flags,
-            PackageUserState state, int userId)*/
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateServiceInfo", sServiceClass, int.class, sPackageUserStateClass, int.class);
-        return (ServiceInfo) method.invoke(null, service, flags, mDefaultPackageUserState, mUserId);
+        return (ServiceInfo) mGenerateServiceInfoMethod.invoke(null, service, flags, mDefaultPackageUserState, mUserId);
     }
 
 
     @Override
     public ProviderInfo generateProviderInfo(Object provider, int flags) throws Exception {
-        /*  public static final ProviderInfo generateProviderInfo(Provider p, int flags,
-            PackageUserState state, int userId) */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateProviderInfo", sProviderClass, int.class, sPackageUserStateClass, int.class);
-        return (ProviderInfo) method.invoke(null, provider, flags, mDefaultPackageUserState, mUserId);
+        return (ProviderInfo) mGenerateProviderInfoMethod.invoke(null, provider, flags, mDefaultPackageUserState, mUserId);
     }
 
     @Override
     public InstrumentationInfo generateInstrumentationInfo(
             Object instrumentation, int flags) throws Exception {
-        /*  public static final InstrumentationInfo generateInstrumentationInfo(
-            Instrumentation i, int flags)*/
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateInstrumentationInfo", sInstrumentationClass, int.class);
-        return (InstrumentationInfo) method.invoke(null, instrumentation, flags);
+        return (InstrumentationInfo) mGenerateInstrumentationInfoMethod.invoke(null, instrumentation, flags);
     }
 
     @Override
     public ApplicationInfo generateApplicationInfo(int flags) throws Exception {
-        /* public static ApplicationInfo generateApplicationInfo(Package p, int flags,
-            PackageUserState state, int userId) */
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generateApplicationInfo", mPackage.getClass(), int.class, sPackageUserStateClass, int.class);
-        return (ApplicationInfo) method.invoke(null, mPackage, flags, mDefaultPackageUserState, mUserId);
+        return (ApplicationInfo) mGenerateApplicationInfoMethod.invoke(null, mPackage, flags, mDefaultPackageUserState, mUserId);
     }
 
     @Override
     public PermissionGroupInfo generatePermissionGroupInfo(
             Object permissionGroup, int flags) throws Exception {
-        /*  public static final PermissionGroupInfo generatePermissionGroupInfo(
-            PermissionGroup pg, int flags)*/
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generatePermissionGroupInfo", sPermissionGroupClass, int.class);
-        return (PermissionGroupInfo) method.invoke(null, permissionGroup, flags);
+        return (PermissionGroupInfo) mGeneratePermissionGroupInfoMethod.invoke(null, permissionGroup, flags);
 
     }
 
     @Override
     public PermissionInfo generatePermissionInfo(
             Object permission, int flags) throws Exception {
-        /*public static final PermissionInfo generatePermissionInfo(
-            Permission p, int flags)*/
-        Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generatePermissionInfo", sPermissionClass, int.class);
-        return (PermissionInfo) method.invoke(null, permission, flags);
+        return (PermissionInfo) mGeneratePermissionInfoMethod.invoke(null, permission, flags);
     }
 
     @Override
     public PackageInfo generatePackageInfo(
             int gids[], int flags, long firstInstallTime, long lastUpdateTime,
             HashSet<String> grantedPermissions) throws Exception {
-        /*public static PackageInfo generatePackageInfo(PackageParser.Package p,
-            int gids[], int flags, long firstInstallTime, long lastUpdateTime,
-            HashSet<String> grantedPermissions, PackageUserState state, int userId) */
-        try {
-            Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generatePackageInfo",
-                    mPackage.getClass(),
-                    int[].class, int.class, long.class, long.class, Set.class, sPackageUserStateClass, int.class);
-            return (PackageInfo) method.invoke(null, mPackage, gids, flags, firstInstallTime, lastUpdateTime, grantedPermissions, mDefaultPackageUserState, mUserId);
-        } catch (NoSuchMethodException e) {
-            Log.i(TAG, "get generatePackageInfo 1 fail", e);
-        }
-
-        try {
-            Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generatePackageInfo",
-                    mPackage.getClass(),
-                    int[].class, int.class, long.class, long.class, HashSet.class, sPackageUserStateClass, int.class);
-            return (PackageInfo) method.invoke(null, mPackage, gids, flags, firstInstallTime, lastUpdateTime, grantedPermissions, mDefaultPackageUserState, mUserId);
-        } catch (NoSuchMethodException e) {
-            Log.i(TAG, "get generatePackageInfo 2 fail", e);
-        }
-
-        try {
-            Method method = MethodUtils.getAccessibleMethod(sPackageParserClass, "generatePackageInfo",
-                    mPackage.getClass(),
-                    int[].class, int.class, long.class, long.class, sArraySetClass, sPackageUserStateClass, int.class);
-
-            Object grantedPermissionsArray = null;
+        Object grantedPermissionsArg = grantedPermissions;
+        if (mGrantedPermissionsAsArraySet && mArraySetConstructor != null) {
             try {
-                Constructor constructor = sArraySetClass.getConstructor(Collection.class);
-                grantedPermissionsArray = constructor.newInstance(grantedPermissions);
+                grantedPermissionsArg = mArraySetConstructor.newInstance(grantedPermissions);
             } catch (Exception e) {
             }
-            if (grantedPermissionsArray == null) {
-                grantedPermissionsArray = grantedPermissions;            }
-            return (PackageInfo) method.invoke(null, mPackage, gids, flags, firstInstallTime, lastUpdateTime, grantedPermissionsArray, mDefaultPackageUserState, mUserId);
-        } catch (NoSuchMethodException e) {
-            Log.i(TAG, "get generatePackageInfo 3 fail", e);
         }
-
-        throw new NoSuchMethodException("Can not found method generatePackageInfo");
-
-
+        return (PackageInfo) mGeneratePackageInfoMethod.invoke(null, mPackage, gids, flags, firstInstallTime, lastUpdateTime, grantedPermissionsArg, mDefaultPackageUserState, mUserId);
     }
 
     @Override
     public List getActivities() throws Exception {
         /*PackageParser.Package.activities*/
-        return (List) FieldUtils.readField(mPackage, "activities");
+        return (List) mActivitiesField.get(mPackage);
     }
 
     @Override
     public List getServices() throws Exception {
          /*PackageParser.Package.services*/
-        return (List) FieldUtils.readField(mPackage, "services");
+        return (List) mServicesField.get(mPackage);
     }
 
     @Override
     public List getProviders() throws Exception {
          /*PackageParser.Package.providers*/
-        return (List) FieldUtils.readField(mPackage, "providers");
+        return (List) mProvidersField.get(mPackage);
     }
 
     @Override
     public List getPermissions() throws Exception {
          /*PackageParser.Package.permissions*/
-        return (List) FieldUtils.readField(mPackage, "permissions");
+        return (List) mPermissionsField.get(mPackage);
     }
 
     @Override
     public List getPermissionGroups() throws Exception {
          /*PackageParser.Package.permissionGroups*/
-        return (List) FieldUtils.readField(mPackage, "permissionGroups");
+        return (List) mPermissionGroupsField.get(mPackage);
     }
 
     @Override
     public List getRequestedPermissions() throws Exception {
        /*PackageParser.Package.requestedPermissions*/
-        return (List) FieldUtils.readField(mPackage, "requestedPermissions");
+        return (List) mRequestedPermissionsField.get(mPackage);
     }
 
     @Override
     public List getReceivers() throws Exception {
          /*PackageParser.Package.requestedPermissions*/
-        return (List) FieldUtils.readField(mPackage, "receivers");
+        return (List) mReceiversField.get(mPackage);
     }
 
     @Override
     public List getInstrumentations() throws Exception {
         /*PackageParser.Package.instrumentation*/
-        return (List) FieldUtils.readField(mPackage, "instrumentation");
+        return (List) mInstrumentationField.get(mPackage);
     }
 
 
     @Override
     public String getPackageName() throws Exception {
          /*PackageParser.Package.packageName*/
-        return (String) FieldUtils.readField(mPackage, "packageName");
+        return (String) mPackageNameField.get(mPackage);
     }
 
     @Override
     public String readNameFromComponent(Object data) throws Exception {
-        return (String) FieldUtils.readField(data, "className");
+        return (String) mComponentClassNameField.get(data);
     }
 
     @Override
     public List<IntentFilter> readIntentFilterFromComponent(Object data) throws Exception {
-        return (List) FieldUtils.readField(data, "intents");
+        return (List) mComponentIntentsField.get(data);
     }
 
     @Override
     public void writeSignature(Signature[] signatures) throws Exception {
-        FieldUtils.writeField(mPackage, "mSignatures", signatures);
+        mSignaturesField.set(mPackage, signatures);
     }
 }
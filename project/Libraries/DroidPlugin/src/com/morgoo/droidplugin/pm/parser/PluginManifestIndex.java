@@ -0,0 +1,287 @@
+/*
+**        DroidPlugin Project
+**
+** Copyright(c) 2015 Andy Zhang <zhangyong232@gmail.com>
+**
+** This file is part of DroidPlugin.
+**
+** DroidPlugin is free software: you can redistribute it and/or
+** modify it under the terms of the GNU Lesser General Public
+** License as published by the Free Software Foundation, either
+** version 3 of the License, or (at your option) any later version.
+**
+** DroidPlugin is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+** Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public
+** License along with DroidPlugin.  If not, see <http://www.gnu.org/licenses/lgpl.txt>
+**
+**/
+
+package com.morgoo.droidplugin.pm.parser;
+
+import android.content.ComponentName;
+import android.content.IntentFilter;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.text.TextUtils;
+
+import com.morgoo.helper.Log;
+import com.morgoo.helper.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 插件apk解析结果的磁盘索引。
+ * <p/>
+ * 插件管理服务每次启动都要通过反射调用系统的PackageParser重新解析所有插件，很慢。
+ * 这里把解析出来的组件信息、IntentFilter、权限等用Parcel序列化后保存在插件目录下，
+ * 以apk路径、大小、修改时间和内容摘要作为key，下次启动时如果apk没有变化就直接读取索引。
+ * <p/>
+ * Parcel的格式只在同一个系统版本上保证兼容，所以系统指纹也是key的一部分。
+ */
+class PluginManifestIndex {
+
+    private static final String TAG = PluginManifestIndex.class.getSimpleName();
+
+    private static final int MAGIC = 0x44504d49; //DPMI
+    private static final int VERSION = 2;
+
+    //apk的中央目录在文件尾部，里面有所有entry的crc，用它做摘要就足以发现apk内容变化，又不用读整个apk
+    private static final int DIGEST_TAIL_SIZE = 64 * 1024;
+
+    /**
+     * 组件信息保存为序列化后的字节，用到时才反序列化。每个ComponentInfo都带着一份完整的ApplicationInfo，
+     * 组件很多的插件全部展开会占用大量内存。
+     */
+    static class Component<T> {
+        final byte[] data;
+
+        Component(byte[] data) {
+            this.data = data;
+        }
+
+        static <T extends Parcelable> Component<T> create(T info, List<IntentFilter> filters) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                writeInfo(parcel, info);
+                parcel.writeTypedList(filters);
+                return new Component<T>(parcel.marshall());
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        /**
+         * 每次都返回新的对象，调用者可以随意修改。
+         */
+        Entry<T> decode(Parcelable.Creator<T> creator) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                T info = readInfo(parcel, creator);
+                List<IntentFilter> filters = parcel.createTypedArrayList(IntentFilter.CREATOR);
+                if (filters == null) {
+                    filters = new ArrayList<IntentFilter>(0);
+                }
+                return new Entry<T>(info, Collections.unmodifiableList(filters), data.length);
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+
+    static class Entry<T> {
+        final T info;
+        final List<IntentFilter> filters;
+        final int size;
+
+        Entry(T info, List<IntentFilter> filters, int size) {
+            this.info = info;
+            this.filters = filters;
+            this.size = size;
+        }
+    }
+
+    String packageName;
+    PackageInfo packageInfo;
+    ApplicationInfo applicationInfo;
+    final Map<ComponentName, Component<ActivityInfo>> activities = new LinkedHashMap<ComponentName, Component<ActivityInfo>>();
+    final Map<ComponentName, Component<ServiceInfo>> services = new LinkedHashMap<ComponentName, Component<ServiceInfo>>();
+    final Map<ComponentName, Component<ProviderInfo>> providers = new LinkedHashMap<ComponentName, Component<ProviderInfo>>();
+    final Map<ComponentName, Component<ActivityInfo>> receivers = new LinkedHashMap<ComponentName, Component<ActivityInfo>>();
+    final Map<ComponentName, PermissionInfo> permissions = new LinkedHashMap<ComponentName, PermissionInfo>();
+    final List<String> requestedPermissions = new ArrayList<String>();
+
+    static PluginManifestIndex read(File indexFile, File apkFile, int hostUid) {
+        if (indexFile == null || !indexFile.exists()) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            byte[] data = Utils.readFromFile(indexFile);
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() != MAGIC || parcel.readInt() != VERSION
+                    || parcel.readInt() != Build.VERSION.SDK_INT
+                    || !TextUtils.equals(parcel.readString(), Build.FINGERPRINT)
+                    || parcel.readInt() != hostUid
+                    || !TextUtils.equals(parcel.readString(), apkFile.getPath())
+                    || parcel.readLong() != apkFile.length()
+                    || parcel.readLong() != apkFile.lastModified()
+                    || !TextUtils.equals(parcel.readString(), digest(apkFile))) {
+                Log.i(TAG, "Manifest index %s is stale", indexFile.getPath());
+                return null;
+            }
+
+            PluginManifestIndex index = new PluginManifestIndex();
+            index.packageName = parcel.readString();
+            index.packageInfo = readInfo(parcel, PackageInfo.CREATOR);
+            index.applicationInfo = readInfo(parcel, ApplicationInfo.CREATOR);
+            readComponents(parcel, index.packageName, index.activities);
+            readComponents(parcel, index.packageName, index.services);
+            readComponents(parcel, index.packageName, index.providers);
+            readComponents(parcel, index.packageName, index.receivers);
+            int size = parcel.readInt();
+            for (int i = 0; i < size; i++) {
+                ComponentName componentName = new ComponentName(index.packageName, parcel.readString());
+                index.permissions.put(componentName, readInfo(parcel, PermissionInfo.CREATOR));
+            }
+            parcel.readStringList(index.requestedPermissions);
+            return index;
+        } catch (Throwable e) {
+            Log.w(TAG, "Read manifest index %s fail", e, indexFile.getPath());
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    void write(File indexFile, File apkFile, int hostUid) {
+        Parcel parcel = Parcel.obtain();
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            parcel.writeInt(MAGIC);
+            parcel.writeInt(VERSION);
+            parcel.writeInt(Build.VERSION.SDK_INT);
+            parcel.writeString(Build.FINGERPRINT);
+            parcel.writeInt(hostUid);
+            parcel.writeString(apkFile.getPath());
+            parcel.writeLong(apkFile.length());
+            parcel.writeLong(apkFile.lastModified());
+            parcel.writeString(digest(apkFile));
+
+            parcel.writeString(packageName);
+            writeInfo(parcel, packageInfo);
+            writeInfo(parcel, applicationInfo);
+            writeComponents(parcel, activities);
+            writeComponents(parcel, services);
+            writeComponents(parcel, providers);
+            writeComponents(parcel, receivers);
+            parcel.writeInt(permissions.size());
+            for (Map.Entry<ComponentName, PermissionInfo> entry : permissions.entrySet()) {
+                parcel.writeString(entry.getKey().getClassName());
+                writeInfo(parcel, entry.getValue());
+            }
+            parcel.writeStringList(requestedPermissions);
+
+            File dir = indexFile.getParentFile();
+            if (dir != null && !dir.exists()) {
+                dir.mkdirs();
+            }
+            Utils.writeToFile(tmpFile, parcel.marshall());
+            if (!tmpFile.renameTo(indexFile)) {
+                throw new IOException("rename " + tmpFile.getPath() + " fail");
+            }
+        } catch (Throwable e) {
+            Log.w(TAG, "Write manifest index %s fail", e, indexFile.getPath());
+            tmpFile.delete();
+            indexFile.delete();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static String digest(File apkFile) throws IOException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(apkFile, "r");
+            long length = file.length();
+            int size = (int) Math.min(length, DIGEST_TAIL_SIZE);
+            byte[] tail = new byte[size];
+            file.seek(length - size);
+            file.readFully(tail);
+            return Utils.md5(tail);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static <T> void writeComponents(Parcel parcel, Map<ComponentName, Component<T>> components) {
+        parcel.writeInt(components.size());
+        for (Map.Entry<ComponentName, Component<T>> entry : components.entrySet()) {
+            parcel.writeString(entry.getKey().getClassName());
+            parcel.writeByteArray(entry.getValue().data);
+        }
+    }
+
+    private static <T> void readComponents(Parcel parcel, String packageName, Map<ComponentName, Component<T>> out) {
+        int size = parcel.readInt();
+        for (int i = 0; i < size; i++) {
+            ComponentName componentName = new ComponentName(packageName, parcel.readString());
+            out.put(componentName, new Component<T>(parcel.createByteArray()));
+        }
+    }
+
+    private static void writeInfo(Parcel parcel, Parcelable info) {
+        if (info != null) {
+            parcel.writeInt(1);
+            info.writeToParcel(parcel, 0);
+        } else {
+            parcel.writeInt(0);
+        }
+    }
+
+    private static <T> T readInfo(Parcel parcel, Parcelable.Creator<T> creator) {
+        return parcel.readInt() != 0 ? creator.createFromParcel(parcel) : null;
+    }
+
+    /**
+     * 通过Parcel复制一份，返回给调用者的对象可能被修改，不能直接把索引里的对象给出去。
+     */
+    static <T extends Parcelable> T copy(T info, Parcelable.Creator<T> creator) {
+        if (info == null) {
+            return null;
+        }
+        Parcel parcel = Parcel.obtain();
+        try {
+            info.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
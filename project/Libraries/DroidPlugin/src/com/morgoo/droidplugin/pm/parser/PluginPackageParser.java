@@ -27,27 +27,31 @@ import android.content.Context;
 import android.content.IntentFilter;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.ComponentInfo;
 import android.content.pm.InstrumentationInfo;
 import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.content.pm.PermissionGroupInfo;
 import android.content.pm.PermissionInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
 import android.os.Build;
+import android.os.Parcelable;
 import android.text.TextUtils;
 
 import com.morgoo.droidplugin.core.PluginDirHelper;
 import com.morgoo.droidplugin.reflect.FieldUtils;
-import com.morgoo.helper.ComponentNameComparator;
+import com.morgoo.helper.Log;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
 
 /**
  * 解析插件apk
@@ -56,171 +60,373 @@ import java.util.TreeMap;
  */
 public class PluginPackageParser {
 
+    private static final String TAG = PluginPackageParser.class.getSimpleName();
+
+    //这些flag不影响生成的组件信息，可以直接用索引里的数据
+    //每种组件反序列化后缓存的上限，按序列化后的字节数计算
+    private static final int COMPONENT_CACHE_SIZE = 256 * 1024;
+
+    private static final int INDEX_FLAGS = PackageManager.GET_META_DATA | PackageManager.MATCH_DEFAULT_ONLY | PackageManager.GET_RESOLVED_FILTER;
+
     private final File mPluginFile;
-    private final PackageParser mParser;
     private final String mPackageName;
     private final Context mHostContext;
     private final PackageInfo mHostPackageInfo;
-
-    private Map<ComponentName, Object> mActivityObjCache = new TreeMap<ComponentName, Object>(new ComponentNameComparator());
-    private Map<ComponentName, Object> mServiceObjCache = new TreeMap<ComponentName, Object>(new ComponentNameComparator());
-    private Map<ComponentName, Object> mProviderObjCache = new TreeMap<ComponentName, Object>(new ComponentNameComparator());
-    private Map<ComponentName, Object> mReceiversObjCache = new TreeMap<ComponentName, Object>(new ComponentNameComparator());
-    private Map<ComponentName, Object> mInstrumentationObjCache = new TreeMap<ComponentName, Object>(new ComponentNameComparator());
-    private Map<ComponentName, Object> mPermissionsObjCache = new TreeMap<ComponentName, Object>(new ComponentNameComparator());
-    private Map<ComponentName, Object> mPermissionGroupObjCache = new TreeMap<ComponentName, Object>(new ComponentNameComparator());
+    private final PluginManifestIndex mIndex;
+
+    //系统PackageParser的解析结果，只有在索引里没有的数据被用到时才去解析apk
+    private final Object mParserLock = new Object();
+    private volatile PackageParser mParser;
+    private Signature[] mPendingSignatures;
+
+    private Map<ComponentName, Object> mActivityObjCache = new HashMap<ComponentName, Object>();
+    private Map<ComponentName, Object> mServiceObjCache = new HashMap<ComponentName, Object>();
+    private Map<ComponentName, Object> mProviderObjCache = new HashMap<ComponentName, Object>();
+    private Map<ComponentName, Object> mReceiversObjCache = new HashMap<ComponentName, Object>();
+    private Map<ComponentName, Object> mInstrumentationObjCache = new HashMap<ComponentName, Object>();
+    private Map<ComponentName, Object> mPermissionsObjCache = new HashMap<ComponentName, Object>();
+    private Map<ComponentName, Object> mPermissionGroupObjCache = new HashMap<ComponentName, Object>();
     private ArrayList<String> mRequestedPermissionsCache = new ArrayList<String>();
 
+    //组件信息和IntentFilter第一次用到时才从索引里反序列化
+    private final ComponentCache<ActivityInfo> mActivityCache;
+    private final ComponentCache<ServiceInfo> mServiceCache;
+    private final ComponentCache<ProviderInfo> mProviderCache;
+    private final ComponentCache<ActivityInfo> mReceiverCache;
 
-    private Map<ComponentName, List<IntentFilter>> mActivityIntentFilterCache = new TreeMap<ComponentName, List<IntentFilter>>(new ComponentNameComparator());
-    private Map<ComponentName, List<IntentFilter>> mServiceIntentFilterCache = new TreeMap<ComponentName, List<IntentFilter>>(new ComponentNameComparator());
-    private Map<ComponentName, List<IntentFilter>> mProviderIntentFilterCache = new TreeMap<ComponentName, List<IntentFilter>>(new ComponentNameComparator());
-    private Map<ComponentName, List<IntentFilter>> mReceiverIntentFilterCache = new TreeMap<ComponentName, List<IntentFilter>>(new ComponentNameComparator());
-
-
-    private Map<ComponentName, ActivityInfo> mActivityInfoCache = new TreeMap<ComponentName, ActivityInfo>(new ComponentNameComparator());
-    private Map<ComponentName, ServiceInfo> mServiceInfoCache = new TreeMap<ComponentName, ServiceInfo>(new ComponentNameComparator());
-    private Map<ComponentName, ProviderInfo> mProviderInfoCache = new TreeMap<ComponentName, ProviderInfo>(new ComponentNameComparator());
-    private Map<ComponentName, ActivityInfo> mReceiversInfoCache = new TreeMap<ComponentName, ActivityInfo>(new ComponentNameComparator());
-    private Map<ComponentName, InstrumentationInfo> mInstrumentationInfoCache = new TreeMap<ComponentName, InstrumentationInfo>(new ComponentNameComparator());
-    private Map<ComponentName, PermissionGroupInfo> mPermissionGroupInfoCache = new TreeMap<ComponentName, PermissionGroupInfo>(new ComponentNameComparator());
-    private Map<ComponentName, PermissionInfo> mPermissionsInfoCache = new TreeMap<ComponentName, PermissionInfo>(new ComponentNameComparator());
+    private Map<ComponentName, InstrumentationInfo> mInstrumentationInfoCache = new HashMap<ComponentName, InstrumentationInfo>();
+    private Map<ComponentName, PermissionGroupInfo> mPermissionGroupInfoCache = new HashMap<ComponentName, PermissionGroupInfo>();
+    private Map<ComponentName, PermissionInfo> mPermissionsInfoCache = new LinkedHashMap<ComponentName, PermissionInfo>();
 
 
     public PluginPackageParser(Context hostContext, File pluginFile) throws Exception {
         mHostContext = hostContext;
         mPluginFile = pluginFile;
-        mParser = PackageParser.newPluginParser(hostContext);
-        mParser.parsePackage(pluginFile, 0);
-        mPackageName = mParser.getPackageName();
         mHostPackageInfo = mHostContext.getPackageManager().getPackageInfo(mHostContext.getPackageName(), 0);
 
-        List datas = mParser.getActivities();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mActivityObjCache) {
-                mActivityObjCache.put(componentName, data);
-            }
-            synchronized (mActivityInfoCache) {
-                ActivityInfo value = mParser.generateActivityInfo(data, 0);
-                fixApplicationInfo(value.applicationInfo);
-                if (TextUtils.isEmpty(value.processName)) {
-                    value.processName = value.packageName;
-                }
-                mActivityInfoCache.put(componentName, value);
+        int hostUid = mHostPackageInfo.applicationInfo.uid;
+        File indexFile = getManifestIndexFile(hostContext, pluginFile);
+        PluginManifestIndex index = PluginManifestIndex.read(indexFile, pluginFile, hostUid);
+        if (index == null) {
+            index = buildManifestIndex(ensureParsed());
+            if (indexFile != null) {
+                index.write(indexFile, pluginFile, hostUid);
             }
+        } else {
+            Log.i(TAG, "Load %s from manifest index", pluginFile.getPath());
+        }
+        mIndex = index;
+        mPackageName = index.packageName;
+
+        mActivityCache = new ComponentCache<ActivityInfo>(index.activities, ActivityInfo.CREATOR);
+        mServiceCache = new ComponentCache<ServiceInfo>(index.services, ServiceInfo.CREATOR);
+        mProviderCache = new ComponentCache<ProviderInfo>(index.providers, ProviderInfo.CREATOR);
+        mReceiverCache = new ComponentCache<ActivityInfo>(index.receivers, ActivityInfo.CREATOR);
 
-            List<IntentFilter> filters = mParser.readIntentFilterFromComponent(data);
-            synchronized (mActivityIntentFilterCache) {
-                mActivityIntentFilterCache.remove(componentName);
-                mActivityIntentFilterCache.put(componentName, new ArrayList<IntentFilter>(filters));
+        for (Map.Entry<ComponentName, PermissionInfo> entry : index.permissions.entrySet()) {
+            synchronized (mPermissionsInfoCache) {
+                mPermissionsInfoCache.put(entry.getKey(), PluginManifestIndex.copy(entry.getValue(), PermissionInfo.CREATOR));
             }
         }
 
-        datas = mParser.getServices();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mServiceObjCache) {
-                mServiceObjCache.put(componentName, data);
-            }
-            synchronized (mServiceInfoCache) {
-                ServiceInfo value = mParser.generateServiceInfo(data, 0);
-                fixApplicationInfo(value.applicationInfo);
-                if (TextUtils.isEmpty(value.processName)) {
-                    value.processName = value.packageName;
-                }
-                mServiceInfoCache.put(componentName, value);
+        if (index.requestedPermissions.size() > 0) {
+            synchronized (mRequestedPermissionsCache) {
+                mRequestedPermissionsCache.addAll(index.requestedPermissions);
             }
+        }
+    }
 
-            List<IntentFilter> filters = mParser.readIntentFilterFromComponent(data);
-            synchronized (mServiceIntentFilterCache) {
-                mServiceIntentFilterCache.remove(componentName);
-                mServiceIntentFilterCache.put(componentName, new ArrayList<IntentFilter>(filters));
-            }
+    /**
+     * 把这个parser的索引写给pluginFile，用于安装时临时文件改名到插件目录之后。pluginFile不在插件目录下时不写。
+     */
+    public void writeManifestIndex(File pluginFile) {
+        File indexFile = getManifestIndexFile(mHostContext, pluginFile);
+        if (indexFile != null) {
+            mIndex.write(indexFile, pluginFile, mHostPackageInfo.applicationInfo.uid);
+        }
+    }
+
+    /**
+     * 只有安装到插件目录下的apk才有索引，其他位置的apk每次都完整解析。
+     */
+    private static File getManifestIndexFile(Context hostContext, File pluginFile) {
+        File apkDir = pluginFile.getParentFile();
+        File pluginDir = apkDir != null ? apkDir.getParentFile() : null;
+        if (pluginDir == null || !TextUtils.equals(pluginDir.getParent(), PluginDirHelper.getBaseDir(hostContext))) {
+            return null;
+        }
+        String packageName = pluginDir.getName();
+        if (!TextUtils.equals(pluginFile.getPath(), PluginDirHelper.getPluginApkFile(hostContext, packageName))) {
+            return null;
+        }
+        return new File(PluginDirHelper.getPluginManifestIndexFile(hostContext, packageName));
+    }
+
+    private PluginManifestIndex buildManifestIndex(PackageParser parser) throws Exception {
+        PluginManifestIndex index = new PluginManifestIndex();
+        String packageName = parser.getPackageName();
+        index.packageName = packageName;
+
+        List<String> requestedPermissions = parser.getRequestedPermissions();
+        if (requestedPermissions != null) {
+            index.requestedPermissions.addAll(requestedPermissions);
         }
+        index.packageInfo = parser.generatePackageInfo(mHostPackageInfo.gids, 0, mPluginFile.lastModified(), mPluginFile.lastModified(), new HashSet<String>(index.requestedPermissions));
+        index.applicationInfo = parser.generateApplicationInfo(PackageManager.GET_META_DATA);
 
+        List datas = parser.getActivities();
+        for (Object data : datas) {
+            ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+            ActivityInfo info = parser.generateActivityInfo(data, PackageManager.GET_META_DATA);
+            index.activities.put(componentName, PluginManifestIndex.Component.create(info, parser.readIntentFilterFromComponent(data)));
+        }
+
+        datas = parser.getServices();
+        for (Object data : datas) {
+            ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+            ServiceInfo info = parser.generateServiceInfo(data, PackageManager.GET_META_DATA);
+            index.services.put(componentName, PluginManifestIndex.Component.create(info, parser.readIntentFilterFromComponent(data)));
+        }
 
-        datas = mParser.getProviders();
+        datas = parser.getProviders();
         for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mProviderObjCache) {
-                mProviderObjCache.put(componentName, data);
-            }
-            synchronized (mProviderInfoCache) {
-                ProviderInfo value = mParser.generateProviderInfo(data, 0);
-                fixApplicationInfo(value.applicationInfo);
-                if (TextUtils.isEmpty(value.processName)) {
-                    value.processName = value.packageName;
+            ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+            ProviderInfo info = parser.generateProviderInfo(data, PackageManager.GET_META_DATA);
+            index.providers.put(componentName, PluginManifestIndex.Component.create(info, parser.readIntentFilterFromComponent(data)));
+        }
+
+        datas = parser.getReceivers();
+        for (Object data : datas) {
+            ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+            ActivityInfo info = parser.generateReceiverInfo(data, PackageManager.GET_META_DATA);
+            index.receivers.put(componentName, PluginManifestIndex.Component.create(info, parser.readIntentFilterFromComponent(data)));
+        }
+
+        datas = parser.getPermissions();
+        for (Object data : datas) {
+            String cls = parser.readNameFromComponent(data);
+            if (cls != null) {
+                index.permissions.put(new ComponentName(packageName, cls), parser.generatePermissionInfo(data, 0));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * 用系统的PackageParser解析apk，只解析一次。
+     */
+    private PackageParser ensureParsed() throws Exception {
+        PackageParser parser = mParser;
+        if (parser != null) {
+            return parser;
+        }
+        synchronized (mParserLock) {
+            if (mParser != null) {
+                return mParser;
+            }
+            long b = System.currentTimeMillis();
+            parser = PackageParser.newPluginParser(mHostContext);
+            parser.parsePackage(mPluginFile, 0);
+            String packageName = parser.getPackageName();
+
+            List datas = parser.getActivities();
+            for (Object data : datas) {
+                ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+                synchronized (mActivityObjCache) {
+                    mActivityObjCache.put(componentName, data);
                 }
-                mProviderInfoCache.put(componentName, value);
             }
 
-            List<IntentFilter> filters = mParser.readIntentFilterFromComponent(data);
-            synchronized (mProviderIntentFilterCache) {
-                mProviderIntentFilterCache.remove(componentName);
-                mProviderIntentFilterCache.put(componentName, new ArrayList<IntentFilter>(filters));
+            datas = parser.getServices();
+            for (Object data : datas) {
+                ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+                synchronized (mServiceObjCache) {
+                    mServiceObjCache.put(componentName, data);
+                }
             }
-        }
 
+            datas = parser.getProviders();
+            for (Object data : datas) {
+                ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+                synchronized (mProviderObjCache) {
+                    mProviderObjCache.put(componentName, data);
+                }
+            }
 
-        datas = mParser.getReceivers();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mReceiversObjCache) {
-                mReceiversObjCache.put(componentName, data);
+            datas = parser.getReceivers();
+            for (Object data : datas) {
+                ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+                synchronized (mReceiversObjCache) {
+                    mReceiversObjCache.put(componentName, data);
+                }
+            }
+
+            datas = parser.getInstrumentations();
+            for (Object data : datas) {
+                ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+                synchronized (mInstrumentationObjCache) {
+                    mInstrumentationObjCache.put(componentName, data);
+                }
             }
 
-            synchronized (mReceiversInfoCache) {
-                ActivityInfo value = mParser.generateReceiverInfo(data, 0);
-                fixApplicationInfo(value.applicationInfo);
-                if (TextUtils.isEmpty(value.processName)) {
-                    value.processName = value.packageName;
+            datas = parser.getPermissions();
+            for (Object data : datas) {
+                String cls = parser.readNameFromComponent(data);
+                if (cls != null) {
+                    ComponentName componentName = new ComponentName(packageName, cls);
+                    synchronized (mPermissionsObjCache) {
+                        mPermissionsObjCache.put(componentName, data);
+                    }
                 }
-                mReceiversInfoCache.put(componentName, value);
             }
-            List<IntentFilter> filters = mParser.readIntentFilterFromComponent(data);
-            synchronized (mReceiverIntentFilterCache) {
-                mReceiverIntentFilterCache.remove(componentName);
-                mReceiverIntentFilterCache.put(componentName, new ArrayList<IntentFilter>(filters));
+
+            datas = parser.getPermissionGroups();
+            for (Object data : datas) {
+                ComponentName componentName = new ComponentName(packageName, parser.readNameFromComponent(data));
+                synchronized (mPermissionGroupObjCache) {
+                    mPermissionGroupObjCache.put(componentName, data);
+                }
+            }
+
+            if (mPendingSignatures != null) {
+                parser.writeSignature(mPendingSignatures);
+                mPendingSignatures = null;
             }
+            mParser = parser;
+            Log.i(TAG, "Parse %s cost %s ms", mPluginFile.getPath(), (System.currentTimeMillis() - b));
+            return parser;
         }
+    }
 
-        datas = mParser.getInstrumentations();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mInstrumentationObjCache) {
-                mInstrumentationObjCache.put(componentName, data);
+    private static boolean canUseIndex(int flags) {
+        return (flags & ~INDEX_FLAGS) == 0;
+    }
+
+    private void prepareComponentInfo(ComponentInfo info, int flags) {
+        if ((flags & PackageManager.GET_META_DATA) == 0) {
+            info.metaData = null;
+            if (info.applicationInfo != null) {
+                info.applicationInfo.metaData = null;
             }
         }
+        fixApplicationInfo(info.applicationInfo);
+        if (TextUtils.isEmpty(info.processName)) {
+            info.processName = info.packageName;
+        }
+    }
 
-        datas = mParser.getPermissions();
-        for (Object data : datas) {
-            String cls = mParser.readNameFromComponent(data);
-            if (cls != null) {
-                ComponentName componentName = new ComponentName(mPackageName, cls);
-                synchronized (mPermissionsObjCache) {
-                    mPermissionsObjCache.put(componentName, data);
+    /**
+     * 按需反序列化组件信息，缓存的大小按序列化后的字节数限制，组件很多的插件不会一直占着内存。
+     * 用LinkedHashMap的访问顺序做LRU，android.util.LruCache要API 12才有。
+     */
+    private class ComponentCache<T extends ComponentInfo & Parcelable> {
+
+        private final Map<ComponentName, PluginManifestIndex.Component<T>> mComponents;
+        private final Parcelable.Creator<T> mCreator;
+        private volatile IntentFilterIndex mIntentFilterIndex;
+        private final LinkedHashMap<ComponentName, PluginManifestIndex.Entry<T>> mEntries = new LinkedHashMap<ComponentName, PluginManifestIndex.Entry<T>>(16, 0.75f, true);
+        private int mSize = 0;
+
+        ComponentCache(Map<ComponentName, PluginManifestIndex.Component<T>> components, Parcelable.Creator<T> creator) {
+            mComponents = components;
+            mCreator = creator;
+        }
+
+        private PluginManifestIndex.Entry<T> get(ComponentName className) {
+            synchronized (mEntries) {
+                PluginManifestIndex.Entry<T> entry = mEntries.get(className);
+                if (entry != null) {
+                    return entry;
                 }
-                synchronized (mPermissionsInfoCache) {
-                    PermissionInfo value = mParser.generatePermissionInfo(data, 0);
-                    mPermissionsInfoCache.put(componentName, value);
+            }
+            PluginManifestIndex.Component<T> component = mComponents.get(className);
+            if (component == null) {
+                return null;
+            }
+            //反序列化不持锁，多个线程同时解出同一个组件时用先放进去的那个
+            PluginManifestIndex.Entry<T> entry = component.decode(mCreator);
+            prepareComponentInfo(entry.info, 0);
+            synchronized (mEntries) {
+                PluginManifestIndex.Entry<T> old = mEntries.get(className);
+                if (old != null) {
+                    return old;
                 }
+                mEntries.put(className, entry);
+                mSize += entry.size;
+                trimToSize();
             }
+            return entry;
         }
 
-        datas = mParser.getPermissionGroups();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mPermissionGroupObjCache) {
-                mPermissionGroupObjCache.put(componentName, data);
+        private void trimToSize() {
+            Iterator<PluginManifestIndex.Entry<T>> iterator = mEntries.values().iterator();
+            while (mSize > COMPONENT_CACHE_SIZE && mEntries.size() > 1 && iterator.hasNext()) {
+                mSize -= iterator.next().size;
+                iterator.remove();
             }
         }
 
-        List<String> requestedPermissions = mParser.getRequestedPermissions();
-        if (requestedPermissions != null && requestedPermissions.size() > 0) {
-            synchronized (mRequestedPermissionsCache) {
-                mRequestedPermissionsCache.addAll(requestedPermissions);
+        PluginManifestIndex.Entry<T> getEntry(ComponentName className) {
+            return className != null ? get(className) : null;
+        }
+
+        T newInfo(ComponentName className, int flags) {
+            PluginManifestIndex.Component<T> component = className != null ? mComponents.get(className) : null;
+            if (component == null) {
+                return null;
             }
+            T info = component.decode(mCreator).info;
+            prepareComponentInfo(info, flags);
+            return info;
+        }
+
+        List<IntentFilter> getIntentFilters(ComponentName className) {
+            PluginManifestIndex.Entry<T> entry = getEntry(className);
+            return entry != null ? entry.filters : null;
+        }
+
+        List<T> getInfos() {
+            List<T> infos = new ArrayList<T>(mComponents.size());
+            for (ComponentName className : mComponents.keySet()) {
+                PluginManifestIndex.Entry<T> entry = get(className);
+                if (entry != null) {
+                    infos.add(entry.info);
+                }
+            }
+            return infos;
+        }
+
+        IntentFilterIndex getIntentFilterIndex() {
+            IntentFilterIndex index = mIntentFilterIndex;
+            if (index == null) {
+                synchronized (mComponents) {
+                    index = mIntentFilterIndex;
+                    if (index == null) {
+                        index = new IntentFilterIndex();
+                        for (ComponentName className : mComponents.keySet()) {
+                            PluginManifestIndex.Entry<T> entry = get(className);
+                            if (entry != null) {
+                                for (IntentFilter filter : entry.filters) {
+                                    index.addFilter(className, filter);
+                                }
+                            }
+                        }
+                        mIntentFilterIndex = index;
+                    }
+                }
+            }
+            return index;
+        }
+
+        Map<T, List<IntentFilter>> getIntentFilters() {
+            Map<T, List<IntentFilter>> map = new HashMap<T, List<IntentFilter>>();
+            for (ComponentName className : mComponents.keySet()) {
+                PluginManifestIndex.Entry<T> entry = get(className);
+                if (entry != null) {
+                    map.put(entry.info, entry.filters);
+                }
+            }
+            return map;
         }
     }
 
@@ -229,36 +435,34 @@ public class PluginPackageParser {
     }
 
     public void collectCertificates(int flags) throws Exception {
-        mParser.collectCertificates(flags);
+        ensureParsed().collectCertificates(flags);
     }
 
     public List<IntentFilter> getActivityIntentFilter(ComponentName className) {
-        synchronized (mActivityIntentFilterCache) {
-            return mActivityIntentFilterCache.get(className);
-        }
+        return mActivityCache.getIntentFilters(className);
     }
 
     public List<IntentFilter> getServiceIntentFilter(ComponentName className) {
-        synchronized (mServiceIntentFilterCache) {
-            return mServiceIntentFilterCache.get(className);
-        }
+        return mServiceCache.getIntentFilters(className);
     }
 
 
     public List<IntentFilter> getProviderIntentFilter(ComponentName className) {
-        synchronized (mProviderObjCache) {
-            return mProviderIntentFilterCache.get(className);
-        }
+        return mProviderCache.getIntentFilters(className);
     }
 
 
     public ActivityInfo getActivityInfo(ComponentName className, int flags) throws Exception {
+        if (canUseIndex(flags)) {
+            return mActivityCache.newInfo(className, flags);
+        }
+        PackageParser parser = ensureParsed();
         Object data;
         synchronized (mActivityObjCache) {
             data = mActivityObjCache.get(className);
         }
         if (data != null) {
-            ActivityInfo activityInfo = mParser.generateActivityInfo(data, flags);
+            ActivityInfo activityInfo = parser.generateActivityInfo(data, flags);
             fixApplicationInfo(activityInfo.applicationInfo);
             if (TextUtils.isEmpty(activityInfo.processName)) {
                 activityInfo.processName = activityInfo.packageName;
@@ -269,12 +473,16 @@ public class PluginPackageParser {
     }
 
     public ServiceInfo getServiceInfo(ComponentName className, int flags) throws Exception {
+        if (canUseIndex(flags)) {
+            return mServiceCache.newInfo(className, flags);
+        }
+        PackageParser parser = ensureParsed();
         Object data;
         synchronized (mServiceObjCache) {
             data = mServiceObjCache.get(className);
         }
         if (data != null) {
-            ServiceInfo serviceInfo = mParser.generateServiceInfo(data, flags);
+            ServiceInfo serviceInfo = parser.generateServiceInfo(data, flags);
             fixApplicationInfo(serviceInfo.applicationInfo);
             if (TextUtils.isEmpty(serviceInfo.processName)) {
                 serviceInfo.processName = serviceInfo.packageName;
@@ -285,12 +493,16 @@ public class PluginPackageParser {
     }
 
     public ActivityInfo getReceiverInfo(ComponentName className, int flags) throws Exception {
+        if (canUseIndex(flags)) {
+            return mReceiverCache.newInfo(className, flags);
+        }
+        PackageParser parser = ensureParsed();
         Object data;
         synchronized (mReceiversObjCache) {
             data = mReceiversObjCache.get(className);
         }
         if (data != null) {
-            ActivityInfo activityInfo = mParser.generateReceiverInfo(data, flags);
+            ActivityInfo activityInfo = parser.generateReceiverInfo(data, flags);
             fixApplicationInfo(activityInfo.applicationInfo);
             if (TextUtils.isEmpty(activityInfo.processName)) {
                 activityInfo.processName = activityInfo.packageName;
@@ -302,12 +514,16 @@ public class PluginPackageParser {
 
 
     public ProviderInfo getProviderInfo(ComponentName className, int flags) throws Exception {
+        if (canUseIndex(flags)) {
+            return mProviderCache.newInfo(className, flags);
+        }
+        PackageParser parser = ensureParsed();
         Object data;
         synchronized (mProviderObjCache) {
             data = mProviderObjCache.get(className);
         }
         if (data != null) {
-            ProviderInfo providerInfo = mParser.generateProviderInfo(data, flags);
+            ProviderInfo providerInfo = parser.generateProviderInfo(data, flags);
             fixApplicationInfo(providerInfo.applicationInfo);
             if (TextUtils.isEmpty(providerInfo.processName)) {
                 providerInfo.processName = providerInfo.packageName;
@@ -318,18 +534,27 @@ public class PluginPackageParser {
     }
 
     public InstrumentationInfo getInstrumentationInfo(ComponentName className, int flags) throws Exception {
+        PackageParser parser = ensureParsed();
         Object data;
         synchronized (mInstrumentationObjCache) {
             data = mInstrumentationObjCache.get(className);
         }
         if (data != null) {
-            return mParser.generateInstrumentationInfo(data, flags);
+            return parser.generateInstrumentationInfo(data, flags);
         }
         return null;
     }
 
     public ApplicationInfo getApplicationInfo(int flags) throws Exception {
-        ApplicationInfo applicationInfo = mParser.generateApplicationInfo(flags);
+        ApplicationInfo applicationInfo;
+        if (canUseIndex(flags)) {
+            applicationInfo = PluginManifestIndex.copy(mIndex.applicationInfo, ApplicationInfo.CREATOR);
+            if ((flags & PackageManager.GET_META_DATA) == 0) {
+                applicationInfo.metaData = null;
+            }
+        } else {
+            applicationInfo = ensureParsed().generateApplicationInfo(flags);
+        }
         fixApplicationInfo(applicationInfo);
         if (TextUtils.isEmpty(applicationInfo.processName)) {
             applicationInfo.processName = applicationInfo.packageName;
@@ -339,48 +564,56 @@ public class PluginPackageParser {
 
 
     public PermissionGroupInfo getPermissionGroupInfo(ComponentName className, int flags) throws Exception {
+        PackageParser parser = ensureParsed();
         Object data;
         synchronized (mPermissionGroupObjCache) {
             data = mPermissionGroupObjCache.get(className);
         }
         if (data != null) {
-            return mParser.generatePermissionGroupInfo(data, flags);
+            return parser.generatePermissionGroupInfo(data, flags);
         }
         return null;
     }
 
     public PermissionInfo getPermissionInfo(ComponentName className, int flags) throws Exception {
+        if (flags == 0) {
+            return PluginManifestIndex.copy(mIndex.permissions.get(className), PermissionInfo.CREATOR);
+        }
+        PackageParser parser = ensureParsed();
         Object data;
         synchronized (mPermissionsObjCache) {
             data = mPermissionsObjCache.get(className);
         }
         if (data != null) {
-            return mParser.generatePermissionInfo(data, flags);
+            return parser.generatePermissionInfo(data, flags);
         }
         return null;
     }
 
     public PackageInfo getPackageInfo(int flags) throws Exception {
-        PackageInfo packageInfo = mParser.generatePackageInfo(mHostPackageInfo.gids, flags, mPluginFile.lastModified(), mPluginFile.lastModified(), new HashSet<String>(getRequestedPermissions()));
+        if (flags == 0) {
+            return fixPackageInfo(PluginManifestIndex.copy(mIndex.packageInfo, PackageInfo.CREATOR));
+        }
+        PackageInfo packageInfo = ensureParsed().generatePackageInfo(mHostPackageInfo.gids, flags, mPluginFile.lastModified(), mPluginFile.lastModified(), new HashSet<String>(getRequestedPermissions()));
         fixPackageInfo(packageInfo);
         return packageInfo;
     }
 
 
     public List<ActivityInfo> getActivities() throws Exception {
-        return new ArrayList<ActivityInfo>(mActivityInfoCache.values());
+        return mActivityCache.getInfos();
     }
 
     public List<ServiceInfo> getServices() throws Exception {
-        return new ArrayList<ServiceInfo>(mServiceInfoCache.values());
+        return mServiceCache.getInfos();
     }
 
     public List<ProviderInfo> getProviders() throws Exception {
-        return new ArrayList<ProviderInfo>(mProviderInfoCache.values());
+        return mProviderCache.getInfos();
     }
 
     public List<ActivityInfo> getReceivers() throws Exception {
-        return new ArrayList<ActivityInfo>(mReceiversInfoCache.values());
+        return mReceiverCache.getInfos();
     }
 
     public List<PermissionInfo> getPermissions() throws Exception {
@@ -484,30 +717,40 @@ public class PluginPackageParser {
     }
 
 
+    IntentFilterIndex getActivityIntentFilterIndex() {
+        return mActivityCache.getIntentFilterIndex();
+    }
+
+    IntentFilterIndex getServiceIntentFilterIndex() {
+        return mServiceCache.getIntentFilterIndex();
+    }
+
+    IntentFilterIndex getProviderIntentFilterIndex() {
+        return mProviderCache.getIntentFilterIndex();
+    }
+
+    IntentFilterIndex getReceiverIntentFilterIndex() {
+        return mReceiverCache.getIntentFilterIndex();
+    }
+
     public Map<ActivityInfo, List<IntentFilter>> getReceiverIntentFilter() {
-        synchronized (mReceiverIntentFilterCache) {
-            Map<ActivityInfo, List<IntentFilter>> map = new HashMap<ActivityInfo, List<IntentFilter>>();
-            for (ComponentName componentName : mReceiverIntentFilterCache.keySet()) {
-                map.put(mReceiversInfoCache.get(componentName), mReceiverIntentFilterCache.get(componentName));
-            }
-            return map;
-        }
+        return mReceiverCache.getIntentFilters();
     }
 
     public List<IntentFilter> getReceiverIntentFilter(ActivityInfo info) {
-        synchronized (mReceiverIntentFilterCache) {
-            for (ComponentName componentName : mReceiverIntentFilterCache.keySet()) {
-                if (TextUtils.equals(info.name, mReceiversInfoCache.get(componentName).name)) {
-                    return mReceiverIntentFilterCache.get(componentName);
-                }
-            }
-        }
-        return null;
+        return mReceiverCache.getIntentFilters(new ComponentName(mPackageName, info.name));
     }
 
     public void writeSignature(Signature[] signatures) throws Exception {
         if (signatures != null) {
-            mParser.writeSignature(signatures);
+            synchronized (mParserLock) {
+                if (mParser != null) {
+                    mParser.writeSignature(signatures);
+                } else {
+                    //还没有解析apk，等解析的时候再写进去
+                    mPendingSignatures = signatures;
+                }
+            }
         }
     }
 }
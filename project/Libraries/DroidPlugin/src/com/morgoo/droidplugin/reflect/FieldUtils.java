@@ -27,11 +27,9 @@ import android.text.TextUtils;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 
 
 /**
@@ -39,23 +37,14 @@ import java.util.Map;
  */
 public class FieldUtils {
 
-    private static Map<String, Field> sFieldCache = new HashMap<String, Field>();
-
-    private static String getKey(Class<?> cls, String fieldName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(cls.toString()).append("#").append(fieldName);
-        return sb.toString();
-    }
+    private static final MemberCache<Field> sFieldCache = new MemberCache<Field>();
 
     private static Field getField(Class<?> cls, String fieldName, final boolean forceAccess) {
         Validate.isTrue(cls != null, "The class must not be null");
         Validate.isTrue(!TextUtils.isEmpty(fieldName), "The field name must not be blank/empty");
 
-        String key = getKey(cls, fieldName);
-        Field cachedField;
-        synchronized (sFieldCache) {
-            cachedField = sFieldCache.get(key);
-        }
+        MemberCache.Entry<Field> cached = sFieldCache.get(cls, fieldName, null);
+        Field cachedField = cached != null ? cached.member : null;
         if (cachedField != null) {
             if (forceAccess && !cachedField.isAccessible()) {
                 cachedField.setAccessible(true);
@@ -76,9 +65,7 @@ public class FieldUtils {
                         continue;
                     }
                 }
-                synchronized (sFieldCache) {
-                    sFieldCache.put(key, field);
-                }
+                sFieldCache.put(cls, fieldName, null, field);
                 return field;
             } catch (final NoSuchFieldException ex) { // NOPMD
                 // ignore
@@ -98,9 +85,7 @@ public class FieldUtils {
                 // ignore
             }
         }
-        synchronized (sFieldCache) {
-            sFieldCache.put(key, match);
-        }
+        sFieldCache.put(cls, fieldName, null, match);
         return match;
     }
 
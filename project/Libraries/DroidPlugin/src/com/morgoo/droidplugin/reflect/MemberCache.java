@@ -0,0 +1,110 @@
+/*
+**        DroidPlugin Project
+**
+** Copyright(c) 2015 Andy Zhang <zhangyong232@gmail.com>
+**
+** This file is part of DroidPlugin.
+**
+** DroidPlugin is free software: you can redistribute it and/or
+** modify it under the terms of the GNU Lesser General Public
+** License as published by the Free Software Foundation, either
+** version 3 of the License, or (at your option) any later version.
+**
+** DroidPlugin is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+** Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public
+** License along with DroidPlugin.  If not, see <http://www.gnu.org/licenses/lgpl.txt>
+**
+**/
+
+package com.morgoo.droidplugin.reflect;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 反射得到的Method、Field的缓存。
+ * <p/>
+ * 先按Class分组，再按名字找到一个很短的链表，逐个比较参数类型（直接比较引用）。
+ * 命中时不拼接字符串，不分配对象，也不加锁；写入时复制链表头，已有的节点不会被修改。
+ * <p/>
+ * 找不到的成员也会缓存，此时Entry.member为null；之后找到了会覆盖这个null。
+ */
+class MemberCache<T> {
+
+    private static final Class<?>[] EMPTY_CLASS_ARRAY = new Class<?>[0];
+
+    static final class Entry<T> {
+        final T member;
+        private final Class<?>[] mParameterTypes;
+        private final Entry<T> mNext;
+
+        private Entry(Class<?>[] parameterTypes, T member, Entry<T> next) {
+            this.member = member;
+            mParameterTypes = parameterTypes;
+            mNext = next;
+        }
+
+        private boolean matches(Class<?>[] parameterTypes) {
+            int length = parameterTypes != null ? parameterTypes.length : 0;
+            if (mParameterTypes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (mParameterTypes[i] != parameterTypes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Entry<T>>> mCache = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Entry<T>>>();
+
+    /**
+     * @return 没有缓存时返回null
+     */
+    Entry<T> get(Class<?> cls, String name, Class<?>[] parameterTypes) {
+        ConcurrentHashMap<String, Entry<T>> members = mCache.get(cls);
+        if (members == null) {
+            return null;
+        }
+        for (Entry<T> entry = members.get(name); entry != null; entry = entry.mNext) {
+            if (entry.matches(parameterTypes)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    void put(Class<?> cls, String name, Class<?>[] parameterTypes, T member) {
+        ConcurrentHashMap<String, Entry<T>> members = mCache.get(cls);
+        if (members == null) {
+            members = new ConcurrentHashMap<String, Entry<T>>(4);
+            ConcurrentHashMap<String, Entry<T>> old = mCache.putIfAbsent(cls, members);
+            if (old != null) {
+                members = old;
+            }
+        }
+        Class<?>[] types = parameterTypes != null && parameterTypes.length > 0 ? parameterTypes.clone() : EMPTY_CLASS_ARRAY;
+        while (true) {
+            Entry<T> head = members.get(name);
+            for (Entry<T> entry = head; entry != null; entry = entry.mNext) {
+                if (entry.matches(types)) {
+                    if (entry.member != null || member == null) {
+                        return;
+                    }
+                    //之前缓存的是找不到（例如forceAccess=false时没找到非public的Field），
+                    //把找到的放到链表头，get时会先命中它
+                    break;
+                }
+            }
+            Entry<T> entry = new Entry<T>(types, member, head);
+            if (head == null ? members.putIfAbsent(name, entry) == null : members.replace(name, head, entry)) {
+                return;
+            }
+        }
+    }
+}
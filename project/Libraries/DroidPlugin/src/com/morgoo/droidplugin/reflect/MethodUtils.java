@@ -27,8 +27,6 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
-import java.util.Map;
 
 
 /**
@@ -36,20 +34,7 @@ import java.util.Map;
  */
 public class MethodUtils {
 
-    private static Map<String, Method> sMethodCache = new HashMap<String, Method>();
-
-    private static String getKey(final Class<?> cls, final String methodName, final Class<?>... parameterTypes) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(cls.toString()).append("#").append(methodName);
-        if (parameterTypes != null && parameterTypes.length > 0) {
-            for (Class<?> parameterType : parameterTypes) {
-                sb.append(parameterType.toString()).append("#");
-            }
-        } else {
-            sb.append(Void.class.toString());
-        }
-        return sb.toString();
-    }
+    private static final MemberCache<Method> sMethodCache = new MemberCache<Method>();
 
 
     private static Method getAccessibleMethodFromSuperclass(final Class<?> cls,
@@ -128,11 +113,8 @@ public class MethodUtils {
 
     public static Method getAccessibleMethod(final Class<?> cls, final String methodName,
                                              final Class<?>... parameterTypes) throws NoSuchMethodException {
-        String key = getKey(cls, methodName, parameterTypes);
-        Method method;
-        synchronized (sMethodCache) {
-            method = sMethodCache.get(key);
-        }
+        MemberCache.Entry<Method> cached = sMethodCache.get(cls, methodName, parameterTypes);
+        Method method = cached != null ? cached.member : null;
         if (method != null) {
             if (!method.isAccessible()) {
                 method.setAccessible(true);
@@ -142,9 +124,7 @@ public class MethodUtils {
 
         Method accessibleMethod = getAccessibleMethod(cls.getMethod(methodName,
                 parameterTypes));
-        synchronized (sMethodCache) {
-            sMethodCache.put(key, accessibleMethod);
-        }
+        sMethodCache.put(cls, methodName, parameterTypes, accessibleMethod);
         return accessibleMethod;
 
     }
@@ -152,11 +132,8 @@ public class MethodUtils {
     private static Method getMatchingAccessibleMethod(final Class<?> cls,
                                                       final String methodName, final Class<?>... parameterTypes) {
 
-        String key = getKey(cls, methodName, parameterTypes);
-        Method cachedMethod;
-        synchronized (sMethodCache) {
-            cachedMethod = sMethodCache.get(key);
-        }
+        MemberCache.Entry<Method> cached = sMethodCache.get(cls, methodName, parameterTypes);
+        Method cachedMethod = cached != null ? cached.member : null;
         if (cachedMethod != null) {
             if (!cachedMethod.isAccessible()) {
                 cachedMethod.setAccessible(true);
@@ -167,9 +144,7 @@ public class MethodUtils {
         try {
             final Method method = cls.getMethod(methodName, parameterTypes);
             MemberUtils.setAccessibleWorkaround(method);
-            synchronized (sMethodCache) {
-                sMethodCache.put(key, method);
-            }
+            sMethodCache.put(cls, methodName, parameterTypes, method);
             return method;
         } catch (final NoSuchMethodException e) { // NOPMD - Swallow the exception
         }
@@ -192,9 +167,7 @@ public class MethodUtils {
         if (bestMatch != null) {
             MemberUtils.setAccessibleWorkaround(bestMatch);
         }
-        synchronized (sMethodCache) {
-            sMethodCache.put(key, bestMatch);
-        }
+        sMethodCache.put(cls, methodName, parameterTypes, bestMatch);
         return bestMatch;
     }
 
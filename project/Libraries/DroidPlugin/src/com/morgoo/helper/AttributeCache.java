@@ -23,41 +23,190 @@ import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
-import android.os.UserHandle;
-import android.util.SparseArray;
+import android.os.Build;
 
-import java.util.HashMap;
-import java.util.WeakHashMap;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TODO: This should be better integrated into the system so it doesn't need
  * special calls from the activity manager to clear it.
+ * <p/>
+ * Packages are kept in a concurrent map and each package has its own bounded
+ * concurrent map of (theme resId, styleable contents) to TypedArray, so lookups
+ * take no lock and memory per package is bounded. When a package goes over its
+ * bound one thread evicts with a second-chance sweep (approximate LRU; it does
+ * not rely on android.util.LruCache, which needs API 12). Entries are
+ * reference counted: the cache holds one reference and every {@link #get}
+ * returns another that the caller gives back with {@link Entry#release()}.
+ * An evicted TypedArray is recycled only after the last reference is released;
+ * callers that never release simply leave the array to the garbage collector.
  */
 public final class AttributeCache {
+    private static final String TAG = AttributeCache.class.getSimpleName();
+
+    // Upper bound on cached attribute slots (sum of styleable lengths) per package.
+    private static final int MAX_ATTRS_PER_PACKAGE = 4 * 1024;
+
     private static AttributeCache sInstance = null;
 
     private final Context mContext;
-    private final WeakHashMap<String, Package> mPackages =
-            new WeakHashMap<String, Package>();
+    private final ConcurrentHashMap<String, Package> mPackages =
+            new ConcurrentHashMap<String, Package>();
     private final Configuration mConfiguration = new Configuration();
 
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
     public final static class Package {
         public final Context context;
-        private final SparseArray<HashMap<int[], Entry>> mMap
-                = new SparseArray<HashMap<int[], Entry>>();
+        private final ConcurrentHashMap<Key, Entry> mMap = new ConcurrentHashMap<Key, Entry>();
+        // Sum of the sizes of the cached entries.
+        private final AtomicInteger mSize = new AtomicInteger();
+        private final AtomicBoolean mTrimming = new AtomicBoolean();
+        private final AtomicInteger mEvictions = new AtomicInteger();
 
         public Package(Context c) {
             context = c;
         }
+
+        private Entry create(Key key) {
+            try {
+                return new Entry(context, context.obtainStyledAttributes(key.resId, key.styleable),
+                        Math.max(1, key.styleable.length));
+            } catch (Resources.NotFoundException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return the entry already cached for the key, in which case the
+         * given one was not added; null if it was added.
+         */
+        private Entry putIfAbsent(Key key, Entry entry) {
+            Entry old = mMap.putIfAbsent(key, entry);
+            if (old == null && mSize.addAndGet(entry.mSize) > MAX_ATTRS_PER_PACKAGE) {
+                trimToSize();
+            }
+            return old;
+        }
+
+        private void remove(Key key, Entry entry) {
+            if (mMap.remove(key, entry)) {
+                mSize.addAndGet(-entry.mSize);
+                // Drop the cache's own reference; recycles once no caller holds it.
+                entry.release();
+            }
+        }
+
+        private void trimToSize() {
+            // Someone else is already trimming.
+            if (!mTrimming.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                // The first pass may only clear referenced bits.
+                for (int pass = 0; pass < 2 && mSize.get() > MAX_ATTRS_PER_PACKAGE; pass++) {
+                    for (Map.Entry<Key, Entry> e : mMap.entrySet()) {
+                        Entry entry = e.getValue();
+                        if (entry.mReferenced) {
+                            entry.mReferenced = false;
+                        } else {
+                            remove(e.getKey(), entry);
+                            mEvictions.incrementAndGet();
+                            if (mSize.get() <= MAX_ATTRS_PER_PACKAGE) {
+                                break;
+                            }
+                        }
+                    }
+                }
+            } finally {
+                mTrimming.set(false);
+            }
+        }
+
+        private void clear() {
+            for (Map.Entry<Key, Entry> e : mMap.entrySet()) {
+                remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Styleables are matched by contents, not identity, so equal arrays
+     * obtained from different places share one entry.
+     */
+    private final static class Key {
+        final int resId;
+        final int[] styleable;
+        private final int mHash;
+
+        Key(int resId, int[] styleable) {
+            this.resId = resId;
+            this.styleable = styleable;
+            mHash = 31 * resId + Arrays.hashCode(styleable);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return resId == other.resId && mHash == other.mHash && Arrays.equals(styleable, other.styleable);
+        }
     }
 
     public final static class Entry {
         public final Context context;
         public final TypedArray array;
+        private final int mSize;
+        // One reference belongs to the cache while the entry is cached.
+        private int mRefCount = 1;
+        // Set on every hit, cleared by the eviction sweep.
+        private volatile boolean mReferenced;
 
-        public Entry(Context c, TypedArray ta) {
+        private Entry(Context c, TypedArray ta, int size) {
             context = c;
             array = ta;
+            mSize = size;
+        }
+
+        private synchronized boolean acquire() {
+            if (mRefCount <= 0) {
+                return false;
+            }
+            mRefCount++;
+            return true;
+        }
+
+        /**
+         * Gives back a reference obtained from {@link AttributeCache#get}.
+         */
+        public void release() {
+            boolean recycle;
+            synchronized (this) {
+                recycle = --mRefCount == 0;
+            }
+            if (recycle) {
+                try {
+                    array.recycle();
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "recycle TypedArray fail", e);
+                }
+            }
         }
     }
 
@@ -76,67 +225,113 @@ public final class AttributeCache {
     }
 
     public void removePackage(String packageName) {
-        synchronized (this) {
-            mPackages.remove(packageName);
+        Package pkg = mPackages.remove(packageName);
+        if (pkg != null) {
+            pkg.clear();
         }
     }
 
     public void updateConfiguration(Configuration config) {
-        synchronized (this) {
-            int changes = mConfiguration.updateFrom(config);
-            if ((changes & ~(ActivityInfo.CONFIG_FONT_SCALE |
-                    ActivityInfo.CONFIG_KEYBOARD_HIDDEN |
-                    ActivityInfo.CONFIG_ORIENTATION)) != 0) {
-                // The configurations being masked out are ones that commonly
-                // change so we don't want flushing the cache... all others
-                // will flush the cache.
-                mPackages.clear();
+        int changes;
+        synchronized (mConfiguration) {
+            changes = mConfiguration.updateFrom(config);
+        }
+        changes &= ~(ActivityInfo.CONFIG_FONT_SCALE |
+                ActivityInfo.CONFIG_KEYBOARD_HIDDEN |
+                ActivityInfo.CONFIG_ORIENTATION);
+        if (changes == 0) {
+            // The configurations being masked out are ones that commonly
+            // change so we don't want flushing the cache...
+            return;
+        }
+        for (Package pkg : mPackages.values()) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                pkg.clear();
+                continue;
+            }
+            // Only drop the arrays whose values depend on what changed. An
+            // entry that can't be acquired is already evicted and may have
+            // been recycled, so its array must not be touched.
+            for (Map.Entry<Key, Entry> e : pkg.mMap.entrySet()) {
+                Entry entry = e.getValue();
+                if (!entry.acquire()) {
+                    continue;
+                }
+                try {
+                    if ((entry.array.getChangingConfigurations() & changes) != 0) {
+                        pkg.remove(e.getKey(), entry);
+                    }
+                } finally {
+                    entry.release();
+                }
             }
         }
     }
 
+    /**
+     * @return an acquired entry, call {@link Entry#release()} when done with
+     * it; null if the package or the resource can not be found.
+     */
     public Entry get(String packageName, int resId, int[] styleable) {
-        synchronized (this) {
-            Package pkg = mPackages.get(packageName);
-            HashMap<int[], Entry> map = null;
-            Entry ent = null;
-            if (pkg != null) {
-                map = pkg.mMap.get(resId);
-                if (map != null) {
-                    ent = map.get(styleable);
-                    if (ent != null) {
-                        return ent;
-                    }
-                }
-            } else {
-                Context context;
-                try {
-                    context = mContext.createPackageContext(packageName, 0);
-                    if (context == null) {
-                        return null;
-                    }
-                } catch (PackageManager.NameNotFoundException e) {
+        Package pkg = mPackages.get(packageName);
+        if (pkg == null) {
+            Context context;
+            try {
+                context = mContext.createPackageContext(packageName, 0);
+                if (context == null) {
                     return null;
                 }
-                pkg = new Package(context);
-                mPackages.put(packageName, pkg);
+            } catch (PackageManager.NameNotFoundException e) {
+                return null;
             }
-
-            if (map == null) {
-                map = new HashMap<int[], Entry>();
-                pkg.mMap.put(resId, map);
+            pkg = new Package(context);
+            Package old = mPackages.putIfAbsent(packageName, pkg);
+            if (old != null) {
+                pkg = old;
             }
+        }
 
-            try {
-                ent = new Entry(pkg.context,
-                        pkg.context.obtainStyledAttributes(resId, styleable));
-                map.put(styleable, ent);
-            } catch (Resources.NotFoundException e) {
-                return null;
+        Key key = new Key(resId, styleable);
+        boolean created = false;
+        while (true) {
+            Entry ent = pkg.mMap.get(key);
+            if (ent == null) {
+                // Obtained outside of any lock; if another thread cached the
+                // same key first, use its entry and drop ours.
+                ent = pkg.create(key);
+                if (ent == null) {
+                    mMisses.incrementAndGet();
+                    return null;
+                }
+                Entry old = pkg.putIfAbsent(key, ent);
+                if (old != null) {
+                    ent.release();
+                    ent = old;
+                } else {
+                    created = true;
+                }
+            }
+            // Lost a race with eviction, the entry is already being recycled.
+            if (ent.acquire()) {
+                ent.mReferenced = true;
+                if (created) {
+                    mMisses.incrementAndGet();
+                } else {
+                    mHits.incrementAndGet();
+                }
+                return ent;
             }
+        }
+    }
 
-            return ent;
+    public String dump() {
+        int entries = 0;
+        int evictions = 0;
+        for (Package pkg : mPackages.values()) {
+            entries += pkg.mMap.size();
+            evictions += pkg.mEvictions.get();
         }
+        return String.format("AttributeCache[packages=%d,size=%d,hits=%d,misses=%d,evictions=%d]",
+                mPackages.size(), entries, mHits.get(), mMisses.get(), evictions);
     }
 }
-
@@ -0,0 +1,251 @@
+/*
+**        DroidPlugin Project
+**
+** Copyright(c) 2015 Andy Zhang <zhangyong232@gmail.com>
+**
+** This file is part of DroidPlugin.
+**
+** DroidPlugin is free software: you can redistribute it and/or
+** modify it under the terms of the GNU Lesser General Public
+** License as published by the Free Software Foundation, either
+** version 3 of the License, or (at your option) any later version.
+**
+** DroidPlugin is distributed in the hope that it will be useful,
+** but WITHOUT ANY WARRANTY; without even the implied warranty of
+** MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+** Lesser General Public License for more details.
+**
+** You should have received a copy of the GNU Lesser General Public
+** License along with DroidPlugin.  If not, see <http://www.gnu.org/licenses/lgpl.txt>
+**
+**/
+
+package com.morgoo.helper;
+
+import android.os.Process;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * 异步写文件日志。
+ * <p/>
+ * 调用线程只把日志放进一个固定大小的环形缓冲区，由单独的写线程攒够一批或者到了时间再写文件。
+ * 日志文件一直打开着，超过大小后滚动成Log_xxx.log.1、.2...，而不是直接删除。
+ * <p/>
+ * 时间格式化、拼接日志头和打印异常堆栈都在写线程里做。写线程自己的文件操作不能再走LibCoreHook，
+ * 否则会循环调用，LibCoreHook通过{@link #isWriterThread()}只对这个线程跳过，不需要全局禁用hook。
+ */
+class FileLogger implements Runnable {
+
+    private static final int CAPACITY = 1024;
+    private static final int BATCH_SIZE = 64;
+    private static final long FLUSH_INTERVAL = 1000;
+    private static final int MAX_BACKUP_FILES = 3;
+
+    private static volatile Thread sWriterThread;
+
+    private static class Record {
+        long time;
+        int level;
+        String tag;
+        String msg;
+        Throwable tr;
+    }
+
+    private final File mDir;
+    private final long mMaxFileSize;
+
+    private final Object mLock = new Object();
+    private final Record[] mRing = new Record[CAPACITY];
+    private int mHead = 0;
+    private int mCount = 0;
+    private int mDropped = 0;
+
+    //以下只在写线程里访问
+    private final SimpleDateFormat mTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+    private final SimpleDateFormat mDayFormat = new SimpleDateFormat("yyyyMMdd");
+    private final StringBuilder mLine = new StringBuilder(256);
+    private final String mProcessInfo;
+    private File mFile;
+    private PrintWriter mWriter;
+
+    FileLogger(File dir, long maxFileSize) {
+        mDir = dir;
+        mMaxFileSize = maxFileSize;
+        mProcessInfo = String.format(" %s-%s/%s ", Process.myPid(), Process.myUid(), "?");
+        for (int i = 0; i < CAPACITY; i++) {
+            mRing[i] = new Record();
+        }
+        Thread thread = new Thread(this, "DroidPlugin@FileLogThread");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        sWriterThread = thread;
+        thread.start();
+    }
+
+    static boolean isWriterThread() {
+        Thread writerThread = sWriterThread;
+        return writerThread != null && writerThread == Thread.currentThread();
+    }
+
+    /**
+     * 缓冲区满时丢弃最旧的一条，写线程会在文件里记下丢了多少条。
+     */
+    void log(int level, String tag, String msg, Throwable tr) {
+        synchronized (mLock) {
+            if (mCount == CAPACITY) {
+                mHead = (mHead + 1) % CAPACITY;
+                mCount--;
+                mDropped++;
+            }
+            Record record = mRing[(mHead + mCount) % CAPACITY];
+            record.time = System.currentTimeMillis();
+            record.level = level;
+            record.tag = tag;
+            record.msg = msg;
+            record.tr = tr;
+            mCount++;
+            if (mCount == BATCH_SIZE) {
+                mLock.notify();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        Record[] batch = new Record[CAPACITY];
+        for (int i = 0; i < CAPACITY; i++) {
+            batch[i] = new Record();
+        }
+        while (true) {
+            int count;
+            int dropped;
+            synchronized (mLock) {
+                if (mCount < BATCH_SIZE) {
+                    try {
+                        mLock.wait(FLUSH_INTERVAL);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                count = mCount;
+                for (int i = 0; i < count; i++) {
+                    Record from = mRing[(mHead + i) % CAPACITY];
+                    Record to = batch[i];
+                    to.time = from.time;
+                    to.level = from.level;
+                    to.tag = from.tag;
+                    to.msg = from.msg;
+                    to.tr = from.tr;
+                    from.tag = null;
+                    from.msg = null;
+                    from.tr = null;
+                }
+                mHead = (mHead + count) % CAPACITY;
+                mCount = 0;
+                dropped = mDropped;
+                mDropped = 0;
+            }
+            if (count > 0 || dropped > 0) {
+                writeBatch(batch, count, dropped);
+            }
+        }
+    }
+
+    private void writeBatch(Record[] batch, int count, int dropped) {
+        try {
+            PrintWriter writer = ensureWriter(count > 0 ? batch[0].time : System.currentTimeMillis());
+            if (dropped > 0) {
+                writer.println(String.format("---- %s log lines dropped ----", dropped));
+            }
+            for (int i = 0; i < count; i++) {
+                Record record = batch[i];
+                mLine.setLength(0);
+                mLine.append(mTimeFormat.format(new Date(record.time)))
+                        .append(mProcessInfo)
+                        .append(levelToStr(record.level)).append('/').append(record.tag)
+                        .append(' ').append(record.msg);
+                writer.println(mLine);
+                if (record.tr != null) {
+                    record.tr.printStackTrace(writer);
+                    writer.println();
+                }
+                record.tag = null;
+                record.msg = null;
+                record.tr = null;
+            }
+            writer.flush();
+            if (writer.checkError()) {
+                throw new IOException("write " + mFile.getPath() + " fail");
+            }
+            if (mFile.length() > mMaxFileSize) {
+                rotate();
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+            closeWriter();
+        }
+    }
+
+    private PrintWriter ensureWriter(long time) throws IOException {
+        File file = new File(mDir, String.format("Log_%s_%s.log", mDayFormat.format(new Date(time)), Process.myPid()));
+        if (mWriter != null && file.equals(mFile)) {
+            return mWriter;
+        }
+        closeWriter();
+        if (!mDir.exists()) {
+            mDir.mkdirs();
+        }
+        mWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true)), 8 * 1024));
+        mFile = file;
+        return mWriter;
+    }
+
+    private void rotate() {
+        closeWriter();
+        File file = mFile;
+        new File(file.getPath() + "." + MAX_BACKUP_FILES).delete();
+        for (int i = MAX_BACKUP_FILES - 1; i >= 1; i--) {
+            File backup = new File(file.getPath() + "." + i);
+            if (backup.exists()) {
+                backup.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        file.renameTo(new File(file.getPath() + ".1"));
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (Throwable e) {
+            }
+            mWriter = null;
+        }
+    }
+
+    private static String levelToStr(int level) {
+        switch (level) {
+            case android.util.Log.VERBOSE:
+                return "V";
+            case android.util.Log.DEBUG:
+                return "D";
+            case android.util.Log.INFO:
+                return "I";
+            case android.util.Log.WARN:
+                return "W";
+            case android.util.Log.ERROR:
+                return "E";
+            case android.util.Log.ASSERT:
+                return "A";
+            default:
+                return "UNKNOWN";
+        }
+    }
+}
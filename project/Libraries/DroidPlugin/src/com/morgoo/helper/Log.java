@@ -23,18 +23,8 @@
 package com.morgoo.helper;
 
 import android.os.Environment;
-import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Process;
-
-import com.morgoo.droidplugin.hook.HookFactory;
-import com.morgoo.droidplugin.hook.proxy.LibCoreHook;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 /**
  * Created by zhangyong on 14/10/18.
@@ -53,8 +43,7 @@ public class Log {
 
     private static boolean sDebug = false;
     private static boolean sFileLog = false;
-    private static final SimpleDateFormat sFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-    private static final SimpleDateFormat sFormat1 = new SimpleDateFormat("yyyyMMdd");
+    private static FileLogger sFileLogger;
 
     private Log() {
     }
@@ -64,6 +53,9 @@ public class Log {
     static {
         sFileLog = sDir.exists() && sDir.isDirectory();
         sDebug = sFileLog;
+        if (sFileLog) {
+            sFileLogger = new FileLogger(sDir, MAX_LOG_FILE);
+        }
     }
 
     public static boolean isDebug() {
@@ -82,100 +74,23 @@ public class Log {
         return isDebug();
     }
 
-    private static String levelToStr(int level) {
-        switch (level) {
-            case VERBOSE:
-                return "V";
-            case DEBUG:
-                return "D";
-            case INFO:
-                return "I";
-            case WARN:
-                return "W";
-            case ERROR:
-                return "E";
-            case ASSERT:
-                return "A";
-            default:
-                return "UNKNOWN";
-        }
-    }
-
-    private static File getLogFile() {
-        File file = new File(Environment.getExternalStorageDirectory(), String.format("360Log/Plugin/Log_%s_%s.log", sFormat1.format(new Date()), android.os.Process.myPid()));
-        File dir = file.getParentFile();
-        if (!dir.exists()) {
-            dir.mkdirs();
-        }
-        return file;
-    }
-
-    private static HandlerThread sHandlerThread;
-    private static Handler sHandler;
-
-    static {
-        sHandlerThread = new HandlerThread("DroidPlugin@FileLogThread");
-        sHandlerThread.start();
-        sHandler = new Handler(sHandlerThread.getLooper());
-    }
-
-    private static void logToFile(final int level, final String tag, final String format, final Object[] args, final Throwable tr) {
-        sHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                logToFileInner(level, tag, format, args, tr);
-            }
-        });
-    }
-
-    private static void logToFileInner(int level, String tag, String format, Object[] args, Throwable tr) {
-        PrintWriter writer = null;
-        try {
-            if (!isFileLog()) {
-                return;
-            }
-
-            //禁用LibCoreHook，防止方法循环调用。
-            HookFactory.getInstance().setHookEnable(LibCoreHook.class, false);
-
-
-            File logFile = getLogFile();
-            if (logFile.length() > MAX_LOG_FILE) {
-                logFile.delete();
-            }
-            writer = new PrintWriter(new FileWriter(logFile, true));
-            String msg = String.format(format, args);
-            String log = String.format("%s %s-%s/%s %s/%s %s", sFormat.format(new Date()), Process.myPid(), Process.myUid(), getProcessName(), levelToStr(level), tag, msg);
-            writer.println(log);
-            if (tr != null) {
-                tr.printStackTrace(writer);
-                writer.println();
-            }
-        } catch (Throwable e) {
-            e.printStackTrace();
-        } finally {
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (Throwable e) {
-                }
-            }
-            HookFactory.getInstance().setHookEnable(LibCoreHook.class, true);
-        }
-    }
-
-    private static String getProcessName() {
-        return "?";
+    /**
+     * 当前线程是否是写日志文件的线程，这个线程上的文件操作不能被LibCoreHook处理，否则会循环调用。
+     */
+    public static boolean isFileLogThread() {
+        return FileLogger.isWriterThread();
     }
 
     private static void println(final int level, final String tag, final String format, final Object[] args, final Throwable tr) {
-        logToFile(level, tag, format, args, tr);
         String message;
         if (args != null && args.length > 0) {
             message = String.format(format, args);
         } else {
             message = format;
         }
+        if (isFileLog()) {
+            sFileLogger.log(level, tag, message, tr);
+        }
 
         if (tr != null) {
             message += android.util.Log.getStackTraceString(tr);
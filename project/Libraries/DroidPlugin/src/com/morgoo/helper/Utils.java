@@ -25,13 +25,12 @@ package com.morgoo.helper;
 import android.app.ActivityManager;
 import android.content.Context;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
@@ -53,17 +52,27 @@ public class Utils {
     }
 
 
+    /**
+     * 用FileChannel.transferTo复制，数据不用经过Java层的缓冲区
+     */
     public static void copyFile(String src, String dst) throws IOException {
-        BufferedInputStream in = null;
-        BufferedOutputStream ou = null;
+        FileInputStream in = null;
+        FileOutputStream ou = null;
         try {
-            in = new BufferedInputStream(new FileInputStream(src));
-            ou = new BufferedOutputStream(new FileOutputStream(dst));
-            byte[] buffer = new byte[8192];
-            int read = 0;
-            while ((read = in.read(buffer)) != -1) {
-                ou.write(buffer, 0, read);
+            in = new FileInputStream(src);
+            ou = new FileOutputStream(dst);
+            FileChannel inChannel = in.getChannel();
+            FileChannel ouChannel = ou.getChannel();
+            long size = inChannel.size();
+            long position = 0;
+            while (position < size) {
+                long count = inChannel.transferTo(position, size - position, ouChannel);
+                if (count <= 0) {
+                    throw new IOException("copy " + src + " to " + dst + " fail at " + position);
+                }
+                position += count;
             }
+            ou.getFD().sync();
         } finally {
             if (in != null) {
                 try {
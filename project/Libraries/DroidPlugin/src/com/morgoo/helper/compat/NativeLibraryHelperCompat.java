@@ -2,16 +2,34 @@ package com.morgoo.helper.compat;
 
 import android.annotation.TargetApi;
 import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
 
 import com.morgoo.droidplugin.pm.PluginManager;
 import com.morgoo.droidplugin.reflect.MethodUtils;
 import com.morgoo.helper.Log;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -23,14 +41,17 @@ public class NativeLibraryHelperCompat {
         return Class.forName("com.android.internal.content.NativeLibraryHelper");
     }
 
-    private static final Class handleClass() throws ClassNotFoundException {
-        return Class.forName("com.android.internal.content.NativeLibraryHelper$Handle");
+    public static final int copyNativeBinaries(File apkFile, File sharedLibraryDir) {
+        return copyNativeBinaries(apkFile, sharedLibraryDir, null);
     }
 
-    public static final int copyNativeBinaries(File apkFile, File sharedLibraryDir) {
+    /**
+     * @param installedLibraryDir 已安装版本的so目录，升级时其中大小和CRC都相同的so直接复用，不再从apk里解压。可以为null。
+     */
+    public static final int copyNativeBinaries(File apkFile, File sharedLibraryDir, File installedLibraryDir) {
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            return copyNativeBinariesAfterL(apkFile, sharedLibraryDir);
+            return copyNativeBinariesAfterL(apkFile, sharedLibraryDir, installedLibraryDir);
         } else {
             return copyNativeBinariesBeforeL(apkFile, sharedLibraryDir);
         }
@@ -56,12 +77,18 @@ public class NativeLibraryHelperCompat {
         return -1;
     }
 
+    /**
+     * 不再通过NativeLibraryHelper.Handle和findSupportedAbi，那样要多次打开apk。
+     * 这里只打开一次apk，从zip中央目录里找出所有so，按系统支持的abi顺序选出abi，再多线程解压。
+     */
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private static int copyNativeBinariesAfterL(File apkFile, File sharedLibraryDir) {
+    private static int copyNativeBinariesAfterL(File apkFile, File sharedLibraryDir, File installedLibraryDir) {
+        ZipFile zipFile = null;
         try {
-            Object handleInstance = MethodUtils.invokeStaticMethod(handleClass(), "create", apkFile);
-            if (handleInstance == null) {
-                return -1;
+            zipFile = new ZipFile(apkFile);
+            Map<String, List<ZipEntry>> libs = getNativeLibsFromApk(zipFile);
+            if (libs.isEmpty()) {
+                return 0;
             }
 
             String abi = null;
@@ -69,60 +96,214 @@ public class NativeLibraryHelperCompat {
             //在64位处理器中，如果导入的so库未包含64位的，比如只导入了armeabi，此时就会找不到该abi。
             //应该在32位abi中再次寻找。
             if (isVM64()) {
-                if (Build.SUPPORTED_64_BIT_ABIS.length > 0) {
-                    Set<String> abis = getAbisFromApk(apkFile.getAbsolutePath());
-                    if (abis == null || abis.isEmpty()) {
-                        return 0;
-                    }
-                    int abiIndex = (int) MethodUtils.invokeStaticMethod(nativeLibraryHelperClass(), "findSupportedAbi", handleInstance, Build.SUPPORTED_64_BIT_ABIS);
-                    if (abiIndex >= 0) {
-                        abi = Build.SUPPORTED_64_BIT_ABIS[abiIndex];
-                    }
+                abi = findSupportedAbi(Build.SUPPORTED_64_BIT_ABIS, libs.keySet());
+            }
+            if (abi == null) {
+                abi = findSupportedAbi(Build.SUPPORTED_32_BIT_ABIS, libs.keySet());
+            }
+
+            if (abi == null) {
+                return -1;
+            }
+            return extractNativeLibs(zipFile, libs.get(abi), sharedLibraryDir, installedLibraryDir);
+        } catch (Exception e) {
+            Log.e(TAG, "copyNativeBinaries %s fail", e, apkFile.getPath());
+        } finally {
+            closeQuietly(zipFile);
+        }
+
+        return -1;
+    }
+
+    private static String findSupportedAbi(String[] supportedAbis, Set<String> apkAbis) {
+        for (String supportedAbi : supportedAbis) {
+            if (apkAbis.contains(supportedAbi)) {
+                return supportedAbi;
+            }
+        }
+        return null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static int extractNativeLibs(final ZipFile zipFile, List<ZipEntry> entries, final File sharedLibraryDir, final File installedLibraryDir) throws Exception {
+        long b = System.currentTimeMillis();
+        if (!sharedLibraryDir.exists()) {
+            sharedLibraryDir.mkdirs();
+        }
+        int extracted = 0;
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), entries.size()));
+        if (threads == 1) {
+            for (ZipEntry entry : entries) {
+                if (extractNativeLib(zipFile, entry, sharedLibraryDir, installedLibraryDir)) {
+                    extracted++;
                 }
-            } //else {
-            //如果abi为空，再次查找。
-            if(abi == null){
-                if (Build.SUPPORTED_32_BIT_ABIS.length > 0) {
-                    Set<String> abis = getAbisFromApk(apkFile.getAbsolutePath());
-                    if (abis == null || abis.isEmpty()) {
-                        return 0;
-                    }
-                    int abiIndex = (int) MethodUtils.invokeStaticMethod(nativeLibraryHelperClass(), "findSupportedAbi", handleInstance, Build.SUPPORTED_32_BIT_ABIS);
-                    if (abiIndex >= 0) {
-                        abi = Build.SUPPORTED_32_BIT_ABIS[abiIndex];
+            }
+        } else {
+            //ZipFile可以多线程读，解压在各自的线程里进行
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "DroidPlugin@NativeLibExtractor-" + mCount.incrementAndGet());
+                }
+            });
+            try {
+                List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(entries.size());
+                for (final ZipEntry entry : entries) {
+                    futures.add(executor.submit(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() throws Exception {
+                            return extractNativeLib(zipFile, entry, sharedLibraryDir, installedLibraryDir);
+                        }
+                    }));
+                }
+                for (Future<Boolean> future : futures) {
+                    if (future.get()) {
+                        extracted++;
                     }
                 }
+            } finally {
+                executor.shutdownNow();
             }
+        }
+        Log.i(TAG, "Extract %s/%s native libs with %s threads cost %s ms", extracted, entries.size(), threads, (System.currentTimeMillis() - b));
+        return PackageManagerCompat.INSTALL_SUCCEEDED;
+    }
 
-            if (abi == null) {
-                return -1;
+    /**
+     * 安装时总是解压到新建的临时目录。已安装版本里有大小和CRC都相同的so时，直接链接或复制过来，不用解压。
+     *
+     * @return 从apk里解压了返回true，复用已安装的so返回false
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean extractNativeLib(ZipFile zipFile, ZipEntry entry, File sharedLibraryDir, File installedLibraryDir) throws IOException {
+        String name = entry.getName();
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        File file = new File(sharedLibraryDir, fileName);
+        if (installedLibraryDir != null) {
+            File installed = new File(installedLibraryDir, fileName);
+            if (installed.isFile() && installed.length() == entry.getSize() && entry.getCrc() != -1 && crc32(installed) == entry.getCrc()) {
+                try {
+                    reuseInstalledLib(installed, file);
+                    return false;
+                } catch (IOException e) {
+                    Log.w(TAG, "reuse %s fail, extract from apk", e, installed.getPath());
+                    file.delete();
+                }
             }
+        }
 
-            Object[] args = new Object[3];
-            args[0] = handleInstance;
-            args[1] = sharedLibraryDir;
-            args[2] = abi;
-            return (int) MethodUtils.invokeStaticMethod(nativeLibraryHelperClass(), "copyNativeBinaries", args);
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+        File tmpFile = new File(file.getPath() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = zipFile.getInputStream(entry);
+            out = new FileOutputStream(tmpFile);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename " + tmpFile.getPath() + " fail");
+            }
+            file.setReadable(true, false);
+            file.setExecutable(true, false);
+            return true;
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+            tmpFile.delete();
         }
+    }
 
-        return -1;
+    /**
+     * 已安装的so在替换目录后会被删除，硬链接不受影响；链接失败（比如不在同一个分区）时复制。
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static void reuseInstalledLib(File installed, File file) throws IOException {
+        try {
+            Os.link(installed.getPath(), file.getPath());
+            return;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "link %s fail, copy it", installed.getPath());
+        }
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(installed);
+            out = new FileOutputStream(tmpFile);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                throw new IOException("rename " + tmpFile.getPath() + " fail");
+            }
+            file.setReadable(true, false);
+            file.setExecutable(true, false);
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+            tmpFile.delete();
+        }
     }
 
+    private static long crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+            return crc.getValue();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+
+    private static volatile Boolean sIsVM64;
+
+    /**
+     * 宿主进程是否是64位的，由宿主apk里的so决定，结果不会变，只计算一次。
+     */
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private static boolean isVM64() {
-        Set<String> supportedAbis = getAbisFromApk(getHostApk());
+        Boolean isVM64 = sIsVM64;
+        if (isVM64 == null) {
+            isVM64 = isVM64Inner();
+            sIsVM64 = isVM64;
+        }
+        return isVM64;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isVM64Inner() {
         if (Build.SUPPORTED_64_BIT_ABIS.length == 0) {
             return false;
         }
 
+        Set<String> supportedAbis = getAbisFromApk(getHostApk());
         if (supportedAbis == null || supportedAbis.isEmpty()) {
             return true;
         }
@@ -137,30 +318,51 @@ public class NativeLibraryHelperCompat {
     }
 
     private static Set<String> getAbisFromApk(String apk) {
+        ZipFile apkFile = null;
         try {
-            ZipFile apkFile = new ZipFile(apk);
-            Enumeration<? extends ZipEntry> entries = apkFile.entries();
-            Set<String> supportedAbis = new HashSet<>();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String name = entry.getName();
-                if (name.contains("../")) {
-                    continue;
-                }
-                if (name.startsWith("lib/") && !entry.isDirectory() && name.endsWith(".so")) {
-                    String supportedAbi = name.substring(name.indexOf("/") + 1, name.lastIndexOf("/"));
-                    supportedAbis.add(supportedAbi);
-                }
-            }
+            apkFile = new ZipFile(apk);
+            Set<String> supportedAbis = getNativeLibsFromApk(apkFile).keySet();
             Log.d(TAG, "supportedAbis : %s", supportedAbis);
             return supportedAbis;
         } catch (Exception e) {
             Log.e(TAG, "get supportedAbis failure", e);
+        } finally {
+            closeQuietly(apkFile);
         }
 
         return null;
     }
 
+    /**
+     * 按abi分组的lib/abi/xxx.so，只读zip的中央目录，不打开entry。
+     */
+    private static Map<String, List<ZipEntry>> getNativeLibsFromApk(ZipFile apkFile) {
+        Map<String, List<ZipEntry>> libs = new HashMap<String, List<ZipEntry>>();
+        Enumeration<? extends ZipEntry> entries = apkFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            String name = entry.getName();
+            if (name.contains("../")) {
+                continue;
+            }
+            if (name.startsWith("lib/") && !entry.isDirectory() && name.endsWith(".so")) {
+                int slash = name.lastIndexOf('/');
+                //只有lib/abi/xxx.so，和系统一样忽略更深的子目录
+                if (slash <= 4 || name.indexOf('/', 4) != slash) {
+                    continue;
+                }
+                String abi = name.substring(4, slash);
+                List<ZipEntry> list = libs.get(abi);
+                if (list == null) {
+                    list = new ArrayList<ZipEntry>();
+                    libs.put(abi, list);
+                }
+                list.add(entry);
+            }
+        }
+        return libs;
+    }
+
     private static String getHostApk() {
         return PluginManager.getInstance().getHostContext().getApplicationInfo().sourceDir;
     }